@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.List;
+
+import javax.jcr.Node;
+
+/**
+ * Plugin that visits nodes in batches, to share work like lookups or a save between the nodes of a batch.
+ * Batches are only formed when the config key <code>visit.batchsize</code> is larger than 1, the nodes of a
+ * batch are grouped by parent. Plugins that do not implement this interface get the nodes of a batch one by one.
+ */
+public interface BatchRunnerPlugin extends RunnerPlugin {
+
+    /**
+     * Visit a batch of nodes.
+     * @param nodes the nodes, grouped by parent
+     */
+    void visitBatch(List<Node> nodes);
+}
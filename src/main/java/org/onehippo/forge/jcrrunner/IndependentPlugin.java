@@ -0,0 +1,24 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+/**
+ * Marker for plugins that only read content and do not depend on the changes of other plugins. Consecutive
+ * independent plugins are run concurrently, each on its own session. Plugins can also be marked independent, or
+ * not, with the config key <code>independent</code>.
+ */
+public interface IndependentPlugin extends RunnerPlugin {
+}
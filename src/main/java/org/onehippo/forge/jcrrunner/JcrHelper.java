@@ -15,24 +15,23 @@
  */
 package org.onehippo.forge.jcrrunner;
 
-import java.net.MalformedURLException;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
-
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.LoginException;
 import javax.jcr.Node;
-import javax.jcr.Repository;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
 
-import org.apache.jackrabbit.rmi.client.ClientRepositoryFactory;
 import org.apache.jackrabbit.rmi.client.RemoteRepositoryException;
 import org.apache.jackrabbit.rmi.client.RemoteRuntimeException;
-import org.hippoecm.repository.HippoRepository;
-import org.hippoecm.repository.HippoRepositoryFactory;
 import org.hippoecm.repository.api.HippoNode;
+import org.onehippo.forge.jcrrunner.connector.PrefetchingConnector;
+import org.onehippo.forge.jcrrunner.connector.RepositoryConnector;
+import org.onehippo.forge.jcrrunner.connector.RepositoryConnectors;
+import org.onehippo.forge.jcrrunner.proxy.JcrProxyFactory;
+import org.onehippo.forge.jcrrunner.trace.Span;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,74 +42,73 @@ public final class JcrHelper {
 
     private static final Logger log = LoggerFactory.getLogger(JcrHelper.class);
 
-    private static String server;
-
-    private static String username;
-
-    private static char[] password;
+    private static final Connection DEFAULT_CONNECTION = new Connection(null);
 
-    private static Session session;
+    /**
+     * Inherited, so the threads a plugin starts work on the repository of the plugin.
+     */
+    private static final ThreadLocal<Connection> BOUND_CONNECTION = new InheritableThreadLocal<Connection>();
 
-    private static boolean connected;
-
-    private static boolean isHippoRepository = true;
+    private static final ThreadLocal<Session> BOUND_SESSION = new ThreadLocal<Session>();
 
     private JcrHelper() {
     }
 
     public static void setHippoRepository(final boolean isHippo) {
-        isHippoRepository = isHippo;
+        current().isHippoRepository = isHippo;
     }
 
     public static boolean isHippoRepository() {
-        return isHippoRepository;
+        return current().isHippoRepository;
     }
 
     public static void setConnected(final boolean connected) {
-        JcrHelper.connected = connected;
+        current().connected = connected;
     }
 
     public static char[] getPassword() {
-        return password.clone();
+        return current().password.clone();
     }
 
     public static void setPassword(final String password) {
-        JcrHelper.password = password.toCharArray();
+        current().password = password.toCharArray();
     }
 
     public static String getServer() {
-        return server;
+        return current().server;
     }
 
     public static void setServerUrl(final String server) {
-        JcrHelper.server = server;
+        current().server = server;
     }
 
     public static String getUsername() {
-        return username;
+        return current().username;
     }
 
     public static void setUsername(final String username) {
-        JcrHelper.username = username;
+        current().username = username;
     }
 
     public static boolean isConnected() {
+        final Connection connection = current();
         try {
-            if (session != null && session.isLive()) {
+            if (connection.session != null && connection.session.isLive()) {
                 return true;
             }
         } catch (RemoteRuntimeException e) {
             log.error("Error communicating with server. ", e);
             setConnected(false);
         }
-        return connected;
+        return connection.connected;
     }
 
     public static String getStatus() {
+        final Connection connection = current();
         if (!isConnected()) {
-            return username + "@" + server + " connected: " + connected;
+            return connection.username + "@" + connection.server + " connected: " + connection.connected;
         } else {
-            return username + "@" + server + " session: " + session.getClass();
+            return connection.username + "@" + connection.server + " session: " + connection.session.getClass();
         }
     }
 
@@ -119,18 +117,16 @@ public final class JcrHelper {
             return true;
         }
         // get the repository login and get session
+        final Connection connection = current();
+        final Span span = Tracer.get().startSpan("JcrHelper.connect").setAttribute("repository.url", getServer());
         try {
-            if (isHippoRepository()) {
-                log.info("Connecting to Hippo Repository at '" + getServer() + "' : ");
-                HippoRepository repository = HippoRepositoryFactory.getHippoRepository(getServer());
-                session = repository.login(new SimpleCredentials(getUsername(), getPassword()));
-            } else {
-                log.info("Connecting to JCR Repository at '" + getServer() + "' : ");
-                ClientRepositoryFactory factory = new ClientRepositoryFactory();
-                Repository repository = factory.getRepository(getServer());
-                session = repository.login(new SimpleCredentials(getUsername(), getPassword()));
-            }
+            log.info("Connecting to repository at '" + getServer() + "' : ");
+            final long start = System.nanoTime();
+            connection.connector = RepositoryConnectors.connect(getServer(), isHippoRepository());
+            setHippoRepository(connection.connector.isHippo());
+            connection.session = loginVisitor(connection.connector);
             setConnected(true);
+            RunReport.get().addTime(RunReport.Phase.CONNECT, System.nanoTime() - start);
             log.debug("Connected.");
             return true;
         } catch (RemoteRepositoryException e) {
@@ -139,24 +135,82 @@ public final class JcrHelper {
             log.error("Unable to login to server: " + getServer(), e);
         } catch (RepositoryException e) {
             log.error("Error while connection to server: " + getServer(), e);
-        } catch (MalformedURLException e) {
-            log.error("Invalid connection url: " + getServer(), e);
         } catch (ClassCastException e) {
             log.error("ClassCastException while connection to server: " + getServer(), e);
-        } catch (RemoteException e) {
-            log.error("RemoteException while connection to server: " + getServer(), e);
-        } catch (NotBoundException e) {
-            log.error("Server not found in rmi lookup: " + getServer(), e);
+        } finally {
+            span.end();
+        }
+        if (connection.connector != null) {
+            connection.connector.close();
+            connection.connector = null;
         }
         throw new IllegalStateException("No connection to repository.");
     }
 
+    /**
+     * Login a new session on the connected repository, for work that runs next to the main session.
+     * The caller is responsible for logging out the session.
+     * @return the new session
+     * @throws RepositoryException when the login fails
+     */
+    public static Session newSession() throws RepositoryException {
+        ensureConnected();
+        final Span span = Tracer.get().startSpan("JcrHelper.newSession");
+        try {
+            return current().connector.login(new SimpleCredentials(getUsername(), getPassword()));
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Login a new session on the connected repository to visit nodes with, which unlike the sessions of
+     * {@link #newSession()} can prefetch subtrees. The caller is responsible for logging out the session.
+     * @return the new session
+     * @throws RepositoryException when the login fails
+     */
+    public static Session newVisitorSession() throws RepositoryException {
+        ensureConnected();
+        final Span span = Tracer.get().startSpan("JcrHelper.newVisitorSession");
+        try {
+            return loginVisitor(current().connector);
+        } finally {
+            span.end();
+        }
+    }
+
+    private static Session loginVisitor(final RepositoryConnector connector) throws RepositoryException {
+        final SimpleCredentials credentials = new SimpleCredentials(getUsername(), getPassword());
+        if (connector instanceof PrefetchingConnector) {
+            return ((PrefetchingConnector) connector).loginVisitor(credentials);
+        }
+        return connector.login(credentials);
+    }
+
+    /**
+     * Read subtrees below the base path in one request with the session of the current thread, if the connection
+     * supports it. Ignored otherwise.
+     * @param basePath the path below which to prefetch, <code>null</code> to stop prefetching
+     * @param depth the number of levels to read along with a node
+     */
+    public static void setPrefetchDepth(final String basePath, final int depth) {
+        ensureConnected();
+        final RepositoryConnector connector = current().connector;
+        if (connector instanceof PrefetchingConnector) {
+            ((PrefetchingConnector) connector).setPrefetchDepth(currentSession(), basePath, depth);
+        }
+    }
+
     public static void refresh(final boolean keepChanges) {
         ensureConnected();
+        final Span span = Tracer.get().startSpan("JcrHelper.refresh");
         try {
-            session.refresh(keepChanges);
+            currentSession().refresh(keepChanges);
+            clearNodeTypeNames();
         } catch (RepositoryException e) {
             log.error("Error while refresing the session.", e);
+        } finally {
+            span.end();
         }
     }
 
@@ -166,25 +220,106 @@ public final class JcrHelper {
     }
 
     public static void disconnect() {
+        final Connection connection = current();
         if (isConnected()) {
             log.info("Disconnecting from '" + getServer() + "' : ");
-            session.logout();
+            connection.session.logout();
             log.debug("Disconnected.");
             setConnected(false);
         }
+        connection.nodeTypeCache.clear();
+        if (connection.connector != null) {
+            connection.connector.close();
+            connection.connector = null;
+        }
     }
 
     public static boolean save() {
         ensureConnected();
+        final long start = System.nanoTime();
+        final Span span = Tracer.get().startSpan("JcrHelper.save");
         try {
-            session.save();
+            currentSession().save();
+            RunReport.get().addTime(RunReport.Phase.SAVE, System.nanoTime() - start);
+            clearNodeTypeNames();
             return true;
         } catch (RepositoryException e) {
             log.error("Error while saving the session.", e);
             return false;
+        } finally {
+            span.end();
         }
     }
 
+    /**
+     * @return the node type cache of the repository of the current thread
+     */
+    public static NodeTypeCache getNodeTypeCache() {
+        return current().nodeTypeCache;
+    }
+
+    /**
+     * Get the name of the primary type of a node, from the node type cache after the first time.
+     */
+    public static String getPrimaryTypeName(final Node node) throws RepositoryException {
+        return getNodeTypeCache().getPrimaryTypeName(node);
+    }
+
+    /**
+     * Same as {@link Node#isNodeType(String)}, resolved with the node type cache.
+     */
+    public static boolean isNodeType(final Node node, final String typeName) throws RepositoryException {
+        return getNodeTypeCache().isNodeType(node, typeName);
+    }
+
+    /**
+     * @return whether the children of a node can be ordered, resolved with the node type cache
+     */
+    public static boolean hasOrderableChildNodes(final Node node) throws RepositoryException {
+        return getNodeTypeCache().hasOrderableChildNodes(node);
+    }
+
+    /**
+     * Get the sibling after a node, addressed as it will be once the node has left its parent, to put the node
+     * back in its place after moving it to a new name. JCR has no call for the next sibling, so the children of the
+     * parent are compared by name up to the node, counting same name siblings for the index.
+     * @return the name with index of the next sibling, <code>null</code> if the node is the last child or the
+     * children of its parent are not ordered
+     */
+    public static String getNextSiblingName(final Node node) throws RepositoryException {
+        final Node parent = node.getParent();
+        if (!hasOrderableChildNodes(parent)) {
+            return null;
+        }
+        final String name = node.getName();
+        final int index = node.getIndex();
+        final NodeIterator siblings = parent.getNodes();
+        int sameNameCount = 0;
+        while (siblings.hasNext()) {
+            if (!name.equals(siblings.nextNode().getName()) || ++sameNameCount < index) {
+                continue;
+            }
+            if (!siblings.hasNext()) {
+                return null;
+            }
+            final Node next = siblings.nextNode();
+            if (name.equals(next.getName())) {
+                // same name siblings shift down when the node leaves the parent
+                return name + "[" + index + "]";
+            }
+            return next.getName() + "[" + next.getIndex() + "]";
+        }
+        return null;
+    }
+
+    /**
+     * Make the node type cache forget the type names of nodes read by the current thread, after their types may have
+     * been changed without {@link #save()} or {@link #refresh(boolean)}. The node type definitions are kept.
+     */
+    public static void clearNodeTypeNames() {
+        current().nodeTypeCache.clearNodes();
+    }
+
     public static boolean saveAndWait(long savePauseMillis) {
         boolean saveResult = JcrHelper.save();
         try { 
@@ -211,11 +346,13 @@ public final class JcrHelper {
          * but it's only available form 7.8 and up (repo: 2.24.00)
          * So for compatibility use the "old" method.
          */
+        final Span span = Tracer.get().startDetailSpan("JcrHelper.isVirtual");
         try {
             if (!(jcrNode instanceof HippoNode)) { 
                 return false;
             }
-            HippoNode hippoNode = (HippoNode) jcrNode;
+            // compare the repository's own nodes, not the wrappers handed to plugins
+            HippoNode hippoNode = (HippoNode) JcrProxyFactory.unwrap(jcrNode);
             Node canonical = hippoNode.getCanonicalNode();
             if (canonical == null) {
                 return true;
@@ -227,6 +364,8 @@ public final class JcrHelper {
         } catch (RepositoryException e) {
             log.error("Error while determining if the node is virtual",e);
             return false;
+        } finally {
+            span.end();
         }
     }
 
@@ -235,25 +374,147 @@ public final class JcrHelper {
         if (path == null) {
             throw new IllegalArgumentException("Path can not be null");
         }
-        if ("/".equals(path) || "".equals(path)) {
-            return session.getRootNode();
-        } else {
-            if (path.startsWith("/")) {
-                return session.getRootNode().getNode(path.substring(1));
+        final Span span = Tracer.get().startDetailSpan("JcrHelper.getNode").setAttribute("jcr.path", path);
+        try {
+            if ("/".equals(path) || "".equals(path)) {
+                return currentSession().getRootNode();
             } else {
-                return session.getRootNode().getNode(path);
+                if (path.startsWith("/")) {
+                    return currentSession().getRootNode().getNode(path.substring(1));
+                } else {
+                    return currentSession().getRootNode().getNode(path);
+                }
             }
+        } finally {
+            span.end();
         }
     }
 
     public static Node getRootNode() throws RepositoryException {
         ensureConnected();
-        return session.getRootNode();
+        return currentSession().getRootNode();
     }
 
     public static Session getSession() {
         ensureConnected();
-        return session;
+        return currentSession();
+    }
+
+    /**
+     * Let the helper methods called from the current thread use another session than the main session, for
+     * plugins that run concurrently with other plugins. The caller logs out the session after unbinding it.
+     * @param boundSession the session of the current thread
+     */
+    public static void bindSession(final Session boundSession) {
+        BOUND_SESSION.set(boundSession);
+    }
+
+    /**
+     * Let the current thread use the main session again.
+     * @return the session that was bound, which may have been rotated since it was bound
+     */
+    public static Session unbindSession() {
+        final Session bound = BOUND_SESSION.get();
+        BOUND_SESSION.remove();
+        return bound;
+    }
+
+    /**
+     * Replace the session of the current thread by a new one and logout the old one, which releases all item
+     * state cached for it on the client and the server. Unsaved changes are lost and nodes read with the old
+     * session can no longer be used. The new session is not taken from a {@link SessionPool}, an idle pooled
+     * session would still hold the state it cached before.
+     * @throws RepositoryException when the login of the new session fails, the old session is kept then
+     */
+    public static void rotateSession() throws RepositoryException {
+        final Session fresh = newVisitorSession();
+        final Session old;
+        if (BOUND_SESSION.get() != null) {
+            old = BOUND_SESSION.get();
+            BOUND_SESSION.set(fresh);
+        } else {
+            final Connection connection = current();
+            old = connection.session;
+            connection.session = fresh;
+        }
+        final RepositoryConnector connector = current().connector;
+        if (connector instanceof PrefetchingConnector) {
+            ((PrefetchingConnector) connector).copyPrefetchDepth(old, fresh);
+        }
+        old.logout();
+    }
+
+    private static Session currentSession() {
+        final Session bound = BOUND_SESSION.get();
+        return bound != null ? bound : current().session;
+    }
+
+    /**
+     * Create a connection to another repository than the default one. The connection is used by the threads it
+     * is bound to, and the threads they start.
+     * @param name the name of the repository
+     * @param server the url of the repository
+     * @param username the user to login with
+     * @param password the password of the user
+     * @return the connection, not connected yet
+     */
+    public static Connection newConnection(final String name, final String server, final String username,
+                                           final String password) {
+        final Connection connection = new Connection(name);
+        connection.server = server;
+        connection.username = username;
+        connection.password = password.toCharArray();
+        return connection;
+    }
+
+    /**
+     * Let the current thread, and the threads it starts from now on, work on another repository.
+     */
+    public static void bindConnection(final Connection connection) {
+        BOUND_CONNECTION.set(connection);
+    }
+
+    /**
+     * Let the current thread work on the default repository again.
+     */
+    public static void unbindConnection() {
+        BOUND_CONNECTION.remove();
+    }
+
+    /**
+     * @return the name of the repository of the current thread, <code>null</code> for the default repository
+     */
+    public static String getRepositoryName() {
+        return current().name;
+    }
+
+    private static Connection current() {
+        final Connection bound = BOUND_CONNECTION.get();
+        return bound != null ? bound : DEFAULT_CONNECTION;
+    }
+
+    /**
+     * The state of the connection to one repository.
+     */
+    public static final class Connection {
+
+        private final String name;
+        private String server;
+        private String username;
+        private char[] password;
+        private volatile Session session;
+        private RepositoryConnector connector;
+        private final NodeTypeCache nodeTypeCache = new NodeTypeCache();
+        private boolean connected;
+        private boolean isHippoRepository = true;
+
+        private Connection(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
     }
 
     public static String safeGetPath(Node node) {
@@ -266,11 +527,14 @@ public final class JcrHelper {
     }
 
     public static boolean safeItemExists(String absPath) {
+        final Span span = Tracer.get().startDetailSpan("JcrHelper.itemExists").setAttribute("jcr.path", absPath);
         try {
-            return session.itemExists(absPath);
+            return currentSession().itemExists(absPath);
         } catch (RepositoryException e) {
             log.warn("Eror while trying to determine the existance of item at path: " + absPath, e);
             return false;
+        } finally {
+            span.end();
         }
     }
 }
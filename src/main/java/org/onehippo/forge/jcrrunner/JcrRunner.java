@@ -21,8 +21,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.onehippo.forge.jcrrunner.daemon.RunnerDaemon;
+import org.onehippo.forge.jcrrunner.mutation.MutationQueue;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,8 +39,19 @@ public final class JcrRunner {
 
     private static Runner runner = null;
 
+    private static RunnerDaemon daemon = null;
+
+    private static final List<RepositoryRun> REPOSITORY_RUNS = new CopyOnWriteArrayList<RepositoryRun>();
+
+    private static String reportFile = null;
+
     private static final String DEFAULT_CONFIG_FILE = "runner.properties";
 
+    /**
+     * How long the shutdown hook waits for the running plugins to stop and be destroyed.
+     */
+    private static final long STOP_TIMEOUT_MILLIS = 30000L;
+
     private static final Logger log = LoggerFactory.getLogger(JcrRunner.class);
 
     /**
@@ -50,16 +67,98 @@ public final class JcrRunner {
         // register hook for proper shutdown
         Runtime.getRuntime().addShutdownHook(new ShutdownHook());
 
+        if (config.getTraceFile() != null) {
+            Tracer.open(new File(config.getTraceFile()), config.getTraceSample(), config.getTraceDepth());
+        }
+        if (config.getDaemonPort() >= 0) {
+            startDaemon(config);
+            return;
+        }
+        reportFile = config.getReportFile();
+        if (config.getRepositories().isEmpty()) {
+            JcrHelper.setServerUrl(config.getRepositoryUrl());
+            JcrHelper.setUsername(config.getRepositoryUser());
+            JcrHelper.setPassword(config.getRepositoryPass());
+
+            // start the runner
+            runner = createRunner(config, config.getPluginConfigs());
+            JcrHelper.ensureConnected();
+            runner.start();
+            JcrHelper.disconnect();
+        } else {
+            runRepositories(config);
+        }
+        Tracer.close();
+        writeReport();
+    }
+
+    /**
+     * Keep running and accept jobs until the process is stopped. Jobs write their own report.
+     */
+    private static void startDaemon(RunnerConfig config) throws IOException {
         JcrHelper.setServerUrl(config.getRepositoryUrl());
         JcrHelper.setUsername(config.getRepositoryUser());
         JcrHelper.setPassword(config.getRepositoryPass());
+        daemon = new RunnerDaemon(config, config.getDaemonPort());
+        daemon.start();
+    }
+
+    private static Runner createRunner(RunnerConfig config, List<RunnerPluginConfig> pluginConfigs) {
+        Runner newRunner = new Runner();
+        newRunner.setReportSubtreeDepth(config.getReportSubtreeDepth());
+        newRunner.setThreads(config.getRunnerThreads());
+        newRunner.registerPlugins(pluginConfigs);
+        return newRunner;
+    }
 
-        // start the runner
-        runner = new Runner();
-        runner.registerPlugins(config.getPluginConfigs());
-        JcrHelper.ensureConnected();
-        runner.start();
-        JcrHelper.disconnect();
+    /**
+     * Run the plugins against all configured repositories at the same time, each repository on a thread with a
+     * connection, runner and report of its own, and log a summary when all are done.
+     */
+    static void runRepositories(RunnerConfig config) {
+        List<RepositoryRun> runs = new ArrayList<RepositoryRun>();
+        for (RunnerConfig.Repository repository : config.getRepositories()) {
+            RepositoryRun run = new RepositoryRun(config, repository);
+            runs.add(run);
+            REPOSITORY_RUNS.add(run);
+        }
+        log.info("Running plugins against {} repositories.", runs.size());
+        for (RepositoryRun run : runs) {
+            run.start();
+        }
+        for (RepositoryRun run : runs) {
+            try {
+                run.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for repository {}.", run.name);
+                return;
+            }
+        }
+        RunReport report = RunReport.get();
+        for (RepositoryRun run : runs) {
+            log.info("Repository {}: visited {} nodes, {} errors.", new Object[] {run.name,
+                    run.report.getVisited(), run.report.getSkipped(RunReport.Skip.ERROR)});
+        }
+        log.info("All repositories: visited {} nodes, {} errors.", report.getVisited(),
+                report.getSkipped(RunReport.Skip.ERROR));
+    }
+
+    /**
+     * Write the run report once, if configured. Also called by the shutdown hook for interrupted runs.
+     */
+    static synchronized void writeReport() {
+        if (reportFile == null) {
+            return;
+        }
+        File file = new File(reportFile);
+        reportFile = null;
+        try {
+            RunReport.get().write(file);
+            log.info("Run report written to {}", file.getAbsolutePath());
+        } catch (IOException e) {
+            log.error("Unable to write run report to " + file.getAbsolutePath(), e);
+        }
     }
 
     static RunnerConfig parseConfig(String[] args) throws IOException {
@@ -94,8 +193,98 @@ public final class JcrRunner {
         public void run() {
             if (runner != null) {
                 runner.stop();
+                awaitRunner(runner);
+            }
+            if (daemon != null) {
+                daemon.stop();
+            }
+            for (RepositoryRun run : REPOSITORY_RUNS) {
+                run.signalStop();
+            }
+            for (RepositoryRun run : REPOSITORY_RUNS) {
+                run.stopRun();
             }
+            MutationQueue.closeAll();
+            ResultSink.closeAll();
             JcrHelper.disconnect();
+            Tracer.close();
+            writeReport();
+        }
+    }
+
+    private static void awaitRunner(Runner stopping) {
+        try {
+            if (!stopping.awaitFinished(STOP_TIMEOUT_MILLIS)) {
+                log.warn("Plugins did not stop within {} ms, exiting anyway.", STOP_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The run of the plugins against one of several repositories.
+     */
+    private static final class RepositoryRun extends Thread {
+
+        private final String name;
+        private final RunnerConfig config;
+        private final JcrHelper.Connection connection;
+        private final RunReport report;
+        private volatile Runner repositoryRunner;
+
+        RepositoryRun(RunnerConfig config, RunnerConfig.Repository repository) {
+            super("repository-" + repository.getName());
+            this.name = repository.getName();
+            this.config = config;
+            this.connection = JcrHelper.newConnection(repository.getName(), repository.getUrl(),
+                    repository.getUser(), repository.getPass());
+            this.report = RunReport.get().getRepositoryReport(repository.getName(), repository.getUrl());
+        }
+
+        @Override
+        public void run() {
+            JcrHelper.bindConnection(connection);
+            RunReport.bind(report);
+            try {
+                // the runner records to the report of the thread it is created on
+                repositoryRunner = createRunner(config, config.getPluginConfigs(name));
+                JcrHelper.ensureConnected();
+                repositoryRunner.start();
+            } catch (IllegalStateException e) {
+                log.error("Unable to run plugins against repository " + name + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                // the runs against the other repositories go on
+                log.error("Error while running plugins against repository " + name, e);
+            } finally {
+                JcrHelper.disconnect();
+            }
+        }
+
+        /**
+         * Signal the runner to stop, from the shutdown hook.
+         */
+        void signalStop() {
+            if (repositoryRunner != null) {
+                repositoryRunner.stop();
+            }
+        }
+
+        /**
+         * Wait for the runner to stop and disconnect, from the shutdown hook.
+         */
+        void stopRun() {
+            if (repositoryRunner != null) {
+                awaitRunner(repositoryRunner);
+            }
+            JcrHelper.bindConnection(connection);
+            RunReport.bind(report);
+            try {
+                JcrHelper.disconnect();
+            } finally {
+                RunReport.unbind();
+                JcrHelper.unbindConnection();
+            }
         }
     }
 
@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+
+import org.onehippo.forge.jcrrunner.proxy.JcrProxyFactory;
+
+/**
+ * Client side cache of node type definitions and of the type names of nodes, so type checks are resolved
+ * without asking the repository again. Each node type definition is read once, each node's primary and mixin type
+ * names once per node object.
+ * <p>
+ * The definitions are shared by all threads working on a repository. They are read from the node types of the
+ * checked nodes, with the session of the calling thread, and cached without locking. The type names of nodes are
+ * kept per thread, every runner visits on a thread and session of its own.
+ * <p>
+ * Node type definitions are assumed not to change during a run. The type names of a node go stale when its
+ * mixins or primary type are changed; call {@link #invalidate(Node)} or {@link #clearNodes()} after such changes.
+ * {@link JcrHelper} clears the node type names on every save and refresh, the runner after every visit and after
+ * every write through the wrapped objects it hands to plugins. Changes saved directly on a session, by another
+ * session or by the writer of a mutation queue are therefore noticed from the next visit on.
+ */
+public final class NodeTypeCache {
+
+    private final ConcurrentMap<String, TypeInfo> types = new ConcurrentHashMap<String, TypeInfo>();
+    /**
+     * Keyed on the node objects, which repositories do not compare by value, so entries live as long as the node.
+     */
+    private final ThreadLocal<Map<Node, TypeNames>> nodes = new ThreadLocal<Map<Node, TypeNames>>() {
+        @Override
+        protected Map<Node, TypeNames> initialValue() {
+            return new WeakHashMap<Node, TypeNames>();
+        }
+    };
+
+    /**
+     * @return the name of the primary type of the node
+     */
+    public String getPrimaryTypeName(final Node node) throws RepositoryException {
+        return getTypeNames(node).primary;
+    }
+
+    /**
+     * @return the names of the mixin types of the node
+     */
+    public String[] getMixinTypeNames(final Node node) throws RepositoryException {
+        return getMixins(getTypeNames(node), node).clone();
+    }
+
+    /**
+     * Same as {@link Node#isNodeType(String)}: whether the primary type, a mixin or one of their super types
+     * has the given name.
+     */
+    public boolean isNodeType(final Node node, final String typeName) throws RepositoryException {
+        final TypeNames names = getTypeNames(node);
+        if (getTypeInfo(names.primary, node).supertypes.contains(typeName)) {
+            return true;
+        }
+        for (String mixin : getMixins(names, node)) {
+            if (getTypeInfo(mixin, node).supertypes.contains(typeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the children of the node can be ordered, as defined by its primary type
+     */
+    public boolean hasOrderableChildNodes(final Node node) throws RepositoryException {
+        return getTypeInfo(getTypeNames(node).primary, node).orderable;
+    }
+
+    /**
+     * @return the number of node type definitions read from the repository
+     */
+    public int getLoadedTypeCount() {
+        return types.size();
+    }
+
+    /**
+     * Forget the type names of a node for the current thread.
+     */
+    public void invalidate(final Node node) {
+        nodes.get().remove(JcrProxyFactory.unwrap(node));
+    }
+
+    /**
+     * Forget the type names of all nodes for the current thread. Node type definitions are kept.
+     */
+    public void clearNodes() {
+        nodes.get().clear();
+    }
+
+    /**
+     * Forget the node type definitions, and the type names of nodes for the current thread.
+     */
+    public void clear() {
+        types.clear();
+        clearNodes();
+    }
+
+    private TypeNames getTypeNames(final Node node) throws RepositoryException {
+        final Node raw = (Node) JcrProxyFactory.unwrap(node);
+        final Map<Node, TypeNames> names = nodes.get();
+        TypeNames typeNames = names.get(raw);
+        if (typeNames == null) {
+            final NodeType primary = raw.getPrimaryNodeType();
+            addTypeInfo(primary);
+            typeNames = new TypeNames(primary.getName());
+            names.put(raw, typeNames);
+        }
+        return typeNames;
+    }
+
+    /**
+     * Mixins are read on first use, most checks are answered by the primary type.
+     */
+    private String[] getMixins(final TypeNames names, final Node node) throws RepositoryException {
+        if (names.mixins == null) {
+            final NodeType[] mixinTypes = ((Node) JcrProxyFactory.unwrap(node)).getMixinNodeTypes();
+            final String[] mixins = new String[mixinTypes.length];
+            for (int i = 0; i < mixinTypes.length; i++) {
+                addTypeInfo(mixinTypes[i]);
+                mixins[i] = mixinTypes[i].getName();
+            }
+            names.mixins = mixins;
+        }
+        return names.mixins;
+    }
+
+    /**
+     * @param node a node of the type, to read the definition with its session when it is not cached
+     */
+    private TypeInfo getTypeInfo(final String typeName, final Node node) throws RepositoryException {
+        final TypeInfo info = types.get(typeName);
+        if (info != null) {
+            return info;
+        }
+        final Node raw = (Node) JcrProxyFactory.unwrap(node);
+        return addTypeInfo(raw.getSession().getWorkspace().getNodeTypeManager().getNodeType(typeName));
+    }
+
+    private TypeInfo addTypeInfo(final NodeType type) {
+        final String typeName = type.getName();
+        final TypeInfo info = types.get(typeName);
+        if (info != null) {
+            return info;
+        }
+        final Set<String> supertypes = new HashSet<String>();
+        supertypes.add(typeName);
+        for (NodeType supertype : type.getSupertypes()) {
+            supertypes.add(supertype.getName());
+        }
+        final TypeInfo added = new TypeInfo(supertypes, type.hasOrderableChildNodes());
+        // threads reading the same type at once build equal definitions, the first one is kept
+        final TypeInfo existing = types.putIfAbsent(typeName, added);
+        return existing != null ? existing : added;
+    }
+
+    private static final class TypeInfo {
+
+        private final Set<String> supertypes;
+        private final boolean orderable;
+
+        TypeInfo(final Set<String> supertypes, final boolean orderable) {
+            this.supertypes = supertypes;
+            this.orderable = orderable;
+        }
+    }
+
+    private static final class TypeNames {
+
+        private final String primary;
+        private String[] mixins;
+
+        TypeNames(final String primary) {
+            this.primary = primary;
+        }
+    }
+}
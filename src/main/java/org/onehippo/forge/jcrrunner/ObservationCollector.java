@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the paths of the nodes affected by JCR observation events and hands them
+ * out in debounced batches. Property events are mapped to the node owning the property,
+ * removed nodes are ignored. Duplicate paths within a batch are merged.
+ */
+class ObservationCollector implements EventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ObservationCollector.class);
+
+    /**
+     * The event types the runner listens to.
+     */
+    static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+            | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    /**
+     * A batch is handed out at the latest after this many debounce periods, even if events keep coming in.
+     */
+    private static final int MAX_DEBOUNCE_PERIODS = 10;
+
+    private Set<String> pending = new LinkedHashSet<String>();
+    private long firstEventTime;
+    private long lastEventTime;
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                final String path = getAffectedNodePath(event);
+                if (path != null) {
+                    add(path);
+                }
+            } catch (RepositoryException e) {
+                log.warn("Unable to get path from event, the event will be skipped: " + e.getMessage());
+            }
+        }
+    }
+
+    synchronized void add(final String path) {
+        final long now = System.currentTimeMillis();
+        if (pending.isEmpty()) {
+            firstEventTime = now;
+        }
+        lastEventTime = now;
+        pending.add(path);
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next batch of affected node paths. The batch is handed out when no new events came in for
+     * <code>debounceMillis</code>, when it reached <code>maxSize</code> or when it has been collecting for more
+     * than ten debounce periods.
+     * @param debounceMillis the quiet period in milliseconds
+     * @param maxSize the maximum number of paths in a batch
+     * @param timeoutMillis how long to wait for a first event
+     * @return the paths in the order of arrival or an empty set when no events arrived before the timeout
+     * @throws InterruptedException when interrupted while waiting
+     */
+    synchronized Set<String> takeBatch(final long debounceMillis, final int maxSize, final long timeoutMillis)
+            throws InterruptedException {
+        if (pending.isEmpty()) {
+            wait(timeoutMillis);
+            if (pending.isEmpty()) {
+                return Collections.emptySet();
+            }
+        }
+        while (pending.size() < maxSize) {
+            final long waitMillis = getWaitMillis(System.currentTimeMillis(), firstEventTime, lastEventTime,
+                    debounceMillis);
+            if (waitMillis <= 0) {
+                break;
+            }
+            wait(waitMillis);
+        }
+        final Set<String> batch = pending;
+        pending = new LinkedHashSet<String>();
+        return batch;
+    }
+
+    /**
+     * @param now the current time
+     * @param firstEventTime the time of the first event of the batch
+     * @param lastEventTime the time of the last event of the batch
+     * @param debounceMillis the quiet period in milliseconds
+     * @return how long to wait for more events before the batch is handed out, zero or less to hand it out now
+     */
+    static long getWaitMillis(final long now, final long firstEventTime, final long lastEventTime,
+                              final long debounceMillis) {
+        final long quiet = lastEventTime + debounceMillis - now;
+        final long deadline = firstEventTime + debounceMillis * MAX_DEBOUNCE_PERIODS - now;
+        return Math.min(quiet, deadline);
+    }
+
+    private static String getAffectedNodePath(final Event event) throws RepositoryException {
+        switch (event.getType()) {
+        case Event.NODE_ADDED:
+        case Event.NODE_MOVED:
+            return event.getPath();
+        case Event.PROPERTY_ADDED:
+        case Event.PROPERTY_CHANGED:
+        case Event.PROPERTY_REMOVED:
+            return getParentPath(event.getPath());
+        default:
+            return null;
+        }
+    }
+
+    private static String getParentPath(final String path) {
+        final int pos = path.lastIndexOf('/');
+        if (pos <= 0) {
+            return "/";
+        }
+        return path.substring(0, pos);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.onehippo.forge.jcrrunner.trace.Span;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs sub-queries in parallel on pooled sessions and merges the paths of their results, in the order they
+ * arrive. Nodes can not be handed from one session to another, so the caller gets the paths of the results and
+ * reads the nodes with its own session. Virtual nodes are left out.
+ * <p>
+ * Results are buffered in a bounded queue, the workers wait when the caller falls behind. Iterate from a single
+ * thread and {@link #close()} when done, also when stopping early.
+ */
+public final class ParallelQuery implements Iterator<String> {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelQuery.class);
+
+    private static final String END_OF_QUERY = new String("end of query");
+
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10L;
+
+    private final String owner;
+    private final String language;
+    private final SessionPool sessionPool;
+    private final ExecutorService executor;
+    private final BlockingQueue<String> results = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+    private final AtomicLong queryNanos = new AtomicLong();
+    private final AtomicLong virtualCount = new AtomicLong();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    // caller state
+    private int running;
+    private String next;
+
+    /**
+     * Start running the sub-queries.
+     * @param owner the id of the plugin, for logging
+     * @param queries the sub-queries
+     * @param language the query language
+     * @param threads the maximum number of sub-queries running at the same time
+     */
+    public ParallelQuery(final String owner, final List<String> queries, final String language, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        this.owner = owner;
+        this.language = language;
+        this.sessionPool = new SessionPool(threads);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.running = queries.size();
+        for (final String query : queries) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runQuery(query);
+                    } finally {
+                        endOfQuery();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null && running > 0) {
+                final String result = results.take();
+                if (result == END_OF_QUERY) {
+                    running--;
+                } else {
+                    next = result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RunnerStopException("Interrupted while waiting for query results");
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final String result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the time spent executing the sub-queries, summed over all workers
+     */
+    public long getQueryNanos() {
+        return queryNanos.get();
+    }
+
+    /**
+     * @return the number of virtual nodes left out of the results
+     */
+    public long getVirtualCount() {
+        return virtualCount.get();
+    }
+
+    /**
+     * @return the number of sub-queries that failed
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stop the sub-queries that are still running and logout their sessions.
+     */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        results.clear();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("{}: Sub-queries still running after {} seconds.", owner, CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sessionPool.close();
+    }
+
+    //------------------------------- WORKER THREADS -----------------------//
+    private void runQuery(final String query) {
+        final Span span = Tracer.get().startSpan("sub-query").setAttribute("plugin.id", owner)
+                .setAttribute("jcr.query", query);
+        Session session = null;
+        long count = 0;
+        try {
+            session = sessionPool.borrow();
+            final long start = System.nanoTime();
+            final Query jcrQuery = session.getWorkspace().getQueryManager().createQuery(query, language);
+            final NodeIterator nodes = jcrQuery.execute().getNodes();
+            queryNanos.addAndGet(System.nanoTime() - start);
+            while (!closed && nodes.hasNext()) {
+                final Node node = nodes.nextNode();
+                if (node == null) {
+                    continue;
+                }
+                if (JcrHelper.isVirtual(node)) {
+                    virtualCount.incrementAndGet();
+                    continue;
+                }
+                final String path = JcrHelper.safeGetPath(node);
+                if (path != null) {
+                    results.put(path);
+                    count++;
+                }
+            }
+            log.debug("{}: Sub-query '{}' returned {} results.", new Object[] {owner, query, count});
+        } catch (RepositoryException e) {
+            failedCount.incrementAndGet();
+            log.error(owner + ": Error while running sub-query '" + query + "'", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sessionPool.release(session);
+            span.setAttribute("results", count).end();
+        }
+    }
+
+    private void endOfQuery() {
+        if (closed) {
+            return;
+        }
+        try {
+            results.put(END_OF_QUERY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
+
+import org.onehippo.forge.jcrrunner.util.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous sink for structured plugin output. Records are handed to a bounded buffer and written to file
+ * by a single writer thread, as CSV or as JSON Lines, optionally gzipped and rotated by size.
+ * <p>
+ * All open sinks are flushed and closed when their plugin is destroyed and when the runner shuts down.
+ */
+public final class ResultSink {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultSink.class);
+
+    public enum Format {
+        CSV, JSONL;
+
+        /**
+         * @return the format, <code>null</code> if there is no such format
+         */
+        public static Format fromString(final String value) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(value.trim())) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final List<ResultSink> OPEN_SINKS = new CopyOnWriteArrayList<ResultSink>();
+
+    private static final Object[] END_OF_STREAM = new Object[0];
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+    private final String owner;
+    private final File file;
+    private final Format format;
+    private final String[] columns;
+    private final boolean gzip;
+    private final long rotateBytes;
+    private final BlockingQueue<Object[]> buffer;
+    private final Thread writerThread;
+
+    /**
+     * Emitting records shares the lock, closing takes it exclusively, so no record is queued behind the end of
+     * the stream.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    // writer thread state
+    private CountingOutputStream counter;
+    private Writer writer;
+    private int fileIndex;
+    private long records;
+    private long dropped;
+    private final StringBuilder line = new StringBuilder();
+
+    private ResultSink(final String owner, final File file, final Format format, final String[] columns,
+                       final boolean gzip, final long rotateBytes, final int bufferSize) {
+        this.owner = owner;
+        this.file = file;
+        this.format = format;
+        this.columns = columns.clone();
+        this.gzip = gzip;
+        this.rotateBytes = rotateBytes;
+        this.buffer = new ArrayBlockingQueue<Object[]>(bufferSize);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "result-sink-" + owner);
+        writerThread.setDaemon(true);
+    }
+
+    /**
+     * Open a new sink and start its writer thread.
+     * @param owner the id of the plugin owning the sink
+     * @param file the file to write to, rotated files get a sequence number before the extension
+     * @param format the output format
+     * @param columns the names of the values of each record
+     * @param gzip whether to gzip the output
+     * @param rotateBytes the size in bytes after which to start a new file, 0 to never rotate
+     * @param bufferSize the maximum number of records waiting to be written
+     * @return the open sink
+     */
+    public static ResultSink open(final String owner, final File file, final Format format, final String[] columns,
+                                  final boolean gzip, final long rotateBytes, final int bufferSize) {
+        final ResultSink sink = new ResultSink(owner, file, format, columns, gzip, rotateBytes, bufferSize);
+        OPEN_SINKS.add(sink);
+        sink.writerThread.start();
+        log.info("{}: Writing results to '{}'", owner, file.getPath());
+        return sink;
+    }
+
+    /**
+     * Close all sinks of a plugin.
+     * @param owner the plugin id
+     */
+    public static void closeAll(final String owner) {
+        for (ResultSink sink : OPEN_SINKS) {
+            if (sink.owner.equals(owner)) {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Close all open sinks.
+     */
+    public static void closeAll() {
+        for (ResultSink sink : OPEN_SINKS) {
+            sink.close();
+        }
+    }
+
+    /**
+     * Emit a record. The values must be in the order of the columns. Only blocks when the buffer is full.
+     * @param values the values of the record
+     */
+    public void emit(final Object... values) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Result sink " + file.getPath() + " is closed.");
+            }
+            while (!buffer.offer(values, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!writerThread.isAlive()) {
+                    log.warn("{}: Result sink writer stopped, the record is dropped.", owner);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{}: Interrupted while emitting result, the record is dropped.", owner);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write all buffered records and close the file. Blocks until the writer thread is done.
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        OPEN_SINKS.remove(this);
+        try {
+            // no records are emitted anymore, the writer makes room for the end of the stream
+            buffer.put(END_OF_STREAM);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{}: Interrupted while closing result sink {}", owner, file.getPath());
+        }
+        log.info("{}: Wrote {} results to '{}'", new Object[] {owner, records, file.getPath()});
+        if (dropped > 0) {
+            log.warn("{}: Dropped {} results that could not be formatted.", owner, dropped);
+        }
+    }
+
+    //------------------------------- WRITER THREAD -----------------------//
+    private void writeLoop() {
+        final List<Object[]> batch = new ArrayList<Object[]>();
+        boolean failed = false;
+        try {
+            while (true) {
+                batch.add(buffer.take());
+                buffer.drainTo(batch);
+                final Iterator<Object[]> iter = batch.iterator();
+                while (iter.hasNext()) {
+                    final Object[] record = iter.next();
+                    if (record == END_OF_STREAM) {
+                        closeFile();
+                        return;
+                    }
+                    if (!failed) {
+                        failed = !writeSafely(record);
+                    }
+                }
+                batch.clear();
+                // only flush when the traversal is not producing results
+                if (!failed && writer != null && buffer.isEmpty()) {
+                    failed = !flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("{}: Result sink writer interrupted, results may be lost.", owner);
+            closeFile();
+        }
+    }
+
+    /**
+     * The writer must keep taking records after any failure, emitting blocks when the buffer is full.
+     */
+    private boolean writeSafely(final Object[] record) {
+        try {
+            return write(record);
+        } catch (RuntimeException e) {
+            log.error(owner + ": Error while writing results to " + file.getPath()
+                    + ". Further results are discarded.", e);
+            return false;
+        }
+    }
+
+    private boolean flush() {
+        try {
+            writer.flush();
+            return true;
+        } catch (IOException e) {
+            log.error(owner + ": Error while flushing results to " + file.getPath()
+                    + ". Further results are discarded.", e);
+            return false;
+        }
+    }
+
+    private boolean write(final Object[] record) {
+        // format before writing, so a value that fails to format does not leave half a record in the file
+        line.setLength(0);
+        try {
+            if (format == Format.JSONL) {
+                writeJson(line, record);
+            } else {
+                writeCsv(line, record);
+            }
+            line.append('\n');
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to append to a string builder", e);
+        } catch (RuntimeException e) {
+            dropped++;
+            log.warn(owner + ": Unable to format result, the record is dropped.", e);
+            return true;
+        }
+        try {
+            if (writer == null) {
+                openFile();
+            }
+            writer.append(line);
+            records++;
+            if (rotateBytes > 0 && counter.getCount() >= rotateBytes) {
+                closeFile();
+            }
+            return true;
+        } catch (IOException e) {
+            log.error(owner + ": Error while writing results to " + file.getPath()
+                    + ". Further results are discarded.", e);
+            return false;
+        }
+    }
+
+    private static void writeCsv(final Appendable out, final Object[] record) throws IOException {
+        for (int i = 0; i < record.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            writeCsvValue(out, record[i]);
+        }
+    }
+
+    private static void writeCsvValue(final Appendable out, final Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        final String s = value.toString();
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            out.append(s);
+            return;
+        }
+        out.append('"');
+        out.append(s.replace("\"", "\"\""));
+        out.append('"');
+    }
+
+    private void writeJson(final Appendable out, final Object[] record) throws IOException {
+        final JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        for (int i = 0; i < record.length && i < columns.length; i++) {
+            json.property(columns[i], record[i]);
+        }
+        json.endObject();
+    }
+
+    private void openFile() throws IOException {
+        final File current = getRotatedFile(fileIndex++);
+        final File parent = current.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent.getPath());
+        }
+        counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(current), WRITE_BUFFER_SIZE));
+        OutputStream out = counter;
+        if (gzip) {
+            out = new GZIPOutputStream(out, WRITE_BUFFER_SIZE);
+        }
+        writer = new OutputStreamWriter(out, "UTF-8");
+        if (format == Format.CSV) {
+            writeCsv(writer, columns);
+            writer.write('\n');
+        }
+    }
+
+    private void closeFile() {
+        if (writer != null) {
+            JcrRunner.closeQuietly(writer);
+            writer = null;
+        }
+    }
+
+    private File getRotatedFile(final int index) {
+        String name = file.getName();
+        if (gzip && !name.endsWith(".gz")) {
+            name = name + ".gz";
+        }
+        if (index > 0) {
+            final int pos = name.indexOf('.');
+            if (pos > 0) {
+                name = name.substring(0, pos) + "." + index + name.substring(pos);
+            } else {
+                name = name + "." + index;
+            }
+        }
+        return new File(file.getAbsoluteFile().getParentFile(), name);
+    }
+
+    /**
+     * Counts the bytes that actually end up in the file, after compression.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
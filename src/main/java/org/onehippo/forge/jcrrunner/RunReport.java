@@ -0,0 +1,416 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.onehippo.forge.jcrrunner.util.JsonWriter;
+import org.onehippo.forge.jcrrunner.util.TopK;
+
+/**
+ * Collects the timings and node counts of a run, in total and per plugin, and writes them as a JSON report
+ * for comparing runs.
+ * <p>
+ * Time is recorded per {@link Phase}. Saves are recorded when done through {@link JcrHelper#save()}, the mutation
+ * queues and the transient space guard, not when a plugin saves its session directly. The report is collected
+ * for every run and only written when <code>report.file</code> is configured.
+ * <p>
+ * When a run covers several repositories, each repository gets a report of its own, bound to the threads working
+ * on it. The report of the run then sums them up and contains them.
+ * <p>
+ * The counters are updated by every visiting thread without taking a lock, the totals are summed up when they are
+ * read or written.
+ */
+public final class RunReport {
+
+    public enum Phase {
+        CONNECT, QUERY, TRAVERSAL, INIT, DESTROY, SAVE
+    }
+
+    public enum Skip {
+        VIRTUAL, ERROR, INVALID_ITEM_STATE, DUPLICATE
+    }
+
+    private static final int SLOWEST_SUBTREES = 20;
+    private static final double NANOS_IN_SECOND = 1000000000.0;
+
+    private static final RunReport INSTANCE = new RunReport(null, null);
+
+    private static final ThreadLocal<RunReport> BOUND = new InheritableThreadLocal<RunReport>();
+
+    private final String name;
+    private final String url;
+    private volatile Calendar started;
+    private volatile Stats total;
+    private volatile ConcurrentMap<String, Stats> plugins;
+    private volatile List<Stats> pluginOrder;
+    private volatile ThreadLocal<Stats> active;
+    private volatile TopK<Subtree> slowestSubtrees;
+    private volatile long slowestSubtreeThreshold;
+    private Map<String, RunReport> repositories;
+
+    private RunReport(final String name, final String url) {
+        this.name = name;
+        this.url = url;
+        reset();
+    }
+
+    /**
+     * @return the report of the repository of the current thread, or the report of the current run
+     */
+    public static RunReport get() {
+        final RunReport bound = BOUND.get();
+        return bound != null ? bound : INSTANCE;
+    }
+
+    /**
+     * Let the current thread, and the threads it starts from now on, record to the report of a repository.
+     */
+    public static void bind(final RunReport report) {
+        BOUND.set(report);
+    }
+
+    public static void unbind() {
+        BOUND.remove();
+    }
+
+    /**
+     * @param name the name of the repository
+     * @param repositoryUrl the url of the repository
+     * @return the report of a repository, part of this report
+     */
+    public synchronized RunReport getRepositoryReport(final String name, final String repositoryUrl) {
+        RunReport report = repositories.get(name);
+        if (report == null) {
+            report = new RunReport(name, repositoryUrl);
+            repositories.put(name, report);
+        }
+        return report;
+    }
+
+    /**
+     * Start collecting a new report.
+     */
+    public synchronized void reset() {
+        started = Calendar.getInstance();
+        total = new Stats(null, null);
+        plugins = new ConcurrentHashMap<String, Stats>();
+        pluginOrder = new CopyOnWriteArrayList<Stats>();
+        active = new ThreadLocal<Stats>();
+        slowestSubtrees = new TopK<Subtree>(SLOWEST_SUBTREES);
+        slowestSubtreeThreshold = slowestSubtrees.getThreshold();
+        repositories = new LinkedHashMap<String, RunReport>();
+    }
+
+    /**
+     * Attribute the following timings and counts of the current thread to a plugin, until {@link #endPlugin()}.
+     */
+    public void beginPlugin(final String id, final String className) {
+        final Stats stats = getPluginStats(id);
+        stats.className = className;
+        active.set(stats);
+    }
+
+    public void endPlugin() {
+        active.remove();
+    }
+
+    /**
+     * Record time spent in a phase, for the active plugin if there is one.
+     * @param phase the phase
+     * @param nanos the duration in nanoseconds
+     */
+    public void addTime(final Phase phase, final long nanos) {
+        total.addTime(phase, nanos);
+        final Stats stats = active.get();
+        if (stats != null) {
+            stats.addTime(phase, nanos);
+        }
+    }
+
+    /**
+     * Record time spent in a phase on behalf of a plugin, for work done outside the runner thread.
+     */
+    public void addTime(final String pluginId, final Phase phase, final long nanos) {
+        total.addTime(phase, nanos);
+        getPluginStats(pluginId).addTime(phase, nanos);
+    }
+
+    public void nodeVisited() {
+        total.visited.incrementAndGet();
+        final Stats stats = active.get();
+        if (stats != null) {
+            stats.visited.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a visitor of the active plugin that failed as a whole, as opposed to a node that could not be visited.
+     */
+    public void visitorFailed() {
+        total.visitorErrors.incrementAndGet();
+        final Stats stats = active.get();
+        if (stats != null) {
+            stats.visitorErrors.incrementAndGet();
+        }
+    }
+
+    public void nodeSkipped(final Skip reason) {
+        nodesSkipped(reason, 1);
+    }
+
+    /**
+     * Record nodes that were skipped outside the thread of the plugin, for instance by the workers of a split query.
+     */
+    public void nodesSkipped(final Skip reason, final long count) {
+        total.skipped.addAndGet(reason.ordinal(), count);
+        final Stats stats = active.get();
+        if (stats != null) {
+            stats.skipped.addAndGet(reason.ordinal(), count);
+        }
+    }
+
+    /**
+     * Record the time it took to visit a subtree, keeping only the slowest ones.
+     */
+    public void subtreeVisited(final String path, final long nanos, final long nodes) {
+        if (nanos <= slowestSubtreeThreshold) {
+            return;
+        }
+        final Stats stats = active.get();
+        final TopK<Subtree> subtrees = slowestSubtrees;
+        synchronized (subtrees) {
+            subtrees.offer(nanos, new Subtree(stats == null ? null : stats.id, path, nodes));
+            slowestSubtreeThreshold = subtrees.getThreshold();
+        }
+    }
+
+    public long getVisited() {
+        return getTotal().visited.get();
+    }
+
+    public long getVisitorErrors() {
+        return getTotal().visitorErrors.get();
+    }
+
+    public long getSkipped(final Skip reason) {
+        return getTotal().skipped.get(reason.ordinal());
+    }
+
+    public long getTime(final Phase phase) {
+        return getTotal().getNanos(phase);
+    }
+
+    /**
+     * @return the totals of this report and the reports of the repositories
+     */
+    private synchronized Stats getTotal() {
+        if (repositories.isEmpty()) {
+            return total;
+        }
+        final Stats sum = new Stats(null, null);
+        sum.add(total);
+        for (RunReport report : repositories.values()) {
+            sum.add(report.getTotal());
+        }
+        return sum;
+    }
+
+    /**
+     * Write the report to a file, replacing an existing one.
+     */
+    public void write(final File file) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            write(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public synchronized void write(final Appendable out) throws IOException {
+        final JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.property("version", Runner.class.getPackage().getImplementationVersion());
+        writeReport(json, Calendar.getInstance());
+        json.endObject();
+    }
+
+    private synchronized void writeReport(final JsonWriter json, final Calendar finished) throws IOException {
+        if (name != null) {
+            json.property("name", name);
+        }
+        json.property("repository", url != null ? url : JcrHelper.getServer());
+        json.property("started", started);
+        json.property("finished", finished);
+        json.property("durationMillis", finished.getTimeInMillis() - started.getTimeInMillis());
+        writeStats(json, getTotal());
+        json.name("plugins").beginArray();
+        for (Stats stats : pluginOrder) {
+            json.beginObject();
+            json.property("id", stats.id);
+            json.property("class", stats.className);
+            writeStats(json, stats);
+            final long traversal = stats.getNanos(Phase.TRAVERSAL);
+            if (traversal > 0) {
+                json.property("nodesPerSecond", Math.round(stats.visited.get() * NANOS_IN_SECOND / traversal));
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.name("slowestSubtrees").beginArray();
+        final TopK<Subtree> subtrees = slowestSubtrees;
+        final List<TopK.Entry<Subtree>> entries;
+        synchronized (subtrees) {
+            entries = subtrees.getEntries();
+        }
+        for (TopK.Entry<Subtree> entry : entries) {
+            final Subtree subtree = entry.getItem();
+            json.beginObject();
+            json.property("plugin", subtree.plugin);
+            json.property("path", subtree.path);
+            json.property("millis", toMillis(entry.getScore()));
+            json.property("nodes", subtree.nodes);
+            json.endObject();
+        }
+        json.endArray();
+        if (!repositories.isEmpty()) {
+            json.name("repositories").beginArray();
+            for (RunReport report : repositories.values()) {
+                json.beginObject();
+                report.writeReport(json, finished);
+                json.endObject();
+            }
+            json.endArray();
+        }
+    }
+
+    private static void writeStats(final JsonWriter json, final Stats stats) throws IOException {
+        json.name("phases").beginObject();
+        for (Phase phase : Phase.values()) {
+            final long count = stats.getCount(phase);
+            if (count == 0) {
+                continue;
+            }
+            json.name(phase.name().toLowerCase(Locale.ENGLISH)).beginObject();
+            json.property("millis", toMillis(stats.getNanos(phase)));
+            json.property("count", count);
+            json.endObject();
+        }
+        json.endObject();
+        json.name("nodes").beginObject();
+        json.property("visited", stats.visited.get());
+        json.property("skippedVirtual", stats.skipped.get(Skip.VIRTUAL.ordinal()));
+        json.property("skippedError", stats.skipped.get(Skip.ERROR.ordinal()));
+        json.property("skippedInvalidItemState", stats.skipped.get(Skip.INVALID_ITEM_STATE.ordinal()));
+        json.property("skippedDuplicate", stats.skipped.get(Skip.DUPLICATE.ordinal()));
+        json.endObject();
+        json.property("visitorErrors", stats.visitorErrors.get());
+    }
+
+    private static double toMillis(final long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private Stats getPluginStats(final String id) {
+        final ConcurrentMap<String, Stats> current = plugins;
+        Stats stats = current.get(id);
+        if (stats == null) {
+            final Stats created = new Stats(id, null);
+            stats = current.putIfAbsent(id, created);
+            if (stats == null) {
+                stats = created;
+                pluginOrder.add(created);
+            }
+        }
+        return stats;
+    }
+
+    private static final class Stats {
+
+        private final String id;
+        private volatile String className;
+        /**
+         * Per phase the total time in nanoseconds and the number of times it was recorded, at twice the ordinal
+         * and the next index.
+         */
+        private final AtomicLongArray times = new AtomicLongArray(Phase.values().length * 2);
+        private final AtomicLong visited = new AtomicLong();
+        private final AtomicLongArray skipped = new AtomicLongArray(Skip.values().length);
+        private final AtomicLong visitorErrors = new AtomicLong();
+
+        Stats(final String id, final String className) {
+            this.id = id;
+            this.className = className;
+        }
+
+        void addTime(final Phase phase, final long nanos) {
+            times.addAndGet(phase.ordinal() * 2, nanos);
+            times.incrementAndGet(phase.ordinal() * 2 + 1);
+        }
+
+        long getNanos(final Phase phase) {
+            return times.get(phase.ordinal() * 2);
+        }
+
+        long getCount(final Phase phase) {
+            return times.get(phase.ordinal() * 2 + 1);
+        }
+
+        void add(final Stats other) {
+            for (int i = 0; i < times.length(); i++) {
+                times.addAndGet(i, other.times.get(i));
+            }
+            visited.addAndGet(other.visited.get());
+            for (int i = 0; i < skipped.length(); i++) {
+                skipped.addAndGet(i, other.skipped.get(i));
+            }
+            visitorErrors.addAndGet(other.visitorErrors.get());
+        }
+    }
+
+    private static final class Subtree {
+
+        private final String plugin;
+        private final String path;
+        private final long nodes;
+
+        Subtree(final String plugin, final String path, final long nodes) {
+            this.plugin = plugin;
+            this.path = path;
+            this.nodes = nodes;
+        }
+    }
+}
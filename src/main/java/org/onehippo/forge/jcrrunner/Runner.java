@@ -15,9 +15,22 @@
  */
 package org.onehippo.forge.jcrrunner;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.Node;
@@ -25,10 +38,30 @@ import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
 
+import org.onehippo.forge.jcrrunner.RunReport.Phase;
+import org.onehippo.forge.jcrrunner.RunReport.Skip;
+import org.onehippo.forge.jcrrunner.mutation.MutationQueue;
+import org.onehippo.forge.jcrrunner.proxy.CallCounter;
+import org.onehippo.forge.jcrrunner.proxy.Interceptor;
+import org.onehippo.forge.jcrrunner.proxy.JcrProxyFactory;
+import org.onehippo.forge.jcrrunner.proxy.NodeMemoizer;
+import org.onehippo.forge.jcrrunner.proxy.NodeTypeInvalidator;
+import org.onehippo.forge.jcrrunner.proxy.TransientSpaceGuard;
+import org.onehippo.forge.jcrrunner.stats.HotspotTracker;
+import org.onehippo.forge.jcrrunner.trace.Span;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
+import org.onehippo.forge.jcrrunner.util.ExternalSorter;
+import org.onehippo.forge.jcrrunner.util.IdentifierSet;
+import org.onehippo.forge.jcrrunner.util.PathOrder;
+import org.onehippo.forge.jcrrunner.util.QuerySplitter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,8 +70,29 @@ public class Runner {
     private static final Logger log = LoggerFactory.getLogger(Runner.class);
 
     private static final String REPOSITORY_QUERY_LANGUAGE_DEFAULT = "xpath";
+    private static final long OBSERVATION_DEBOUNCE_DEFAULT = 1000L;
+    private static final int OBSERVATION_BATCH_SIZE_DEFAULT = 1000;
+    private static final int PREFETCH_DEPTH_DEFAULT = 3;
+    private static final int REPORT_SUBTREE_DEPTH_DEFAULT = 1;
+    private static final int THREADS_DEFAULT = 4;
+    private static final int HOTSPOTS_SIZE_DEFAULT = 10;
+    private static final int CALLS_TOP_DEFAULT = 10;
+    private static final String VISIT_ONCE_STORAGE_DEFAULT = "heap";
+    private static final int VISIT_ONCE_SIZE_DEFAULT = 100000;
+    private static final String QUERY_ORDER_DEFAULT = "none";
+    private static final int QUERY_ORDER_CHUNK_DEFAULT = 100000;
+    private static final String QUERY_SPLIT_DEFAULT = "none";
+    private static final int QUERY_SPLIT_THREADS_DEFAULT = 4;
+    private static final int QUERY_SPLIT_MAX_DEFAULT = 100;
+    private static final int VISIT_BATCH_SIZE_DEFAULT = 1;
+    private static final String SESSION_REFRESH_MODE_DEFAULT = "refresh";
+    private static final String HOTSPOTS_MBEAN_NAME = "org.onehippo.forge.jcrrunner:type=HotspotTracker,plugin=";
 
     private List<RunnerPlugin> plugins = new ArrayList<RunnerPlugin>();
+    private final RunReport report = RunReport.get();
+    private int reportSubtreeDepth = REPORT_SUBTREE_DEPTH_DEFAULT;
+    private int threads = THREADS_DEFAULT;
+    private final List<Runner> concurrentRunners = new CopyOnWriteArrayList<Runner>();
 
     // plugin state
     private static final long MILLISECONDS_IN_SECOND = 1000L;
@@ -47,63 +101,413 @@ public class Runner {
     private List<String> pathElements;
     private int level = 0;
     private int wildcardLevel = -1;
-    private RunnerPlugin activePlugin;
+    private int subtreeLevel;
+    private int traceLevel;
+    private JcrProxyFactory proxyFactory;
+    private HotspotTracker hotspots;
+    private CallCounter callCounter;
+    private NodeMemoizer nodeMemoizer;
+    private String[] visitNodeTypes;
+    private IdentifierSet visitedIdentifiers;
+    private int visitBatchSize;
+    private List<Node> visitBatch = new ArrayList<Node>();
+    private SessionRefresher sessionRefresher;
+    private boolean visitingByPath;
+    private Tracer tracer = Tracer.get();
+    private Span pluginSpan;
     private volatile boolean keepRunning = true;
+    private volatile boolean stopped = false;
+    private boolean started;
 
     //------------------------------- RUNNER LIFECYCLE -----------------------//
     public Runner() {
     }
 
+    /**
+     * Set how many levels below the start path of the path visitor the subtrees are that are timed for the
+     * slowest subtrees of the run report.
+     */
+    public void setReportSubtreeDepth(int reportSubtreeDepth) {
+        this.reportSubtreeDepth = reportSubtreeDepth;
+    }
+
+    /**
+     * Set the maximum number of independent plugins that run at the same time.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Run the plugins in order. Consecutive independent plugins run concurrently, a plugin that is not
+     * independent waits for all plugins before it and the plugins after it wait for it.
+     */
     public void start() {
         log.info("Runners starting.");
-        for (RunnerPlugin plugin : plugins) {
-            initPlugin(plugin);
-            runVisitor(plugin);
-            destroyPlugin(plugin);
-            JcrHelper.refresh(false);
+        synchronized (this) {
+            started = true;
+        }
+        try {
+            int next = 0;
+            while (next < plugins.size() && !stopped) {
+                List<RunnerPlugin> group = nextIndependentGroup(next);
+                if (group.size() > 1) {
+                    runConcurrently(group);
+                    next += group.size();
+                } else {
+                    runPlugin(plugins.get(next));
+                    next++;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                started = false;
+                notifyAll();
+            }
         }
         log.info("Runners finished.");
     }
 
+    /**
+     * Signal the runner to stop. The visitors stop at the next node and the running plugins are destroyed by the
+     * threads running them, use {@link #awaitFinished(long)} to wait for that.
+     */
     public void stop() {
         log.debug("Interrupt intercepted. Stopping runner.");
-        if (activePlugin != null) {
-            destroyPlugin(activePlugin);
+        stopped = true;
+        for (RunnerPlugin plugin : plugins) {
+            if (plugin instanceof StoppablePlugin) {
+                ((StoppablePlugin) plugin).stop();
+            }
+        }
+        for (Runner runner : concurrentRunners) {
+            runner.stop();
+        }
+    }
+
+    /**
+     * Wait until {@link #start()} returned.
+     * @param timeoutMillis the maximum time to wait
+     * @return whether the runner finished, <code>false</code> when a plugin is still busy after the timeout
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (started) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private boolean isRunning() {
+        return keepRunning && !stopped;
+    }
+
+    private void runPlugin(RunnerPlugin plugin) {
+        initPlugin(plugin);
+        runVisitor(plugin);
+        destroyPlugin(plugin);
+        JcrHelper.refresh(false);
+    }
+
+    //------------------------------- CONCURRENT PLUGINS ------------------------//
+    private static boolean isIndependent(RunnerPlugin plugin) {
+        return plugin.getBooleanConfigValue("independent", plugin instanceof IndependentPlugin);
+    }
+
+    private List<RunnerPlugin> nextIndependentGroup(int from) {
+        List<RunnerPlugin> group = new ArrayList<RunnerPlugin>();
+        for (int i = from; i < plugins.size() && isIndependent(plugins.get(i)); i++) {
+            group.add(plugins.get(i));
+        }
+        return group;
+    }
+
+    /**
+     * Run independent plugins at the same time, each with a runner of its own on a session of its own, and wait
+     * until all of them are done.
+     */
+    private void runConcurrently(List<RunnerPlugin> group) {
+        int poolSize = Math.min(threads, group.size());
+        log.info("Running {} independent plugins on {} threads.", group.size(), poolSize);
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        for (final RunnerPlugin plugin : group) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runOwnSession(plugin);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.debug("Waiting for {} concurrent plugins to finish.", concurrentRunners.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+        }
+    }
+
+    private void runOwnSession(RunnerPlugin plugin) {
+        if (stopped) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        thread.setName("runner-" + plugin.getId());
+        Runner runner = new Runner();
+        runner.setReportSubtreeDepth(reportSubtreeDepth);
+        concurrentRunners.add(runner);
+        Session session = null;
+        try {
+            if (stopped) {
+                return;
+            }
+            session = JcrHelper.newVisitorSession();
+            JcrHelper.bindSession(session);
+            runner.runPlugin(plugin);
+        } catch (RepositoryException e) {
+            log.error(plugin.getId() + ": Unable to login session for plugin, skipping plugin.", e);
+        } catch (RuntimeException e) {
+            log.error(plugin.getId() + ": Error while running plugin.", e);
+        } finally {
+            // the session may have been rotated while running the plugin
+            Session bound = JcrHelper.unbindSession();
+            if (bound != null) {
+                bound.logout();
+            }
+            concurrentRunners.remove(runner);
+            thread.setName(threadName);
         }
-        log.info("Runner stopped.");
     }
 
     //------------------------------- VISITOR ------------------------?
-    private void recursiveVisit(RunnerPlugin plugin, String path) throws RepositoryException {
+    /**
+     * @return the number of visited nodes
+     */
+    private long recursiveVisit(RunnerPlugin plugin, String path) throws RepositoryException {
         Node node;
         try {
             node = JcrHelper.getNode(path);
         } catch (PathNotFoundException e) {
             log.info("Path not found: " + path);
-            return;
+            report.nodeSkipped(Skip.ERROR);
+            return 0;
         }
-        counter++;
-        plugin.visit(node);
+        final boolean timed = level == subtreeLevel;
+        final long subtreeStart = timed ? System.nanoTime() : 0L;
+        final Span span = level <= traceLevel ? startSubtreeSpan(path, node) : null;
+        long visited = 0;
+        try {
+            visited = visitSubtree(plugin, path, node);
+            if (timed || span != null) {
+                // the time of the subtree includes the visits of its nodes collected in the batch
+                flushVisitBatch(plugin);
+            }
+        } finally {
+            if (span != null) {
+                span.setAttribute("jcr.nodes", visited);
+                span.end();
+            }
+        }
+        if (timed) {
+            report.subtreeVisited(path, System.nanoTime() - subtreeStart, visited);
+            if (sessionRefresher != null) {
+                sessionRefresher.subtreeVisited();
+                releaseSessionIfDue();
+            }
+        }
+        return visited;
+    }
+
+    private Span startSubtreeSpan(String path, Node node) {
+        return tracer.startSpan("subtree").setAttribute("jcr.path", path)
+                .setAttribute("jcr.primaryType", getPrimaryTypeName(node));
+    }
+
+    private long visitSubtree(RunnerPlugin plugin, String path, Node node) throws RepositoryException {
+        final long start = System.nanoTime();
+        if (isOfNodeType(node, visitNodeTypes)) {
+            visit(plugin, node);
+        }
+        long visited = 1;
+        long children = 0;
 
         if (node.hasNodes()) {
             NodeIterator iter = node.getNodes();
-            while (keepRunning && iter.hasNext()) {
+            while (isRunning() && iter.hasNext()) {
                 final Node child = iter.nextNode();
-                if (child != null && !JcrHelper.isVirtual(child)) {
-                    level++;
-                    try {
-                        String name = child.getName();
-                        if (matchNodePath(name)) {
-                            recursiveVisit(plugin, child.getPath());
-                        }
-                    } catch (InvalidItemStateException e) {
-                        log.warn("InvalidItemStateException while getting child node, the node will be skipped: "
-                                + e.getMessage());
+                children++;
+                if (child == null) {
+                    continue;
+                }
+                if (JcrHelper.isVirtual(child)) {
+                    report.nodeSkipped(Skip.VIRTUAL);
+                    continue;
+                }
+                level++;
+                try {
+                    String name = child.getName();
+                    if (matchNodePath(name, level)) {
+                        visited += recursiveVisit(plugin, child.getPath());
                     }
-                    level--;
+                } catch (InvalidItemStateException e) {
+                    log.warn("InvalidItemStateException while getting child node, the node will be skipped: "
+                            + e.getMessage());
+                    report.nodeSkipped(Skip.INVALID_ITEM_STATE);
                 }
+                level--;
             }
         }
+        hotspots.subtreeVisited(path, visited, children, System.nanoTime() - start);
+        return visited;
+    }
+
+    private void visit(RunnerPlugin plugin, Node node) {
+        if (visitedIdentifiers != null && !markVisited(plugin, node)) {
+            report.nodeSkipped(Skip.DUPLICATE);
+            return;
+        }
+        counter++;
+        report.nodeVisited();
+        if (sessionRefresher != null) {
+            sessionRefresher.nodeVisited();
+        }
+        if (visitBatchSize > 1) {
+            visitBatch.add(node);
+            if (visitBatch.size() >= visitBatchSize) {
+                flushVisitBatch(plugin);
+            }
+            return;
+        }
+        Span span = tracer.startSampledSpan("visit");
+        try {
+            if (span.isRecording()) {
+                span.setAttribute("jcr.path", JcrHelper.safeGetPath(node));
+                span.setAttribute("jcr.primaryType", getPrimaryTypeName(node));
+            }
+            long start = System.nanoTime();
+            plugin.visit(proxyFactory.wrap(node));
+            hotspots.visited(node, System.nanoTime() - start);
+        } finally {
+            if (nodeMemoizer != null) {
+                nodeMemoizer.clear();
+            }
+            // the plugin may have changed and saved node types without the helper
+            JcrHelper.clearNodeTypeNames();
+            span.end();
+        }
+        releaseSessionIfDue();
+    }
+
+    /**
+     * Hand the collected nodes to the plugin, grouped by parent. Batches are timed as a whole, they are not part
+     * of the slowest visits.
+     */
+    private void flushVisitBatch(RunnerPlugin plugin) {
+        if (visitBatch.isEmpty()) {
+            return;
+        }
+        List<Node> nodes = groupByParent(visitBatch);
+        visitBatch = new ArrayList<Node>(visitBatchSize);
+        Span span = tracer.startSampledSpan("visit batch").setAttribute("jcr.nodes", nodes.size());
+        try {
+            for (int i = 0; i < nodes.size(); i++) {
+                nodes.set(i, proxyFactory.wrap(nodes.get(i)));
+            }
+            if (plugin instanceof BatchRunnerPlugin) {
+                ((BatchRunnerPlugin) plugin).visitBatch(nodes);
+            } else {
+                for (Node node : nodes) {
+                    plugin.visit(node);
+                }
+            }
+        } finally {
+            if (nodeMemoizer != null) {
+                nodeMemoizer.clear();
+            }
+            JcrHelper.clearNodeTypeNames();
+            span.end();
+        }
+        releaseSessionIfDue();
+    }
+
+    /**
+     * Release the cached item state of the session when the refresh policy of the plugin says so. The session is
+     * only rotated when the runner holds no other nodes than the one just visited.
+     */
+    private void releaseSessionIfDue() {
+        if (sessionRefresher == null || !sessionRefresher.isDue()) {
+            return;
+        }
+        sessionRefresher.release(visitingByPath && visitBatch.isEmpty());
+        if (nodeMemoizer != null) {
+            nodeMemoizer.clear();
+        }
+    }
+
+    /**
+     * @return the nodes with the children of the same parent next to each other, otherwise in visiting order
+     */
+    private static List<Node> groupByParent(List<Node> nodes) {
+        final Map<Node, String> parents = new IdentityHashMap<Node, String>();
+        for (Node node : nodes) {
+            String path = JcrHelper.safeGetPath(node);
+            int slash = path == null ? -1 : path.lastIndexOf('/');
+            parents.put(node, slash <= 0 ? "/" : path.substring(0, slash));
+        }
+        List<Node> grouped = new ArrayList<Node>(nodes);
+        // stable, so the order within a parent is kept
+        Collections.sort(grouped, new Comparator<Node>() {
+            @Override
+            public int compare(Node node1, Node node2) {
+                return PathOrder.PATH.compare(parents.get(node1), parents.get(node2));
+            }
+        });
+        return grouped;
+    }
+
+    /**
+     * @return whether the node was not visited before
+     */
+    private boolean markVisited(RunnerPlugin plugin, Node node) {
+        try {
+            return visitedIdentifiers.add(node.getIdentifier());
+        } catch (RepositoryException e) {
+            log.debug("Unable to get identifier, visiting node: " + e.getMessage());
+            return true;
+        } catch (IOException e) {
+            // the traversal goes on without skipping visited nodes
+            log.error(plugin.getId() + ": Unable to grow visited identifiers, nodes may be visited twice.", e);
+            closeVisitedIdentifiers(plugin);
+            return true;
+        }
+    }
+
+    private void closeVisitedIdentifiers(RunnerPlugin plugin) {
+        if (visitedIdentifiers != null) {
+            log.info("{}: Visited {} distinct nodes, identifiers took {} bytes.", new Object[] {plugin.getId(),
+                    visitedIdentifiers.size(), visitedIdentifiers.getTableBytes()});
+            visitedIdentifiers.close();
+            visitedIdentifiers = null;
+        }
+    }
+
+    private static String getPrimaryTypeName(Node node) {
+        try {
+            return JcrHelper.getPrimaryTypeName(node);
+        } catch (RepositoryException e) {
+            return null;
+        }
     }
 
     private void runPathVisitor(RunnerPlugin plugin) throws RepositoryException {
@@ -115,18 +519,41 @@ public class Runner {
 
         String absPath = makePathAbsolute(path);
         String startPath = findStartPath(absPath);
-        pathElements = Arrays.asList(absPath.substring(1).split("/"));
+        initPathMatcher(absPath);
         level = startPath.split("/").length - 2;
-        wildcardLevel = pathElements.indexOf("**");
+        subtreeLevel = level + reportSubtreeDepth;
+        traceLevel = tracer.isEnabled() ? level + tracer.getDepth() : -1;
 
         if (JcrHelper.safeItemExists(startPath)) {
             log.info("{}: Using path '{}'", plugin.getId(), path);
-            recursiveVisit(plugin, startPath);
+            JcrHelper.setPrefetchDepth(startPath, getPrefetchDepth(plugin));
+            long traversalStart = System.nanoTime();
+            Span span = tracer.startSpan("path traversal").setAttribute("jcr.path", path);
+            try {
+                recursiveVisit(plugin, startPath);
+                flushVisitBatch(plugin);
+            } finally {
+                span.end();
+                report.addTime(Phase.TRAVERSAL, System.nanoTime() - traversalStart);
+                JcrHelper.setPrefetchDepth(null, 0);
+            }
         } else {
             log.warn("{}: Path not found '{}'. Skipping path visitor.", plugin.getId(), startPath);
         }
     }
 
+    /**
+     * The number of levels below a node the path visitor will descend into, limited by the configured
+     * <code>prefetch.depth</code> for paths ending in <code>**</code>.
+     */
+    private int getPrefetchDepth(RunnerPlugin plugin) {
+        int maxDepth = plugin.getIntConfigValue("prefetch.depth", PREFETCH_DEPTH_DEFAULT);
+        if (wildcardLevel != -1) {
+            return maxDepth;
+        }
+        return Math.max(0, Math.min(maxDepth, pathElements.size() - 1 - level));
+    }
+
     private void runQueryVisitor(RunnerPlugin plugin) throws RepositoryException {
         String query = plugin.getConfigValue("query");
         String language = plugin.getConfigValue("query.language", REPOSITORY_QUERY_LANGUAGE_DEFAULT);
@@ -137,23 +564,349 @@ public class Runner {
 
         log.info("{}: Using query '{}', type '{}'", new String[] {plugin.getId(), query, language});
 
+        List<String> subQueries = splitQuery(plugin, query, language);
+        if (subQueries != null) {
+            runSplitQuery(plugin, subQueries, language);
+            return;
+        }
+
         Session session = JcrHelper.getSession();
-        QueryManager queryManager = session.getWorkspace().getQueryManager();
-        Query jcrQuery = queryManager.createQuery(query, language);
-        QueryResult results = jcrQuery.execute();
-        NodeIterator resultsIter = results.getNodes();
+        long queryStart = System.nanoTime();
+        Span span = tracer.startSpan("query").setAttribute("jcr.query", query)
+                .setAttribute("jcr.query.language", language);
+        NodeIterator resultsIter;
+        try {
+            QueryManager queryManager = session.getWorkspace().getQueryManager();
+            Query jcrQuery = queryManager.createQuery(query, language);
+            QueryResult results = jcrQuery.execute();
+            resultsIter = results.getNodes();
+        } finally {
+            span.end();
+        }
+        long traversalStart = System.nanoTime();
+        report.addTime(Phase.QUERY, traversalStart - queryStart);
+
+        String order = plugin.getConfigValue("query.order", QUERY_ORDER_DEFAULT);
+        span = tracer.startSpan("query traversal").setAttribute("jcr.query.order", order);
+        try {
+            if (QUERY_ORDER_DEFAULT.equalsIgnoreCase(order.trim())) {
+                visitQueryResults(plugin, resultsIter);
+            } else {
+                visitOrderedQueryResults(plugin, resultsIter, PathOrder.fromString(order),
+                        plugin.getIntConfigValue("query.order.chunk", QUERY_ORDER_CHUNK_DEFAULT));
+            }
+            flushVisitBatch(plugin);
+        } finally {
+            span.end();
+            report.addTime(Phase.TRAVERSAL, System.nanoTime() - traversalStart);
+        }
+    }
 
-        while (keepRunning && resultsIter.hasNext()) {
+    /**
+     * Split the query as configured with <code>query.split</code>.
+     * @return the sub-queries, or <code>null</code> to run the query as is
+     */
+    private List<String> splitQuery(RunnerPlugin plugin, String query, String language) throws RepositoryException {
+        QuerySplitter.Mode mode = QuerySplitter.Mode.fromString(
+                plugin.getConfigValue("query.split", QUERY_SPLIT_DEFAULT));
+        if (mode == QuerySplitter.Mode.NONE) {
+            return null;
+        }
+        if (!REPOSITORY_QUERY_LANGUAGE_DEFAULT.equalsIgnoreCase(language)) {
+            log.warn("{}: Only xpath queries can be split, running the query as is.", plugin.getId());
+            return null;
+        }
+        List<String> subQueries;
+        switch (mode) {
+        case FOLDERS:
+            subQueries = splitQueryByFolders(plugin, query);
+            break;
+        case DATES:
+            String property = plugin.getConfigValue("query.split.property");
+            String dates = plugin.getConfigValue("query.split.dates");
+            if (property == null || dates == null) {
+                throw new IllegalArgumentException("Splitting by dates needs query.split.property and "
+                        + "query.split.dates for " + plugin.getId());
+            }
+            subQueries = QuerySplitter.splitByDates(query, property, Arrays.asList(dates.split(",")));
+            break;
+        default:
+            throw new IllegalStateException("Unknown split mode " + mode);
+        }
+        if (subQueries == null) {
+            log.warn("{}: Unable to split query by {}, running the query as is.", plugin.getId(), mode);
+        }
+        return subQueries;
+    }
+
+    /**
+     * Split the query in one sub-query per child folder of its path scope, unless there are more folders than
+     * <code>query.split.max</code>: the sub-queries would cost more than the one query they replace.
+     */
+    private List<String> splitQueryByFolders(RunnerPlugin plugin, String query) throws RepositoryException {
+        String scope = QuerySplitter.getPathScope(query);
+        if (scope == null || !JcrHelper.safeItemExists(scope)) {
+            return null;
+        }
+        int max = plugin.getIntConfigValue("query.split.max", QUERY_SPLIT_MAX_DEFAULT);
+        List<String> childNames = new ArrayList<String>();
+        NodeIterator children = JcrHelper.getNode(scope).getNodes();
+        while (children.hasNext()) {
+            childNames.add(children.nextNode().getName());
+            if (childNames.size() > max) {
+                log.info("{}: More than {} folders below {}, not splitting by folders.", new Object[] {
+                        plugin.getId(), max, scope});
+                return null;
+            }
+        }
+        log.debug("{}: Splitting query by {} folders below {}", new Object[] {plugin.getId(), childNames.size(),
+                scope});
+        return QuerySplitter.splitByFolders(query, childNames);
+    }
+
+    /**
+     * Run the sub-queries in parallel on pooled sessions and visit their merged results with the session of the
+     * runner. The sub-queries run while the results are visited, so the query time overlaps the traversal time.
+     */
+    private void runSplitQuery(RunnerPlugin plugin, List<String> subQueries, String language)
+            throws RepositoryException {
+        int splitThreads = plugin.getIntConfigValue("query.split.threads", QUERY_SPLIT_THREADS_DEFAULT);
+        String order = plugin.getConfigValue("query.order", QUERY_ORDER_DEFAULT);
+        log.info("{}: Running {} sub-queries on {} threads", new Object[] {plugin.getId(), subQueries.size(),
+                splitThreads});
+
+        long traversalStart = System.nanoTime();
+        Span span = tracer.startSpan("split query traversal").setAttribute("jcr.query.split", subQueries.size())
+                .setAttribute("jcr.query.order", order);
+        ParallelQuery results = new ParallelQuery(plugin.getId(), subQueries, language, splitThreads);
+        try {
+            if (QUERY_ORDER_DEFAULT.equalsIgnoreCase(order.trim())) {
+                while (isRunning() && results.hasNext()) {
+                    visitQueryResult(plugin, results.next());
+                }
+            } else {
+                visitOrderedPaths(plugin, results, PathOrder.fromString(order),
+                        plugin.getIntConfigValue("query.order.chunk", QUERY_ORDER_CHUNK_DEFAULT));
+            }
+            flushVisitBatch(plugin);
+        } finally {
+            results.close();
+            span.end();
+            report.addTime(Phase.QUERY, results.getQueryNanos());
+            report.addTime(Phase.TRAVERSAL, System.nanoTime() - traversalStart);
+            report.nodesSkipped(Skip.VIRTUAL, results.getVirtualCount());
+        }
+        if (results.getFailedCount() > 0) {
+            log.warn("{}: {} of {} sub-queries failed, their results are not visited.", new Object[] {
+                    plugin.getId(), results.getFailedCount(), subQueries.size()});
+        }
+    }
+
+    private void visitQueryResults(RunnerPlugin plugin, NodeIterator resultsIter) throws RepositoryException {
+        while (isRunning() && resultsIter.hasNext()) {
             Node child = resultsIter.nextNode();
-            if (child != null && !JcrHelper.isVirtual(child)) {
-                // make sure the node is valid and exists
-                String childPath = JcrHelper.safeGetPath(child);
-                if (JcrHelper.safeItemExists(childPath)) {
-                    counter++;
-                    plugin.visit(child);
+            if (child == null) {
+                continue;
+            }
+            if (JcrHelper.isVirtual(child)) {
+                report.nodeSkipped(Skip.VIRTUAL);
+                continue;
+            }
+            // make sure the node is valid and exists
+            String childPath = JcrHelper.safeGetPath(child);
+            if (!JcrHelper.safeItemExists(childPath)) {
+                report.nodeSkipped(Skip.ERROR);
+            } else if (isOfNodeType(child, visitNodeTypes)) {
+                visit(plugin, child);
+            }
+        }
+    }
+
+    /**
+     * Visit the query results in path order instead of index order, so nodes stored close together in the
+     * repository are visited and saved together. The paths of the results are sorted first, in chunks spilled to
+     * disk, so memory use stays bounded for large result sets.
+     */
+    private void visitOrderedQueryResults(RunnerPlugin plugin, final NodeIterator resultsIter, PathOrder order,
+                                          int chunkSize) throws RepositoryException {
+        visitOrderedPaths(plugin, new Iterator<String>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && resultsIter.hasNext()) {
+                    Node child = resultsIter.nextNode();
+                    if (child == null) {
+                        continue;
+                    }
+                    if (JcrHelper.isVirtual(child)) {
+                        report.nodeSkipped(Skip.VIRTUAL);
+                        continue;
+                    }
+                    next = JcrHelper.safeGetPath(child);
+                    if (next == null) {
+                        report.nodeSkipped(Skip.ERROR);
+                    }
                 }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                hasNext();
+                String path = next;
+                next = null;
+                return path;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, order, chunkSize);
+    }
+
+    private void visitOrderedPaths(RunnerPlugin plugin, Iterator<String> resultPaths, PathOrder order,
+                                   int chunkSize) throws RepositoryException {
+        ExternalSorter sorter = new ExternalSorter(order, chunkSize);
+        try {
+            while (isRunning() && resultPaths.hasNext()) {
+                sorter.add(resultPaths.next());
             }
+            log.info("{}: Visiting {} query results in {} order, sorted in {} chunks on disk", new Object[] {
+                    plugin.getId(), sorter.size(), order, sorter.getSpilledChunks()});
+            Iterator<String> paths = sorter.sorted();
+            while (isRunning() && paths.hasNext()) {
+                visitQueryResult(plugin, paths.next());
+            }
+        } catch (IOException e) {
+            throw new RunnerStopException("Unable to sort query results", e);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    private void visitQueryResult(RunnerPlugin plugin, String path) throws RepositoryException {
+        if (!JcrHelper.safeItemExists(path)) {
+            report.nodeSkipped(Skip.ERROR);
+            return;
         }
+        try {
+            Node node = JcrHelper.getNode(path);
+            if (isOfNodeType(node, visitNodeTypes)) {
+                visitingByPath = true;
+                try {
+                    visit(plugin, node);
+                } finally {
+                    visitingByPath = false;
+                }
+            }
+        } catch (PathNotFoundException e) {
+            log.debug("Query result no longer exists: " + path);
+            report.nodeSkipped(Skip.ERROR);
+        } catch (InvalidItemStateException e) {
+            log.warn("InvalidItemStateException while getting query result, the node will be skipped: "
+                    + e.getMessage());
+            report.nodeSkipped(Skip.INVALID_ITEM_STATE);
+        }
+    }
+
+    private void runObservationVisitor(RunnerPlugin plugin) throws RepositoryException {
+        if (!plugin.getBooleanConfigValue("observation", false)) {
+            log.info("{}: No observation set. Skipping observation visitor.", plugin.getId());
+            return;
+        }
+
+        String path = plugin.getConfigValue("path");
+        String startPath = "/";
+        if (path != null && path.length() > 0) {
+            String absPath = makePathAbsolute(path);
+            initPathMatcher(absPath);
+            if (findStartPath(absPath).length() > 0) {
+                startPath = findStartPath(absPath);
+            }
+        } else {
+            pathElements = null;
+        }
+        String[] nodeTypes = parseNodeTypes(plugin.getConfigValue("observation.nodetypes"));
+        long debounce = plugin.getLongConfigValue("observation.debounce", OBSERVATION_DEBOUNCE_DEFAULT);
+        int batchSize = plugin.getIntConfigValue("observation.batchsize", OBSERVATION_BATCH_SIZE_DEFAULT);
+
+        log.info("{}: Observing changes below '{}'", plugin.getId(), startPath);
+        ObservationCollector collector = new ObservationCollector();
+        ObservationManager observationManager = JcrHelper.getSession().getWorkspace().getObservationManager();
+        // the node type filter of the listener applies to the parent of an added node, not to the node itself
+        observationManager.addEventListener(collector, ObservationCollector.EVENT_TYPES, startPath, true, null,
+                null, true);
+        try {
+            while (isRunning()) {
+                Set<String> batch = collector.takeBatch(debounce, batchSize, debounce);
+                if (!batch.isEmpty()) {
+                    log.debug("{}: Processing {} changed nodes", plugin.getId(), batch.size());
+                    long traversalStart = System.nanoTime();
+                    Span span = tracer.startSpan("observation batch").setAttribute("jcr.nodes", batch.size());
+                    try {
+                        visitChangedNodes(plugin, batch, nodeTypes);
+                        flushVisitBatch(plugin);
+                    } finally {
+                        span.end();
+                        report.addTime(Phase.TRAVERSAL, System.nanoTime() - traversalStart);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            observationManager.removeEventListener(collector);
+        }
+    }
+
+    private void visitChangedNodes(RunnerPlugin plugin, Set<String> paths, String[] nodeTypes)
+            throws RepositoryException {
+        for (String path : paths) {
+            if (!isRunning()) {
+                return;
+            }
+            if (!isMatchingPath(path) || !JcrHelper.safeItemExists(path)) {
+                continue;
+            }
+            try {
+                Node node = JcrHelper.getNode(path);
+                if (JcrHelper.isVirtual(node)) {
+                    report.nodeSkipped(Skip.VIRTUAL);
+                } else if (isOfNodeType(node, nodeTypes)) {
+                    visit(plugin, node);
+                }
+            } catch (PathNotFoundException e) {
+                log.debug("Changed node no longer exists: " + path);
+            } catch (InvalidItemStateException e) {
+                log.warn("InvalidItemStateException while getting changed node, the node will be skipped: "
+                        + e.getMessage());
+                report.nodeSkipped(Skip.INVALID_ITEM_STATE);
+            }
+        }
+    }
+
+    private static String[] parseNodeTypes(String nodeTypeNames) {
+        if (nodeTypeNames == null || nodeTypeNames.trim().length() == 0) {
+            return null;
+        }
+        return nodeTypeNames.trim().split("\\s*,\\s*");
+    }
+
+    /**
+     * Type checks are resolved by the node type cache, they happen for every node.
+     */
+    private boolean isOfNodeType(Node node, String[] nodeTypes) throws RepositoryException {
+        if (nodeTypes == null) {
+            return true;
+        }
+        for (String nodeType : nodeTypes) {
+            if (JcrHelper.isNodeType(node, nodeType)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     //------------------------------- PLUGIN LIFECYCLE -----------------------//
@@ -185,11 +938,192 @@ public class Runner {
 
     public void initPlugin(RunnerPlugin plugin) {
         keepRunning = true;
-        activePlugin = plugin;
         start = System.currentTimeMillis();
         counter = 0;
         log.info("{}: Initializing plugin class: {}", plugin.getId(), plugin.getClass().getName());
-        plugin.init(JcrHelper.getSession());
+        report.beginPlugin(plugin.getId(), plugin.getClass().getName());
+        tracer = Tracer.get();
+        pluginSpan = tracer.startSpan("plugin").setAttribute("plugin.id", plugin.getId())
+                .setAttribute("plugin.class", plugin.getClass().getName());
+        long initStart = System.nanoTime();
+        Span span = tracer.startSpan("init");
+        hotspots = new HotspotTracker(plugin.getIntConfigValue("hotspots.size", HOTSPOTS_SIZE_DEFAULT));
+        registerHotspots(plugin.getId(), hotspots);
+        proxyFactory = createProxyFactory(plugin);
+        visitNodeTypes = parseNodeTypes(plugin.getConfigValue("nodetypes"));
+        visitBatchSize = plugin.getIntConfigValue("visit.batchsize", VISIT_BATCH_SIZE_DEFAULT);
+        visitBatch = new ArrayList<Node>();
+        visitedIdentifiers = createVisitedIdentifiers(plugin);
+        sessionRefresher = createSessionRefresher(plugin);
+        try {
+            plugin.init(proxyFactory.wrap(JcrHelper.getSession()));
+        } finally {
+            span.end();
+            report.addTime(Phase.INIT, System.nanoTime() - initStart);
+        }
+    }
+
+    /**
+     * With <code>visit.once</code> the path and query visitors skip nodes that were already visited, by identifier.
+     */
+    private IdentifierSet createVisitedIdentifiers(RunnerPlugin plugin) {
+        if (!plugin.getBooleanConfigValue("visit.once", false)) {
+            return null;
+        }
+        IdentifierSet.Storage storage = IdentifierSet.Storage.fromString(
+                plugin.getConfigValue("visit.once.storage", VISIT_ONCE_STORAGE_DEFAULT));
+        int expectedSize = plugin.getIntConfigValue("visit.once.size", VISIT_ONCE_SIZE_DEFAULT);
+        try {
+            log.info("{}: Visiting every node once, keeping identifiers in {} storage", plugin.getId(), storage);
+            IdentifierSet identifiers = new IdentifierSet(storage, expectedSize);
+            if (expectedSize > identifiers.getMaxSize()) {
+                log.warn("{}: {} storage holds at most {} identifiers, nodes beyond that may be visited twice.",
+                        new Object[] {plugin.getId(), storage, identifiers.getMaxSize()});
+            }
+            return identifiers;
+        } catch (IOException e) {
+            log.error(plugin.getId() + ": Unable to create visited identifiers, nodes may be visited twice.", e);
+            return null;
+        }
+    }
+
+    /**
+     * With <code>session.refresh.nodes</code> or <code>session.refresh.subtrees</code> the cached item state of the
+     * session is released during the run.
+     */
+    private SessionRefresher createSessionRefresher(RunnerPlugin plugin) {
+        long everyNodes = plugin.getLongConfigValue("session.refresh.nodes", 0L);
+        boolean afterSubtrees = plugin.getBooleanConfigValue("session.refresh.subtrees", false);
+        if (everyNodes <= 0 && !afterSubtrees) {
+            return null;
+        }
+        SessionRefresher.Mode mode = SessionRefresher.Mode.fromString(
+                plugin.getConfigValue("session.refresh.mode", SESSION_REFRESH_MODE_DEFAULT));
+        if (mode == SessionRefresher.Mode.ROTATE && (plugin.getLongConfigValue("transient.maxitems", 0L) > 0
+                || plugin.getLongConfigValue("transient.maxbytes", 0L) > 0)) {
+            // the transient space guard keeps the session it was created with
+            log.warn("{}: Sessions can not be rotated when limiting unsaved changes, refreshing instead.",
+                    plugin.getId());
+            mode = SessionRefresher.Mode.REFRESH;
+        }
+        log.info("{}: Releasing the session every {} nodes{}, mode {}", new Object[] {plugin.getId(),
+                everyNodes > 0 ? everyNodes : "-", afterSubtrees ? " and after every subtree" : "", mode});
+        return new SessionRefresher(plugin.getId(), Math.max(0L, everyNodes), afterSubtrees, mode);
+    }
+
+    /**
+     * The session and nodes handed to the plugin are wrapped to intercept its calls, if configured.
+     */
+    private JcrProxyFactory createProxyFactory(RunnerPlugin plugin) {
+        List<Interceptor> interceptors = new ArrayList<Interceptor>();
+        long maxItems = plugin.getLongConfigValue("transient.maxitems", 0L);
+        long maxBytes = plugin.getLongConfigValue("transient.maxbytes", 0L);
+        if (maxItems > 0 || maxBytes > 0) {
+            log.info("{}: Saving unsaved changes at {} items or {} bytes",
+                    new Object[] {plugin.getId(), maxItems, maxBytes});
+            interceptors.add(new TransientSpaceGuard(plugin.getId(), JcrHelper.getSession(), maxItems, maxBytes));
+        }
+        nodeMemoizer = null;
+        if (plugin.getBooleanConfigValue("visit.memoize", false)) {
+            log.info("{}: Remembering node reads during visits", plugin.getId());
+            // before the counter, so only the calls that reach the repository are counted
+            nodeMemoizer = new NodeMemoizer();
+            interceptors.add(nodeMemoizer);
+        }
+        callCounter = null;
+        boolean timing = plugin.getBooleanConfigValue("calls.timing", false);
+        if (timing || plugin.getBooleanConfigValue("calls.count", false)) {
+            log.info("{}: Counting JCR calls{}", plugin.getId(), timing ? " and their time" : "");
+            // last, to count the calls that reach the repository
+            callCounter = new CallCounter(timing);
+            interceptors.add(callCounter);
+        }
+        if (!interceptors.isEmpty()) {
+            interceptors.add(0, new NodeTypeInvalidator());
+        }
+        return new JcrProxyFactory(interceptors);
+    }
+
+    /**
+     * Make the hotspots of the plugin available over JMX while it runs, replacing those of an earlier run of the
+     * plugin.
+     */
+    private void registerHotspots(String id, HotspotTracker tracker) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(HOTSPOTS_MBEAN_NAME + ObjectName.quote(id));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(tracker, name);
+        } catch (JMException e) {
+            log.warn("{}: Unable to register hotspot tracker over JMX: {}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the hotspots of a destroyed plugin from JMX, so a long running process does not keep them.
+     */
+    private void unregisterHotspots(String id) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(HOTSPOTS_MBEAN_NAME + ObjectName.quote(id));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("{}: Unable to unregister hotspot tracker from JMX: {}", id, e.getMessage());
+        }
+    }
+
+    private void logHotspots(String id) {
+        logLines(id, "Slowest visits", hotspots.getSlowestVisits());
+        logLines(id, "Largest subtrees", hotspots.getLargestSubtrees());
+        logLines(id, "Slowest subtrees", hotspots.getSlowestSubtrees());
+        logLines(id, "Widest nodes", hotspots.getWidestNodes());
+    }
+
+    private void logMemoized(RunnerPlugin plugin) {
+        if (nodeMemoizer == null) {
+            return;
+        }
+        long hits = nodeMemoizer.getHits();
+        log.info("{}: Answered {} of {} node reads from memory.", new Object[] {plugin.getId(), hits,
+                hits + nodeMemoizer.getMisses()});
+    }
+
+    private void logSessionReleases(RunnerPlugin plugin) {
+        if (sessionRefresher == null) {
+            return;
+        }
+        log.info("{}: Refreshed the session {} times, rotated it {} times.", new Object[] {plugin.getId(),
+                sessionRefresher.getRefreshes(), sessionRefresher.getRotations()});
+        sessionRefresher = null;
+    }
+
+    private void logCalls(RunnerPlugin plugin) {
+        if (callCounter == null) {
+            return;
+        }
+        long calls = callCounter.getCount();
+        log.info("{}: Made {} JCR calls, {} per visited node.", new Object[] {plugin.getId(), calls,
+                String.format(Locale.ENGLISH, "%.1f", (double) calls / Math.max(1L, counter))});
+        int top = plugin.getIntConfigValue("calls.top", CALLS_TOP_DEFAULT);
+        logLines(plugin.getId(), "Most called methods", callCounter.getTopByCount(top).toArray(new String[0]));
+        if (callCounter.isTiming()) {
+            logLines(plugin.getId(), "Slowest methods", callCounter.getTopByTime(top).toArray(new String[0]));
+        }
+    }
+
+    private void logLines(String id, String title, String[] lines) {
+        if (lines.length == 0) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(id).append(": ").append(title).append(':');
+        for (String line : lines) {
+            message.append("\n    ").append(line);
+        }
+        log.info(message.toString());
     }
 
     public void runVisitor(RunnerPlugin plugin) {
@@ -197,6 +1131,7 @@ public class Runner {
             runPathVisitor(plugin);
         } catch (RepositoryException e) {
             log.error(plugin.getId() + ": Error while trying to run path visitor for " + plugin.getId(), e);
+            report.visitorFailed();
         } catch (RunnerStopException e) {
             log.info(plugin.getId() + ": Path visitor stopped: {}", e.getMessage());
         }
@@ -204,17 +1139,48 @@ public class Runner {
             runQueryVisitor(plugin);
         } catch (RepositoryException e) {
             log.error(plugin.getId() + ": Error while trying to run query visitor for " + plugin.getId(), e);
+            report.visitorFailed();
         } catch (RunnerStopException e) {
             log.info(plugin.getId() + ": Query visitor stopped: {}", e.getMessage());
         }
+        // changed nodes are visited again on every change
+        closeVisitedIdentifiers(plugin);
+        try {
+            runObservationVisitor(plugin);
+        } catch (RepositoryException e) {
+            log.error(plugin.getId() + ": Error while trying to run observation visitor for " + plugin.getId(), e);
+            report.visitorFailed();
+        } catch (RunnerStopException e) {
+            log.info(plugin.getId() + ": Observation visitor stopped: {}", e.getMessage());
+        }
     }
 
     public void destroyPlugin(RunnerPlugin plugin) {
         keepRunning = false;
-        activePlugin = null;
-        plugin.destroy(JcrHelper.getSession());
+        if (!visitBatch.isEmpty()) {
+            log.info("{}: Stopped before visiting the last batch of {} nodes.", plugin.getId(), visitBatch.size());
+            visitBatch = new ArrayList<Node>();
+        }
+        long destroyStart = System.nanoTime();
+        Span span = tracer.startSpan("destroy");
+        try {
+            plugin.destroy(proxyFactory.wrap(JcrHelper.getSession()));
+        } finally {
+            span.end();
+            report.addTime(Phase.DESTROY, System.nanoTime() - destroyStart);
+        }
+        MutationQueue.closeAll(plugin.getId());
+        ResultSink.closeAll(plugin.getId());
+        closeVisitedIdentifiers(plugin);
+        logSessionReleases(plugin);
+        report.endPlugin();
+        pluginSpan.setAttribute("jcr.nodes", counter).end();
         long duration = (System.currentTimeMillis() - start) / MILLISECONDS_IN_SECOND;
         log.info(plugin.getId() + ": Visited " + counter + " nodes in " + duration + " seconds.");
+        logHotspots(plugin.getId());
+        unregisterHotspots(plugin.getId());
+        logMemoized(plugin);
+        logCalls(plugin);
         log.info("{}: Destroying plugin class: {}", plugin.getId(), plugin.getClass().getName());
     }
 
@@ -244,20 +1210,45 @@ public class Runner {
         return beginPath;
     }
 
+    private void initPathMatcher(String absPath) {
+        pathElements = Arrays.asList(absPath.substring(1).split("/"));
+        wildcardLevel = pathElements.indexOf("**");
+    }
+
+    /**
+     * Match all elements of an absolute path against the configured path, as if the node was reached by
+     * the path visitor. Every path matches if no path is configured.
+     */
+    private boolean isMatchingPath(String absPath) {
+        if (pathElements == null) {
+            return true;
+        }
+        if ("/".equals(absPath)) {
+            return false;
+        }
+        String[] elements = absPath.substring(1).split("/");
+        for (int depth = 0; depth < elements.length; depth++) {
+            if (!matchNodePath(elements[depth], depth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Match:
      * - /asdf/**
      * - /asdf/asd*sdf
      * - /asdf/qwer
      */
-    private boolean matchNodePath(String path) {
-        if (wildcardLevel != -1 && level >= wildcardLevel) {
+    private boolean matchNodePath(String path, int depth) {
+        if (wildcardLevel != -1 && depth >= wildcardLevel) {
             return true;
         }
-        if (level >= pathElements.size()) {
+        if (depth >= pathElements.size()) {
             return false;
         }
-        String element = pathElements.get(level);
+        String element = pathElements.get(depth);
         if (element.equals("*")) {
             return true;
         }
@@ -26,14 +26,44 @@ public final class RunnerConfig {
     private static final String REPOSITORY_USER = "repository.user";
     private static final String REPOSITORY_PASS = "repository.pass";
 
+    private static final String REPORT_FILE = "report.file";
+    private static final String REPORT_SUBTREE_DEPTH = "report.subtreedepth";
+    private static final int REPORT_SUBTREE_DEPTH_DEFAULT = 1;
+
+    private static final String TRACE_FILE = "trace.file";
+    private static final String TRACE_SAMPLE = "trace.sample";
+    private static final String TRACE_DEPTH = "trace.depth";
+    private static final double TRACE_SAMPLE_DEFAULT = 0.01;
+    private static final int TRACE_DEPTH_DEFAULT = 2;
+
+    private static final String REPOSITORIES = "repositories";
+    private static final String REPOSITORY_NAME_PLACEHOLDER = "${repository}";
+
+    private static final String DAEMON_PORT = "daemon.port";
+    private static final String DAEMON_TOKEN = "daemon.token";
+    private static final String DAEMON_PLUGINS = "daemon.plugins";
+
+    private static final String RUNNER_THREADS = "runner.threads";
+    private static final int RUNNER_THREADS_DEFAULT = 4;
+
     private static final String PLUGINS_JAVA = "plugins.java";
     private static final String PLUGINS_BEANSHELL = "plugins.beanshell";
 
     private SortedMap<String, RunnerPluginConfig> pluginConfigMap = new TreeMap<String, RunnerPluginConfig>();
+    private SortedMap<String, Repository> repositoryMap = new TreeMap<String, Repository>();
 
     private String repositoryUrl;
     private String repositoryUser;
     private String repositoryPass;
+    private String reportFile;
+    private int reportSubtreeDepth = REPORT_SUBTREE_DEPTH_DEFAULT;
+    private String traceFile;
+    private double traceSample = TRACE_SAMPLE_DEFAULT;
+    private int traceDepth = TRACE_DEPTH_DEFAULT;
+    private int runnerThreads = RUNNER_THREADS_DEFAULT;
+    private int daemonPort = -1;
+    private String daemonToken;
+    private Set<String> daemonPlugins = new HashSet<String>();
 
     public String getRepositoryUrl() {
         return repositoryUrl;
@@ -59,10 +89,133 @@ public final class RunnerConfig {
         this.repositoryPass = repositoryPass;
     }
 
+    /**
+     * @return the file to write the run report to, <code>null</code> if no report is written
+     */
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    public int getReportSubtreeDepth() {
+        return reportSubtreeDepth;
+    }
+
+    public void setReportSubtreeDepth(int reportSubtreeDepth) {
+        this.reportSubtreeDepth = reportSubtreeDepth;
+    }
+
+    /**
+     * @return the file to export trace spans to, <code>null</code> if the run is not traced
+     */
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public void setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    /**
+     * @return the fraction of visits that get a span
+     */
+    public double getTraceSample() {
+        return traceSample;
+    }
+
+    public void setTraceSample(double traceSample) {
+        this.traceSample = traceSample;
+    }
+
+    /**
+     * @return the number of levels below the start path that get a span per subtree
+     */
+    public int getTraceDepth() {
+        return traceDepth;
+    }
+
+    public void setTraceDepth(int traceDepth) {
+        this.traceDepth = traceDepth;
+    }
+
+    /**
+     * @return the maximum number of independent plugins that run at the same time
+     */
+    public int getRunnerThreads() {
+        return runnerThreads;
+    }
+
+    public void setRunnerThreads(int runnerThreads) {
+        this.runnerThreads = runnerThreads;
+    }
+
+    /**
+     * @return the port on localhost the daemon accepts jobs on, -1 to run the configured plugins once
+     */
+    public int getDaemonPort() {
+        return daemonPort;
+    }
+
+    public void setDaemonPort(int daemonPort) {
+        this.daemonPort = daemonPort;
+    }
+
+    /**
+     * @return the token every request to the daemon must carry, the daemon does not start without one
+     */
+    public String getDaemonToken() {
+        return daemonToken;
+    }
+
+    public void setDaemonToken(String daemonToken) {
+        this.daemonToken = daemonToken;
+    }
+
+    /**
+     * @return the plugin classes jobs submitted to the daemon may use
+     */
+    public Set<String> getDaemonPlugins() {
+        return daemonPlugins;
+    }
+
+    public void setDaemonPlugins(Set<String> daemonPlugins) {
+        this.daemonPlugins = daemonPlugins;
+    }
+
     public List<RunnerPluginConfig> getPluginConfigs() {
         return new ArrayList<RunnerPluginConfig>(pluginConfigMap.values());
     }
 
+    /**
+     * Get the plugin configs for running against one of several repositories. The plugin ids are prefixed with
+     * the name of the repository and <code>${repository}</code> in the values is replaced by it, so output files
+     * of the repositories do not overwrite each other.
+     * @param repositoryName the name of the repository
+     * @return the plugin configs
+     */
+    public List<RunnerPluginConfig> getPluginConfigs(String repositoryName) {
+        List<RunnerPluginConfig> configs = new ArrayList<RunnerPluginConfig>(pluginConfigMap.size());
+        for (RunnerPluginConfig config : pluginConfigMap.values()) {
+            RunnerPluginConfig copy = new RunnerPluginConfig(repositoryName + "." + config.getId(), config.getType());
+            for (Entry<String, String> entry : config.getEntries().entrySet()) {
+                copy.addEntry(entry.getKey(), entry.getValue().replace(REPOSITORY_NAME_PLACEHOLDER, repositoryName));
+            }
+            configs.add(copy);
+        }
+        return configs;
+    }
+
+    /**
+     * @return the repositories to run the plugins against concurrently, empty when only the repository of
+     * <code>repository.url</code> is used
+     */
+    public List<Repository> getRepositories() {
+        return new ArrayList<Repository>(repositoryMap.values());
+    }
+
     public RunnerConfig(InputStream inputStream) throws IOException {
         Properties props = new Properties();
         props.load(inputStream);
@@ -75,6 +228,7 @@ public final class RunnerConfig {
 
     private void initializeRunnerConfig(Properties props) {
         readRunnerConfig(props);
+        readRepositories(props);
         validateRunnerConfig();
         readPluginInformation(props);
     }
@@ -83,16 +237,75 @@ public final class RunnerConfig {
         setRepositoryUrl(props.getProperty(REPOSITORY_URL));
         setRepositoryUser(props.getProperty(REPOSITORY_USER));
         setRepositoryPass(props.getProperty(REPOSITORY_PASS));
+        setReportFile(props.getProperty(REPORT_FILE));
+        String subtreeDepth = props.getProperty(REPORT_SUBTREE_DEPTH);
+        if (!isEmpty(subtreeDepth)) {
+            setReportSubtreeDepth(Integer.parseInt(subtreeDepth.trim()));
+        }
+        setTraceFile(props.getProperty(TRACE_FILE));
+        String traceSampleValue = props.getProperty(TRACE_SAMPLE);
+        if (!isEmpty(traceSampleValue)) {
+            setTraceSample(Double.parseDouble(traceSampleValue.trim()));
+        }
+        String traceDepthValue = props.getProperty(TRACE_DEPTH);
+        if (!isEmpty(traceDepthValue)) {
+            setTraceDepth(Integer.parseInt(traceDepthValue.trim()));
+        }
+        String threadsValue = props.getProperty(RUNNER_THREADS);
+        if (!isEmpty(threadsValue)) {
+            setRunnerThreads(Integer.parseInt(threadsValue.trim()));
+        }
+        String daemonPortValue = props.getProperty(DAEMON_PORT);
+        if (!isEmpty(daemonPortValue)) {
+            setDaemonPort(Integer.parseInt(daemonPortValue.trim()));
+        }
+        setDaemonToken(props.getProperty(DAEMON_TOKEN));
+        String daemonPluginsValue = props.getProperty(DAEMON_PLUGINS);
+        if (!isEmpty(daemonPluginsValue)) {
+            Set<String> classNames = new HashSet<String>();
+            for (String className : daemonPluginsValue.split(",")) {
+                if (!isEmpty(className.trim())) {
+                    classNames.add(className.trim());
+                }
+            }
+            setDaemonPlugins(classNames);
+        }
+    }
+
+    /**
+     * Read the repositories configured as <code>repositories.&lt;name&gt;.url</code>, <code>.user</code> and
+     * <code>.pass</code>. The user and password default to <code>repository.user</code> and
+     * <code>repository.pass</code>.
+     */
+    private void readRepositories(Properties props) {
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(REPOSITORIES + ".") && key.endsWith(".url")) {
+                String name = key.substring(REPOSITORIES.length() + 1, key.length() - ".url".length());
+                String prefix = REPOSITORIES + "." + name + ".";
+                repositoryMap.put(name, new Repository(name, props.getProperty(key),
+                        props.getProperty(prefix + "user", getRepositoryUser()),
+                        props.getProperty(prefix + "pass", getRepositoryPass())));
+            }
+        }
     }
 
     private void validateRunnerConfig() {
-        if (isEmpty(getRepositoryUrl())) {
+        if (repositoryMap.isEmpty() && isEmpty(getRepositoryUrl())) {
             throw new IllegalArgumentException(REPOSITORY_URL + " is missing.");
         }
-        if (isEmpty(getRepositoryUser())) {
+        for (Repository repository : repositoryMap.values()) {
+            if (isEmpty(repository.getUrl())) {
+                throw new IllegalArgumentException(REPOSITORIES + "." + repository.getName() + ".url is missing.");
+            }
+            if (isEmpty(repository.getUser()) || isEmpty(repository.getPass())) {
+                throw new IllegalArgumentException("User or password of repository " + repository.getName()
+                        + " is missing.");
+            }
+        }
+        if (repositoryMap.isEmpty() && isEmpty(getRepositoryUser())) {
             throw new IllegalArgumentException(REPOSITORY_USER + " is missing.");
         }
-        if (isEmpty(getRepositoryPass())) {
+        if (repositoryMap.isEmpty() && isEmpty(getRepositoryPass())) {
             throw new IllegalArgumentException(REPOSITORY_PASS + " is missing.");
         }
     }
@@ -130,4 +343,38 @@ public final class RunnerConfig {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * One of several repositories to run the plugins against.
+     */
+    public static final class Repository {
+
+        private final String name;
+        private final String url;
+        private final String user;
+        private final String pass;
+
+        public Repository(String name, String url, String user, String pass) {
+            this.name = name;
+            this.url = url;
+            this.user = user;
+            this.pass = pass;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getPass() {
+            return pass;
+        }
+    }
+}
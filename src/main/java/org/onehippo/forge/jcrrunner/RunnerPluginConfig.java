@@ -15,6 +15,7 @@
  */
 package org.onehippo.forge.jcrrunner;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -48,4 +49,8 @@ public class RunnerPluginConfig {
         return properties.get(key);
     }
 
+    public Map<String, String> getEntries() {
+        return Collections.unmodifiableMap(properties);
+    }
+
 }
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.LinkedList;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of extra sessions on the connected repository, for work that runs in parallel to the main
+ * session. JCR sessions are not thread safe, so a borrowed session must only be used by one thread at a time.
+ */
+public class SessionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionPool.class);
+
+    private final int maxSize;
+    private final LinkedList<Session> idle = new LinkedList<Session>();
+    /**
+     * The number of sessions logged in or being logged in by the pool.
+     */
+    private int size;
+    private boolean closed;
+
+    /**
+     * @param maxSize the maximum number of sessions in the pool
+     */
+    public SessionPool(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Borrow a session, logging in a new one if the pool is not full yet, otherwise waiting until a session
+     * is released.
+     * @return a live session
+     * @throws RepositoryException when logging in a new session fails
+     * @throws InterruptedException when interrupted while waiting for a session
+     */
+    public Session borrow() throws RepositoryException, InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("Session pool is closed.");
+                }
+                if (!idle.isEmpty()) {
+                    return idle.removeFirst();
+                }
+                if (size < maxSize) {
+                    // reserve the slot, the login itself happens outside the lock
+                    size++;
+                    break;
+                }
+                wait();
+            }
+        }
+        boolean loggedIn = false;
+        try {
+            final Session session = JcrHelper.newSession();
+            loggedIn = true;
+            return session;
+        } finally {
+            if (!loggedIn) {
+                synchronized (this) {
+                    size--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a session to the pool. Unsaved changes are discarded and the cached item state is released.
+     * @param session the borrowed session
+     */
+    public void release(final Session session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            log.warn("Error while refreshing pooled session, the session is discarded: " + e.getMessage());
+            discard(session);
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                session.logout();
+                return;
+            }
+            idle.addLast(session);
+            notifyAll();
+        }
+    }
+
+    private void discard(final Session session) {
+        synchronized (this) {
+            size--;
+            notifyAll();
+        }
+        session.logout();
+    }
+
+    /**
+     * Logout all sessions. Borrowed sessions are logged out when they are released.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Session session : idle) {
+                session.logout();
+            }
+            idle.clear();
+            notifyAll();
+        }
+    }
+}
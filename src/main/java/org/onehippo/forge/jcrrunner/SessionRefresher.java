@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.Locale;
+
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrrunner.trace.Span;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Releases the item state the session of a runner caches during a long run, every number of visited nodes or
+ * after every timed subtree of the path visitor, so memory use and the visiting rate stay the same from the
+ * start of a run to its end. Unsaved changes are saved first.
+ * <ul>
+ *     <li>{@link Mode#REFRESH}: refresh the session, dropping the cached state of items that are not modified</li>
+ *     <li>{@link Mode#ROTATE}: replace the session by a new one and logout the old one, which releases the state
+ *     kept for it by the repository as well. Only done while the runner holds no nodes of the session, when
+ *     visiting sorted or split query results. Refreshes otherwise.</li>
+ * </ul>
+ * When rotating, plugins must get the session from the visited nodes or from {@link JcrHelper#getSession()}, the
+ * session passed to <code>init</code> is logged out at the first rotation.
+ */
+public final class SessionRefresher {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionRefresher.class);
+
+    public enum Mode {
+        REFRESH, ROTATE;
+
+        public static Mode fromString(final String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private final String owner;
+    private final long everyNodes;
+    private final boolean afterSubtrees;
+    private final Mode mode;
+
+    private long sinceRelease;
+    private boolean subtreeDone;
+    private long refreshes;
+    private long rotations;
+
+    /**
+     * @param owner the id of the plugin, for logging
+     * @param everyNodes the number of visited nodes after which the session is released, 0 for never
+     * @param afterSubtrees whether to release the session after every timed subtree
+     * @param mode how to release the session
+     */
+    public SessionRefresher(final String owner, final long everyNodes, final boolean afterSubtrees,
+                            final Mode mode) {
+        if (everyNodes < 0) {
+            throw new IllegalArgumentException("Number of nodes can not be negative: " + everyNodes);
+        }
+        this.owner = owner;
+        this.everyNodes = everyNodes;
+        this.afterSubtrees = afterSubtrees;
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void nodeVisited() {
+        sinceRelease++;
+    }
+
+    public void subtreeVisited() {
+        subtreeDone = afterSubtrees;
+    }
+
+    /**
+     * @return whether the session should be released
+     */
+    public boolean isDue() {
+        return subtreeDone || (everyNodes > 0 && sinceRelease >= everyNodes);
+    }
+
+    /**
+     * Save the unsaved changes and release the cached item state of the session of the current thread.
+     * @param canRotate whether no nodes of the session are in use, so the session can be replaced
+     */
+    public void release(final boolean canRotate) {
+        sinceRelease = 0;
+        subtreeDone = false;
+        final Span span = Tracer.get().startSpan("session release").setAttribute("plugin.id", owner);
+        try {
+            if (JcrHelper.getSession().hasPendingChanges() && !JcrHelper.save()) {
+                log.warn("{}: Unable to save pending changes, keeping the session as it is.", owner);
+                return;
+            }
+            if (mode == Mode.ROTATE && canRotate) {
+                JcrHelper.rotateSession();
+                rotations++;
+                span.setAttribute("rotated", true);
+            } else {
+                JcrHelper.refresh(false);
+                refreshes++;
+            }
+        } catch (RepositoryException e) {
+            log.warn("{}: Unable to release the session: {}", owner, e.getMessage());
+        } finally {
+            span.end();
+        }
+    }
+
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    public long getRotations() {
+        return rotations;
+    }
+}
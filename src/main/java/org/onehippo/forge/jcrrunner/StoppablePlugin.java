@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+/**
+ * Plugin that does work outside of its visits, for instance on threads of its own or while it is destroyed, and
+ * cuts that work short when the runner is stopped.
+ */
+public interface StoppablePlugin extends RunnerPlugin {
+
+    /**
+     * Called from the thread stopping the runner, while the plugin may still be visiting or being destroyed.
+     * Must not block.
+     */
+    void stop();
+}
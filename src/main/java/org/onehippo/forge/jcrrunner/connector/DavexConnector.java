@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Credentials;
+import javax.jcr.NamespaceException;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.commons.conversion.PathResolver;
+import org.apache.jackrabbit.spi2davex.BatchReadConfig;
+
+/**
+ * Connects over the batch oriented WebDAV remoting protocol (jcr2spi on top of spi2davex). Reading a node
+ * also reads the configured number of levels below it, with all their properties, in the same request.
+ * <p>
+ * The batch read config belongs to the remoting client of a repository. Sessions that never prefetch share one
+ * client, visitor sessions are logged in on a client of their own, so the prefetch depth set for one of them does
+ * not change the reads of sessions used by other threads. The client of a visitor session that is logged out is
+ * reused by the next visitor session.
+ */
+final class DavexConnector implements PrefetchingConnector {
+
+    /**
+     * Parameters of the jcr2dav <code>RepositoryFactory</code>.
+     */
+    static final String REPOSITORY_URI = "org.apache.jackrabbit.spi2davex.uri";
+    static final String BATCH_READ_CONFIG = "org.apache.jackrabbit.spi2davex.BatchReadConfig";
+
+    private final String url;
+    private Repository sharedClient;
+    private final Map<Session, Client> visitorClients = new HashMap<Session, Client>();
+    private final List<Client> idleClients = new ArrayList<Client>();
+
+    /**
+     * The remoting client is created on login, a missing jackrabbit-jcr2dav or an unreachable server are reported
+     * by the first login.
+     */
+    DavexConnector(final String url) {
+        this.url = url;
+    }
+
+    private static Repository getRepository(final String url, final PrefetchConfig prefetchConfig)
+            throws RepositoryException {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(REPOSITORY_URI, url);
+        parameters.put(BATCH_READ_CONFIG, prefetchConfig);
+        return getRepository(parameters);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Repository getRepository(final Map parameters) throws RepositoryException {
+        // the factories also accept non string parameters like the batch read config
+        return JcrUtils.getRepository(parameters);
+    }
+
+    @Override
+    public Session login(final Credentials credentials) throws RepositoryException {
+        return getSharedClient().login(credentials);
+    }
+
+    private synchronized Repository getSharedClient() throws RepositoryException {
+        if (sharedClient == null) {
+            // the config is never changed, the sessions of the shared client read node by node
+            sharedClient = getRepository(url, new PrefetchConfig());
+        }
+        return sharedClient;
+    }
+
+    @Override
+    public Session loginVisitor(final Credentials credentials) throws RepositoryException {
+        Client client = reuseClient();
+        if (client == null) {
+            final PrefetchConfig prefetchConfig = new PrefetchConfig();
+            client = new Client(getRepository(url, prefetchConfig), prefetchConfig);
+        }
+        return register(client.repository.login(credentials), client);
+    }
+
+    Session register(final Session session, final Client client) {
+        synchronized (visitorClients) {
+            visitorClients.put(session, client);
+        }
+        return session;
+    }
+
+    /**
+     * Take the client of a logged out visitor session, with its prefetch depth reset.
+     * @return the client, <code>null</code> if all clients are in use
+     */
+    Client reuseClient() {
+        synchronized (visitorClients) {
+            final Iterator<Map.Entry<Session, Client>> entries = visitorClients.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<Session, Client> entry = entries.next();
+                if (!entry.getKey().isLive()) {
+                    entries.remove();
+                    idleClients.add(entry.getValue());
+                }
+            }
+            if (idleClients.isEmpty()) {
+                return null;
+            }
+            final Client client = idleClients.remove(idleClients.size() - 1);
+            client.prefetchConfig.setDepth(null, 0);
+            return client;
+        }
+    }
+
+    PrefetchConfig getPrefetchConfig(final Session session) {
+        synchronized (visitorClients) {
+            final Client client = visitorClients.get(session);
+            return client != null ? client.prefetchConfig : null;
+        }
+    }
+
+    @Override
+    public boolean isHippo() {
+        return false;
+    }
+
+    @Override
+    public void setPrefetchDepth(final Session session, final String basePath, final int depth) {
+        final PrefetchConfig prefetchConfig = getPrefetchConfig(session);
+        if (prefetchConfig != null) {
+            prefetchConfig.setDepth(basePath, depth);
+        }
+    }
+
+    @Override
+    public void copyPrefetchDepth(final Session from, final Session to) {
+        final PrefetchConfig source = getPrefetchConfig(from);
+        final PrefetchConfig target = getPrefetchConfig(to);
+        if (source != null && target != null) {
+            target.copy(source);
+        }
+    }
+
+    /**
+     * Drop the remoting clients, jcr2dav has no call to shut one down. Their connections are closed when the
+     * connection managers are collected.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            sharedClient = null;
+        }
+        synchronized (visitorClients) {
+            visitorClients.clear();
+            idleClients.clear();
+        }
+    }
+
+    /**
+     * A remoting client with the batch read config it was created with.
+     */
+    static final class Client {
+
+        private final Repository repository;
+        private final PrefetchConfig prefetchConfig;
+
+        Client(final Repository repository, final PrefetchConfig prefetchConfig) {
+            this.repository = repository;
+            this.prefetchConfig = prefetchConfig;
+        }
+    }
+
+    /**
+     * Batch read config that prefetches at a single depth below a base path and reads only the node itself
+     * elsewhere. Changes apply to the next read, the config is consulted for every node fetched.
+     */
+    static final class PrefetchConfig implements BatchReadConfig {
+
+        private String basePath;
+        private int depth;
+
+        synchronized void setDepth(final String basePath, final int depth) {
+            if (depth < 0) {
+                throw new IllegalArgumentException("Prefetch depth can not be negative: " + depth);
+            }
+            this.basePath = basePath;
+            this.depth = depth;
+        }
+
+        void copy(final PrefetchConfig other) {
+            final String otherBasePath;
+            final int otherDepth;
+            synchronized (other) {
+                otherBasePath = other.basePath;
+                otherDepth = other.depth;
+            }
+            setDepth(otherBasePath, otherDepth);
+        }
+
+        @Override
+        public int getDepth(final Path path, final PathResolver resolver) throws NamespaceException {
+            return getDepth(resolver.getJCRPath(path));
+        }
+
+        synchronized int getDepth(final String path) {
+            if (basePath == null) {
+                return 0;
+            }
+            if ("/".equals(basePath) || path.equals(basePath) || path.startsWith(basePath + "/")) {
+                return depth;
+            }
+            return 0;
+        }
+    }
+}
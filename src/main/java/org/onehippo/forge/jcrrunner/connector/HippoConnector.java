@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.repository.HippoRepository;
+import org.hippoecm.repository.HippoRepositoryFactory;
+
+/**
+ * Connects through the {@link HippoRepositoryFactory}, which handles both <code>rmi://</code> urls and
+ * <code>vm://</code> urls of a repository running in the same JVM.
+ */
+final class HippoConnector implements RepositoryConnector {
+
+    private final HippoRepository repository;
+
+    HippoConnector(final String url) throws RepositoryException {
+        repository = HippoRepositoryFactory.getHippoRepository(url);
+    }
+
+    @Override
+    public Session login(final Credentials credentials) throws RepositoryException {
+        return repository.login(credentials);
+    }
+
+    @Override
+    public boolean isHippo() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // the repository is shared, not owned by the runner
+    }
+}
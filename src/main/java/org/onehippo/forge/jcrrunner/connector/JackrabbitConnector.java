@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts a local Jackrabbit repository in this JVM through the JCR 2.0 <code>RepositoryFactory</code> lookup.
+ * The location is either the repository home directory, using the <code>repository.xml</code> in it, or the
+ * <code>repository.xml</code> itself, using its directory as home.
+ */
+final class JackrabbitConnector implements RepositoryConnector {
+
+    private static final Logger log = LoggerFactory.getLogger(JackrabbitConnector.class);
+
+    /**
+     * Parameters of the Jackrabbit core <code>RepositoryFactory</code>.
+     */
+    static final String REPOSITORY_HOME = "org.apache.jackrabbit.repository.home";
+    static final String REPOSITORY_CONF = "org.apache.jackrabbit.repository.conf";
+
+    private static final String CONFIG_FILE_NAME = "repository.xml";
+
+    private final Repository repository;
+
+    JackrabbitConnector(final String location) throws RepositoryException {
+        String path = location;
+        if (path.startsWith("//")) {
+            path = path.substring(2);
+        }
+        File home = new File(path).getAbsoluteFile();
+        File config = new File(home, CONFIG_FILE_NAME);
+        if (home.isFile() || path.endsWith(".xml")) {
+            config = home;
+            home = home.getParentFile();
+        }
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put(REPOSITORY_HOME, home.getPath());
+        parameters.put(REPOSITORY_CONF, config.getPath());
+        repository = JcrUtils.getRepository(parameters);
+        log.info("Using local repository with home '{}' and configuration '{}'", home.getPath(), config.getPath());
+    }
+
+    @Override
+    public Session login(final Credentials credentials) throws RepositoryException {
+        return repository.login(credentials);
+    }
+
+    @Override
+    public boolean isHippo() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (repository instanceof JackrabbitRepository) {
+            log.info("Shutting down local repository.");
+            ((JackrabbitRepository) repository).shutdown();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A connector that reads whole subtrees in one request instead of fetching items one by one.
+ */
+public interface PrefetchingConnector extends RepositoryConnector {
+
+    /**
+     * Login a session that traverses the repository and can be given a prefetch depth. Sessions logged in with
+     * {@link #login(Credentials)} never prefetch.
+     * @param credentials the credentials of the user
+     * @return the session
+     * @throws RepositoryException when the login fails
+     */
+    Session loginVisitor(Credentials credentials) throws RepositoryException;
+
+    /**
+     * Set how deep subtrees are read when a node at or below the base path is fetched with the session. Other
+     * sessions are not affected.
+     * @param session a visitor session logged in by this connector, other sessions are ignored
+     * @param basePath the path below which to prefetch, <code>null</code> to stop prefetching
+     * @param depth the number of levels below the fetched node to read along, 0 to read only the node itself
+     */
+    void setPrefetchDepth(Session session, String basePath, int depth);
+
+    /**
+     * Let a session read subtrees like another one, for a session that replaces the other.
+     * @param from the session to copy the prefetch depth of
+     * @param to the session to set the prefetch depth of
+     */
+    void copyPrefetchDepth(Session from, Session to);
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A connection to a repository, remote or in the same JVM. Created by {@link RepositoryConnectors} based on the
+ * scheme of the repository url.
+ */
+public interface RepositoryConnector {
+
+    /**
+     * Login a new session.
+     * @param credentials the credentials
+     * @return the session
+     * @throws RepositoryException when the login fails
+     */
+    Session login(Credentials credentials) throws RepositoryException;
+
+    /**
+     * @return whether the repository is a Hippo repository and supports virtual nodes
+     */
+    boolean isHippo();
+
+    /**
+     * Release the connection. Repositories started by the connector are shut down.
+     */
+    void close();
+}
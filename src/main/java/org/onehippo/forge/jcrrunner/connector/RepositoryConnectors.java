@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Creates the connector for a repository url. Supported urls:
+ * <ul>
+ *     <li><code>rmi://host:port/name</code>: a remote Hippo or plain JCR repository over RMI</li>
+ *     <li><code>vm://</code>: the Hippo repository running in the same JVM</li>
+ *     <li><code>http://host:port/server</code> or <code>https://...</code>: a repository exposed through WebDAV
+ *     remoting, reading subtrees in batches, this requires jackrabbit-jcr2dav on the classpath</li>
+ *     <li><code>file:/path/to/home</code> or <code>file:/path/to/repository.xml</code>: a local Jackrabbit
+ *     repository started in this JVM, this requires jackrabbit-core on the classpath</li>
+ * </ul>
+ */
+public final class RepositoryConnectors {
+
+    public static final String RMI_SCHEME = "rmi:";
+    public static final String VM_SCHEME = "vm:";
+    public static final String FILE_SCHEME = "file:";
+    public static final String HTTP_SCHEME = "http:";
+    public static final String HTTPS_SCHEME = "https:";
+
+    private RepositoryConnectors() {
+    }
+
+    /**
+     * Connect to the repository at the url.
+     * @param url the repository url
+     * @param hippo whether a remote repository is a Hippo repository
+     * @return the connector
+     * @throws RepositoryException when the repository can not be reached
+     */
+    public static RepositoryConnector connect(final String url, final boolean hippo) throws RepositoryException {
+        if (url == null || "".equals(url)) {
+            throw new IllegalArgumentException("Repository url can not be empty");
+        }
+        if (url.startsWith(VM_SCHEME)) {
+            return new HippoConnector(url);
+        }
+        if (url.startsWith(FILE_SCHEME)) {
+            return new JackrabbitConnector(url.substring(FILE_SCHEME.length()));
+        }
+        if (url.startsWith(HTTP_SCHEME) || url.startsWith(HTTPS_SCHEME)) {
+            return new DavexConnector(url);
+        }
+        if (hippo) {
+            return new HippoConnector(url);
+        }
+        return new RmiConnector(url);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.rmi.client.ClientRepositoryFactory;
+
+/**
+ * Connects to a plain JCR repository over RMI.
+ */
+final class RmiConnector implements RepositoryConnector {
+
+    private final Repository repository;
+
+    RmiConnector(final String url) throws RepositoryException {
+        try {
+            repository = new ClientRepositoryFactory().getRepository(url);
+        } catch (MalformedURLException e) {
+            throw new RepositoryException("Invalid connection url: " + url, e);
+        } catch (RemoteException e) {
+            throw new RepositoryException("RemoteException while connection to server: " + url, e);
+        } catch (NotBoundException e) {
+            throw new RepositoryException("Server not found in rmi lookup: " + url, e);
+        }
+    }
+
+    @Override
+    public Session login(final Credentials credentials) throws RepositoryException {
+        return repository.login(credentials);
+    }
+
+    @Override
+    public boolean isHippo() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // the remote repository keeps running
+    }
+}
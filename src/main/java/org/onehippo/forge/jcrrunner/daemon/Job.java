@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.daemon;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+import org.onehippo.forge.jcrrunner.Runner;
+import org.onehippo.forge.jcrrunner.RunnerPluginConfig;
+import org.onehippo.forge.jcrrunner.util.JsonWriter;
+
+/**
+ * A set of plugins submitted to the {@link RunnerDaemon}, run as one runner on the warm connection.
+ */
+public final class Job {
+
+    public enum State {
+        QUEUED, RUNNING, FINISHED, CANCELLED, FAILED
+    }
+
+    private final String id;
+    private final List<RunnerPluginConfig> pluginConfigs;
+    private final String reportFile;
+    private final Calendar submitted = Calendar.getInstance();
+    private State state = State.QUEUED;
+    private Calendar started;
+    private Calendar finished;
+    private Runner runner;
+    private long visited;
+    private String error;
+    private String report;
+
+    Job(final String id, final List<RunnerPluginConfig> pluginConfigs, final String reportFile) {
+        this.id = id;
+        this.pluginConfigs = pluginConfigs;
+        this.reportFile = reportFile;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    List<RunnerPluginConfig> getPluginConfigs() {
+        return pluginConfigs;
+    }
+
+    /**
+     * @return the file to write the run report of the job to, <code>null</code> if none
+     */
+    String getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * @return the JSON run report of the job, <code>null</code> until the job is done
+     */
+    public synchronized String getReport() {
+        return report;
+    }
+
+    /**
+     * @return whether the job can run, <code>false</code> when it was cancelled while queued
+     */
+    synchronized boolean start(final Runner jobRunner) {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        state = State.RUNNING;
+        started = Calendar.getInstance();
+        runner = jobRunner;
+        return true;
+    }
+
+    synchronized void finish(final long visitedNodes, final String runReport, final String failure) {
+        if (state == State.RUNNING) {
+            state = failure == null ? State.FINISHED : State.FAILED;
+        }
+        finished = Calendar.getInstance();
+        visited = visitedNodes;
+        report = runReport;
+        error = failure;
+        runner = null;
+    }
+
+    /**
+     * Cancel the job. A queued job does not run. A running job is signalled to stop at the next node, its plugin
+     * is destroyed by the daemon worker running it.
+     * @return whether the job was queued or running
+     */
+    public boolean cancel() {
+        final Runner running;
+        synchronized (this) {
+            if (state != State.QUEUED && state != State.RUNNING) {
+                return false;
+            }
+            running = runner;
+            state = State.CANCELLED;
+        }
+        if (running != null) {
+            running.stop();
+        }
+        return true;
+    }
+
+    synchronized void write(final JsonWriter json) throws IOException {
+        json.beginObject();
+        json.property("id", id);
+        json.property("state", state.name().toLowerCase(Locale.ENGLISH));
+        json.property("submitted", submitted);
+        json.property("started", started);
+        json.property("finished", finished);
+        json.name("plugins").beginArray();
+        for (RunnerPluginConfig config : pluginConfigs) {
+            json.value(config.getId());
+        }
+        json.endArray();
+        if (finished != null) {
+            json.property("visited", visited);
+            json.property("durationMillis", finished.getTimeInMillis() - started.getTimeInMillis());
+        }
+        json.property("error", error);
+        json.endObject();
+    }
+}
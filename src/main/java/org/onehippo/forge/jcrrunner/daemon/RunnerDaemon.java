@@ -0,0 +1,400 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.RunReport;
+import org.onehippo.forge.jcrrunner.Runner;
+import org.onehippo.forge.jcrrunner.RunnerConfig;
+import org.onehippo.forge.jcrrunner.RunnerPluginConfig;
+import org.onehippo.forge.jcrrunner.util.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the runner and its repository connection running and accepts jobs over HTTP on localhost, so short jobs
+ * do not pay for starting the JVM and logging in.
+ * <ul>
+ *     <li><code>POST /jobs</code> with plugin configuration in the properties format of
+ *     <code>runner.properties</code> queues a job and returns it</li>
+ *     <li><code>GET /jobs</code> lists the jobs, <code>GET /jobs/&lt;id&gt;</code> returns one</li>
+ *     <li><code>GET /jobs/&lt;id&gt;/report</code> returns the run report of a finished job</li>
+ *     <li><code>DELETE /jobs/&lt;id&gt;</code> cancels a queued or running job</li>
+ * </ul>
+ * Jobs run one after another on the main session, in the order they were submitted. The repository settings of
+ * the daemon are used, repository keys in jobs are ignored. Only the most recent jobs are kept.
+ * <p>
+ * Jobs run with the credentials of the daemon, so every request must carry the configured
+ * <code>daemon.token</code> in the <code>X-Runner-Token</code> header. Requests from browsers, recognized by an
+ * <code>Origin</code> header or a <code>Host</code> other than localhost, are refused. Jobs may only use the Java
+ * plugin classes listed in <code>daemon.plugins</code>, BeanShell plugins are not accepted.
+ */
+public final class RunnerDaemon {
+
+    private static final Logger log = LoggerFactory.getLogger(RunnerDaemon.class);
+
+    private static final String JOBS_PATH = "/jobs";
+    private static final String REPORT_SUFFIX = "/report";
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    private static final int MAX_JOBS_KEPT = 100;
+    private static final String TOKEN_HEADER = "X-Runner-Token";
+    private static final String PLUGINS_BEANSHELL = "plugins.beanshell.";
+    private static final long STOP_TIMEOUT_MILLIS = 30000L;
+
+    private static final Job END_OF_JOBS = new Job("", Collections.<RunnerPluginConfig>emptyList(), null);
+
+    private final RunnerConfig config;
+    private final int port;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+    private final AtomicLong jobCounter = new AtomicLong();
+    private final Thread worker;
+    private HttpServer server;
+    private volatile boolean running;
+
+    /**
+     * @param config the configuration of the daemon, its repository settings are used for all jobs
+     * @param port the port on localhost to listen on
+     */
+    public RunnerDaemon(final RunnerConfig config, final int port) {
+        this.config = config;
+        this.port = port;
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workLoop();
+            }
+        }, "runner-daemon");
+    }
+
+    /**
+     * Connect to the repository and start listening for jobs.
+     * @throws IOException when the port can not be bound
+     */
+    public void start() throws IOException {
+        if (config.getDaemonToken() == null || config.getDaemonToken().trim().length() == 0) {
+            throw new IllegalStateException("daemon.token is required to accept jobs.");
+        }
+        JcrHelper.ensureConnected();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        server.createContext(JOBS_PATH, new JobsHandler());
+        running = true;
+        worker.start();
+        server.start();
+        log.info("Runner daemon listening on http://127.0.0.1:{}{}", server.getAddress().getPort(), JOBS_PATH);
+    }
+
+    /**
+     * @return the port the daemon listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting jobs and cancel the queued and running ones. Waits a bounded time for the running job to be
+     * torn down.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        server.stop(0);
+        for (Job job : getJobs()) {
+            job.cancel();
+        }
+        // not interrupted, the running job may be doing repository I/O
+        queue.add(END_OF_JOBS);
+        try {
+            worker.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            log.warn("Running job did not stop within {} ms.", STOP_TIMEOUT_MILLIS);
+        } else {
+            log.info("Runner daemon stopped.");
+        }
+    }
+
+    /**
+     * Queue a job.
+     * @param jobProperties the plugin configuration of the job
+     * @return the queued job
+     * @throws IllegalArgumentException when the job has no plugins or uses plugins that are not allowed
+     */
+    public Job submit(final Properties jobProperties) {
+        final Properties props = new Properties();
+        props.setProperty("repository.url", String.valueOf(config.getRepositoryUrl()));
+        props.setProperty("repository.user", String.valueOf(config.getRepositoryUser()));
+        props.setProperty("repository.pass", String.valueOf(config.getRepositoryPass()));
+        for (String key : jobProperties.stringPropertyNames()) {
+            if (key.startsWith(PLUGINS_BEANSHELL)) {
+                throw new IllegalArgumentException("BeanShell plugins are not accepted in jobs: " + key);
+            }
+            if (!key.startsWith("repository.") && !key.startsWith("repositories.")) {
+                props.setProperty(key, jobProperties.getProperty(key));
+            }
+        }
+        final RunnerConfig jobConfig = new RunnerConfig(props);
+        if (jobConfig.getPluginConfigs().isEmpty()) {
+            throw new IllegalArgumentException("Job has no plugins.");
+        }
+        for (RunnerPluginConfig pluginConfig : jobConfig.getPluginConfigs()) {
+            final String className = pluginConfig.getValue("class");
+            if (!config.getDaemonPlugins().contains(className)) {
+                throw new IllegalArgumentException("Plugin class of " + pluginConfig.getId()
+                        + " is not listed in daemon.plugins: " + className);
+            }
+        }
+        final Job job = new Job(String.valueOf(jobCounter.incrementAndGet()), jobConfig.getPluginConfigs(),
+                jobConfig.getReportFile());
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            removeOldJobs();
+        }
+        queue.add(job);
+        log.info("Job {} queued with {} plugins.", job.getId(), job.getPluginConfigs().size());
+        return job;
+    }
+
+    public Job getJob(final String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public List<Job> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<Job>(jobs.values());
+        }
+    }
+
+    private void removeOldJobs() {
+        final List<String> done = new ArrayList<String>();
+        for (Job job : jobs.values()) {
+            final Job.State state = job.getState();
+            if (state != Job.State.QUEUED && state != Job.State.RUNNING) {
+                done.add(job.getId());
+            }
+        }
+        for (int i = 0; i < done.size() && jobs.size() > MAX_JOBS_KEPT; i++) {
+            jobs.remove(done.get(i));
+        }
+    }
+
+    //------------------------------- WORKER THREAD -----------------------//
+    private void workLoop() {
+        while (running) {
+            final Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == END_OF_JOBS) {
+                return;
+            }
+            runJob(job);
+        }
+    }
+
+    private void runJob(final Job job) {
+        final Runner runner = new Runner();
+        runner.setReportSubtreeDepth(config.getReportSubtreeDepth());
+        runner.setThreads(config.getRunnerThreads());
+        runner.registerPlugins(job.getPluginConfigs());
+        if (!job.start(runner)) {
+            return;
+        }
+        log.info("Job {} started.", job.getId());
+        final RunReport report = RunReport.get();
+        report.reset();
+        String failure = null;
+        try {
+            JcrHelper.ensureConnected();
+            runner.start();
+        } catch (RuntimeException e) {
+            log.error("Job " + job.getId() + " failed.", e);
+            failure = e.toString();
+        } finally {
+            // leave the session clean for the next job
+            JcrHelper.refresh(false);
+        }
+        final StringBuilder json = new StringBuilder();
+        try {
+            report.write(json);
+            if (job.getReportFile() != null) {
+                report.write(new File(job.getReportFile()));
+            }
+        } catch (IOException e) {
+            log.error("Unable to write report of job " + job.getId(), e);
+        }
+        job.finish(report.getVisited(), json.toString(), failure);
+        log.info("Job {} {}, visited {} nodes.", new Object[] {job.getId(), job.getState(), report.getVisited()});
+    }
+
+    //------------------------------- HTTP -----------------------//
+    private final class JobsHandler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                if (!isAuthorized(exchange)) {
+                    return;
+                }
+                final String method = exchange.getRequestMethod();
+                final String path = exchange.getRequestURI().getPath();
+                final String rest = path.length() > JOBS_PATH.length() ? path.substring(JOBS_PATH.length() + 1) : "";
+                if (rest.length() == 0) {
+                    if ("GET".equals(method)) {
+                        sendJobs(exchange);
+                    } else if ("POST".equals(method)) {
+                        submit(exchange);
+                    } else {
+                        send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                    }
+                    return;
+                }
+                final boolean reportRequested = rest.endsWith(REPORT_SUFFIX);
+                final Job job = getJob(reportRequested ? rest.substring(0, rest.length() - REPORT_SUFFIX.length())
+                        : rest);
+                if (job == null) {
+                    send(exchange, 404, "{\"error\":\"No such job\"}");
+                } else if ("DELETE".equals(method) && !reportRequested) {
+                    job.cancel();
+                    sendJob(exchange, job);
+                } else if (!"GET".equals(method)) {
+                    send(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                } else if (reportRequested) {
+                    final String report = job.getReport();
+                    if (report == null) {
+                        send(exchange, 404, "{\"error\":\"Job not done\"}");
+                    } else {
+                        send(exchange, 200, report);
+                    }
+                } else {
+                    sendJob(exchange, job);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Error while handling job request: " + e.getMessage());
+                final StringBuilder body = new StringBuilder();
+                new JsonWriter(body).beginObject().property("error", e.getMessage()).endObject();
+                send(exchange, 400, body.toString());
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Refuse requests without the token and requests a browser may have sent on behalf of a web page.
+         * @return whether the request may be handled, if not the response is sent
+         */
+        private boolean isAuthorized(final HttpExchange exchange) throws IOException {
+            final Headers headers = exchange.getRequestHeaders();
+            if (headers.getFirst("Origin") != null || !isLocalHost(headers.getFirst("Host"))) {
+                log.warn("Refused job request from a browser or for host {}", headers.getFirst("Host"));
+                send(exchange, 403, "{\"error\":\"Forbidden\"}");
+                return false;
+            }
+            final String token = headers.getFirst(TOKEN_HEADER);
+            if (token == null || !MessageDigest.isEqual(token.getBytes("UTF-8"),
+                    config.getDaemonToken().getBytes("UTF-8"))) {
+                log.warn("Refused job request without a valid token from {}", exchange.getRemoteAddress());
+                send(exchange, 401, "{\"error\":\"Unauthorized\"}");
+                return false;
+            }
+            return true;
+        }
+
+        private boolean isLocalHost(final String host) {
+            if (host == null) {
+                return false;
+            }
+            final int colon = host.lastIndexOf(':');
+            final String name = colon > 0 ? host.substring(0, colon) : host;
+            return "127.0.0.1".equals(name) || "localhost".equalsIgnoreCase(name);
+        }
+
+        private void submit(final HttpExchange exchange) throws IOException {
+            final Properties props = new Properties();
+            final InputStream in = exchange.getRequestBody();
+            try {
+                props.load(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+            sendJob(exchange, RunnerDaemon.this.submit(props), 201);
+        }
+
+        private void sendJobs(final HttpExchange exchange) throws IOException {
+            final StringBuilder body = new StringBuilder();
+            final JsonWriter json = new JsonWriter(body);
+            json.beginArray();
+            for (Job job : getJobs()) {
+                job.write(json);
+            }
+            json.endArray();
+            send(exchange, 200, body.toString());
+        }
+
+        private void sendJob(final HttpExchange exchange, final Job job) throws IOException {
+            sendJob(exchange, job, 200);
+        }
+
+        private void sendJob(final HttpExchange exchange, final Job job, final int status) throws IOException {
+            final StringBuilder body = new StringBuilder();
+            job.write(new JsonWriter(body));
+            send(exchange, status, body.toString());
+        }
+
+        private void send(final HttpExchange exchange, final int status, final String body) throws IOException {
+            final byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_JSON);
+            exchange.sendResponseHeaders(status, bytes.length);
+            final OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.mutation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Workspace;
+
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves, renames and copies nodes with the workspace operations, which run on the server without building
+ * up transient state in the session. When the repository does not support a workspace move, nodes are moved
+ * in the session and saved in chunks instead, so the transient space never holds more than one chunk.
+ * <p>
+ * Workspace operations are persisted immediately and do not see unsaved changes, so the session must not have
+ * pending changes when an operation starts.
+ */
+public final class BulkMover {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkMover.class);
+
+    private final Session session;
+    private final int chunkSize;
+    private boolean workspaceMoveSupported = true;
+
+    /**
+     * @param session the session to work with
+     * @param chunkSize the number of children moved per round, and per save when moving in the session
+     */
+    public BulkMover(final Session session, final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.session = session;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Move a node to a new location.
+     * @param srcPath the path of the node
+     * @param destPath the new path of the node
+     * @throws RepositoryException when the move fails
+     */
+    public void move(final String srcPath, final String destPath) throws RepositoryException {
+        ensureNoPendingChanges();
+        if (!workspaceMove(srcPath, destPath)) {
+            session.move(srcPath, destPath);
+            session.save();
+        }
+    }
+
+    /**
+     * Copy a node and its subtree to a new location. Copies are always done by the workspace.
+     * @param srcPath the path of the node
+     * @param destPath the path of the copy
+     * @throws RepositoryException when the copy fails
+     */
+    public void copy(final String srcPath, final String destPath) throws RepositoryException {
+        ensureNoPendingChanges();
+        session.getWorkspace().copy(srcPath, destPath);
+    }
+
+    /**
+     * Rename a node, keeping its position among its siblings.
+     * @param path the path of the node
+     * @param newName the new name
+     * @return the new path
+     * @throws RepositoryException when the rename fails
+     */
+    public String rename(final String path, final String newName) throws RepositoryException {
+        ensureNoPendingChanges();
+        final Node node = session.getNode(path);
+        final Node parent = node.getParent();
+        final String nextSibling = JcrHelper.getNextSiblingName(node);
+        final String newPath = childPath(parent.getPath(), newName);
+        if (!workspaceMove(path, newPath)) {
+            session.move(path, newPath);
+        }
+        if (nextSibling != null) {
+            final Node renamed = session.getNode(newPath);
+            parent.orderBefore(renamed.getName() + "[" + renamed.getIndex() + "]", nextSibling);
+        }
+        session.save();
+        return newPath;
+    }
+
+    /**
+     * Move all children of a node to another node, in chunks. Memory use depends on the chunk size, not on the
+     * number of children.
+     * @param srcParentPath the path of the current parent
+     * @param destParentPath the path of the new parent
+     * @return the number of moved children
+     * @throws RepositoryException when a move fails, the children moved so far stay moved
+     */
+    public long moveChildren(final String srcParentPath, final String destParentPath) throws RepositoryException {
+        ensureNoPendingChanges();
+        final Node srcParent = session.getNode(srcParentPath);
+        long moved = 0;
+        while (true) {
+            final List<String> names = getFirstChildNames(srcParent);
+            if (names.isEmpty()) {
+                break;
+            }
+            for (String name : names) {
+                final String srcPath = childPath(srcParentPath, name);
+                final String destPath = childPath(destParentPath, name);
+                if (!workspaceMove(srcPath, destPath)) {
+                    session.move(srcPath, destPath);
+                }
+            }
+            if (session.hasPendingChanges()) {
+                session.save();
+            }
+            moved += names.size();
+            log.debug("Moved {} children of {} to {}", new Object[] {moved, srcParentPath, destParentPath});
+        }
+        return moved;
+    }
+
+    private List<String> getFirstChildNames(final Node parent) throws RepositoryException {
+        final List<String> names = new ArrayList<String>(chunkSize);
+        final NodeIterator children = parent.getNodes();
+        while (children.hasNext() && names.size() < chunkSize) {
+            // the first same name sibling is always [1] again after the previous one is moved
+            names.add(children.nextNode().getName());
+        }
+        return names;
+    }
+
+    /**
+     * @return whether the node was moved by the workspace, <code>false</code> if the session must move it
+     */
+    private boolean workspaceMove(final String srcPath, final String destPath) throws RepositoryException {
+        if (!workspaceMoveSupported) {
+            return false;
+        }
+        final Workspace workspace = session.getWorkspace();
+        try {
+            workspace.move(srcPath, destPath);
+            return true;
+        } catch (UnsupportedRepositoryOperationException e) {
+            log.info("Workspace move not supported, falling back to chunked session moves: " + e.getMessage());
+            workspaceMoveSupported = false;
+            return false;
+        }
+    }
+
+    private void ensureNoPendingChanges() throws RepositoryException {
+        if (session.hasPendingChanges()) {
+            throw new IllegalStateException("Session has pending changes, save or refresh before bulk moves.");
+        }
+    }
+
+    private static String childPath(final String parentPath, final String name) {
+        return ("/".equals(parentPath) ? "" : parentPath) + "/" + name;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.mutation;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import org.onehippo.forge.jcrrunner.JcrHelper;
+
+/**
+ * An intended change to a node, recorded by a plugin and applied later by a {@link MutationQueue} on its own
+ * session. Mutations refer to nodes by path, so they do not hold on to items of the session that recorded them.
+ */
+public abstract class Mutation {
+
+    private final String path;
+
+    Mutation(final String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Mutation needs an absolute path: " + path);
+        }
+        this.path = path;
+    }
+
+    public final String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the key under which a later mutation replaces an earlier one, <code>null</code> for mutations that
+     * change the structure, which are never replaced and across which no other mutations are merged
+     */
+    abstract String getKey();
+
+    abstract void apply(Session session) throws RepositoryException;
+
+    /**
+     * Set a property. Arrays set a multi valued property, <code>null</code> removes the property.
+     * Strings, numbers, booleans, calendars and values are supported.
+     */
+    public static Mutation setProperty(final String path, final String name, final Object value) {
+        return new SetProperty(path, name, value);
+    }
+
+    public static Mutation addMixin(final String path, final String mixinName) {
+        return new AddMixin(path, mixinName);
+    }
+
+    public static Mutation move(final String srcPath, final String destPath) {
+        return new Move(srcPath, destPath);
+    }
+
+    /**
+     * Rename a node, keeping its position among its siblings.
+     */
+    public static Mutation rename(final String path, final String newName) {
+        return new Rename(path, newName);
+    }
+
+    public static Mutation remove(final String path) {
+        return new Remove(path);
+    }
+
+    private static final class SetProperty extends Mutation {
+
+        private final String name;
+        private final Object value;
+
+        SetProperty(final String path, final String name, final Object value) {
+            super(path);
+            this.name = name;
+            this.value = value instanceof Object[] ? ((Object[]) value).clone() : value;
+        }
+
+        @Override
+        String getKey() {
+            return "property:" + getPath() + "/" + name;
+        }
+
+        @Override
+        void apply(final Session session) throws RepositoryException {
+            final Node node = session.getNode(getPath());
+            if (value == null) {
+                if (node.hasProperty(name)) {
+                    node.getProperty(name).remove();
+                }
+                return;
+            }
+            final ValueFactory factory = session.getValueFactory();
+            if (value instanceof Object[]) {
+                final Object[] objects = (Object[]) value;
+                final Value[] values = new Value[objects.length];
+                for (int i = 0; i < objects.length; i++) {
+                    values[i] = toValue(factory, objects[i]);
+                }
+                node.setProperty(name, values);
+            } else {
+                node.setProperty(name, toValue(factory, value));
+            }
+        }
+
+        private static Value toValue(final ValueFactory factory, final Object value) {
+            if (value instanceof Value) {
+                return (Value) value;
+            } else if (value instanceof Calendar) {
+                return factory.createValue((Calendar) value);
+            } else if (value instanceof Boolean) {
+                return factory.createValue((Boolean) value);
+            } else if (value instanceof BigDecimal) {
+                return factory.createValue((BigDecimal) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                return factory.createValue(((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                return factory.createValue(((Number) value).longValue());
+            }
+            return factory.createValue(value.toString());
+        }
+
+        @Override
+        public String toString() {
+            return "set " + getPath() + "/" + name;
+        }
+    }
+
+    private static final class AddMixin extends Mutation {
+
+        private final String mixinName;
+
+        AddMixin(final String path, final String mixinName) {
+            super(path);
+            this.mixinName = mixinName;
+        }
+
+        @Override
+        String getKey() {
+            return "mixin:" + getPath() + ":" + mixinName;
+        }
+
+        @Override
+        void apply(final Session session) throws RepositoryException {
+            final Node node = session.getNode(getPath());
+            if (!node.isNodeType(mixinName)) {
+                node.addMixin(mixinName);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "add mixin " + mixinName + " to " + getPath();
+        }
+    }
+
+    private static final class Move extends Mutation {
+
+        private final String destPath;
+
+        Move(final String srcPath, final String destPath) {
+            super(srcPath);
+            this.destPath = destPath;
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(final Session session) throws RepositoryException {
+            session.move(getPath(), destPath);
+        }
+
+        @Override
+        public String toString() {
+            return "move " + getPath() + " to " + destPath;
+        }
+    }
+
+    private static final class Rename extends Mutation {
+
+        private final String newName;
+
+        Rename(final String path, final String newName) {
+            super(path);
+            if (newName == null || newName.indexOf('/') >= 0) {
+                throw new IllegalArgumentException("Invalid node name: " + newName);
+            }
+            this.newName = newName;
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(final Session session) throws RepositoryException {
+            final Node node = session.getNode(getPath());
+            final Node parent = node.getParent();
+            final String nextSibling = JcrHelper.getNextSiblingName(node);
+            final String parentPath = parent.getPath();
+            session.move(getPath(), ("/".equals(parentPath) ? "" : parentPath) + "/" + newName);
+            if (nextSibling != null) {
+                parent.orderBefore(node.getName() + "[" + node.getIndex() + "]", nextSibling);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "rename " + getPath() + " to " + newName;
+        }
+    }
+
+    private static final class Remove extends Mutation {
+
+        Remove(final String path) {
+            super(path);
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(final Session session) throws RepositoryException {
+            if (session.nodeExists(getPath())) {
+                session.getNode(getPath()).remove();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "remove " + getPath();
+        }
+    }
+}
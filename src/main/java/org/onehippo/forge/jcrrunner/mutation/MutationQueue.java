@@ -0,0 +1,405 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.mutation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.RunReport;
+import org.onehippo.forge.jcrrunner.trace.Span;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the {@link Mutation}s recorded by a plugin and applies them in batches on a dedicated writer session,
+ * so writes overlap with the reads of the traversal.
+ * <p>
+ * Mutations are applied in the order they were recorded. Within a batch a repeated change of the same property or
+ * mixin replaces the earlier one, as long as no move, rename or removal was recorded in between. Each batch is
+ * saved at once. A mutation that fails is left out and the batch is applied again without it, so its partial
+ * changes are not saved. When the save fails, for instance because another session changed the same items, the
+ * mutations of the batch are applied and saved one by one and only the failing ones are skipped.
+ * <p>
+ * All open queues are flushed and closed when their plugin is destroyed and when the runner shuts down.
+ */
+public final class MutationQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(MutationQueue.class);
+
+    private static final List<MutationQueue> OPEN_QUEUES = new CopyOnWriteArrayList<MutationQueue>();
+
+    private static final List<Mutation> END_OF_STREAM = new ArrayList<Mutation>(0);
+
+    /**
+     * The number of full batches waiting for the writer before recording blocks.
+     */
+    private static final int MAX_PENDING_BATCHES = 2;
+    private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+    private final String owner;
+    private final int batchSize;
+    private final BlockingQueue<List<Mutation>> batches;
+    private final Thread writerThread;
+
+    private List<Mutation> recording;
+
+    /**
+     * Recording and flushing share the lock, closing takes it exclusively, so no batch is handed over behind the
+     * end of the stream.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    // writer thread state
+    private long batchCount;
+    private long applied;
+    private long merged;
+    private long conflicts;
+    private long failed;
+    private long writeMillis;
+
+    private MutationQueue(final String owner, final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.owner = owner;
+        this.batchSize = batchSize;
+        this.recording = new ArrayList<Mutation>(batchSize);
+        this.batches = new ArrayBlockingQueue<List<Mutation>>(MAX_PENDING_BATCHES + 1);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "mutation-writer-" + owner);
+        writerThread.setDaemon(true);
+    }
+
+    /**
+     * Open a new queue and start its writer thread.
+     * @param owner the id of the plugin owning the queue
+     * @param batchSize the number of mutations saved at once
+     * @return the open queue
+     */
+    public static MutationQueue open(final String owner, final int batchSize) {
+        final MutationQueue queue = new MutationQueue(owner, batchSize);
+        OPEN_QUEUES.add(queue);
+        queue.writerThread.start();
+        return queue;
+    }
+
+    /**
+     * Close all queues of a plugin.
+     * @param owner the plugin id
+     */
+    public static void closeAll(final String owner) {
+        for (MutationQueue queue : OPEN_QUEUES) {
+            if (queue.owner.equals(owner)) {
+                queue.close();
+            }
+        }
+    }
+
+    /**
+     * Close all open queues.
+     */
+    public static void closeAll() {
+        for (MutationQueue queue : OPEN_QUEUES) {
+            queue.close();
+        }
+    }
+
+    /**
+     * Record a mutation. Only blocks when the writer is more than a few batches behind.
+     * @param mutation the mutation
+     */
+    public void record(final Mutation mutation) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Mutation queue of " + owner + " is closed.");
+            }
+            List<Mutation> full = null;
+            synchronized (this) {
+                recording.add(mutation);
+                if (recording.size() >= batchSize) {
+                    full = recording;
+                    recording = new ArrayList<Mutation>(batchSize);
+                }
+            }
+            if (full != null) {
+                handOver(full);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    public void setProperty(final String path, final String name, final Object value) {
+        record(Mutation.setProperty(path, name, value));
+    }
+
+    public void addMixin(final String path, final String mixinName) {
+        record(Mutation.addMixin(path, mixinName));
+    }
+
+    public void move(final String srcPath, final String destPath) {
+        record(Mutation.move(srcPath, destPath));
+    }
+
+    public void rename(final String path, final String newName) {
+        record(Mutation.rename(path, newName));
+    }
+
+    public void remove(final String path) {
+        record(Mutation.remove(path));
+    }
+
+    /**
+     * Hand over the recorded mutations to the writer without waiting for the batch to fill up.
+     */
+    public void flush() {
+        closeLock.readLock().lock();
+        try {
+            List<Mutation> partial = null;
+            synchronized (this) {
+                if (!recording.isEmpty()) {
+                    partial = recording;
+                    recording = new ArrayList<Mutation>(batchSize);
+                }
+            }
+            if (partial != null) {
+                handOver(partial);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply all recorded mutations and logout the writer session. Blocks until the writer thread is done.
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        OPEN_QUEUES.remove(this);
+        // no mutations are recorded anymore, the last partial batch goes just before the end of the stream
+        flush();
+        handOver(END_OF_STREAM);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{}: Interrupted while waiting for mutations to be applied.", owner);
+            return;
+        }
+        log.info("{}: Applied {} mutations in {} batches in {} ms: {} merged, {} conflicts, {} failed.",
+                new Object[] {owner, applied, batchCount, writeMillis, merged, conflicts, failed});
+    }
+
+    private void handOver(final List<Mutation> batch) {
+        try {
+            while (!batches.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!writerThread.isAlive()) {
+                    log.warn("{}: Mutation writer stopped, {} mutations are dropped.", owner, batch.size());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{}: Interrupted while recording, {} mutations are dropped.", owner, batch.size());
+        }
+    }
+
+    //------------------------------- WRITER THREAD -----------------------//
+    private void writeLoop() {
+        Session session = null;
+        try {
+            session = JcrHelper.newSession();
+        } catch (RepositoryException e) {
+            log.error(owner + ": Unable to login writer session, all mutations are discarded.", e);
+        }
+        try {
+            while (true) {
+                final List<Mutation> batch = batches.take();
+                if (batch == END_OF_STREAM) {
+                    return;
+                }
+                if (session == null) {
+                    failed += batch.size();
+                    continue;
+                }
+                try {
+                    applyBatch(session, batch);
+                } catch (RuntimeException e) {
+                    // keep the writer alive, recording blocks when it stops taking batches
+                    failed += batch.size();
+                    log.error(owner + ": Error while applying batch, " + batch.size() + " mutations are discarded.",
+                            e);
+                    refresh(session);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("{}: Mutation writer interrupted, mutations may be lost.", owner);
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    private void applyBatch(final Session session, final List<Mutation> batch) {
+        final long start = System.currentTimeMillis();
+        final Span span = Tracer.get().startSpan("mutation batch").setAttribute("plugin.id", owner);
+        final List<Mutation> mutations = merge(batch);
+        merged += batch.size() - mutations.size();
+        final long conflictsBefore = conflicts;
+        final long failedBefore = failed;
+        try {
+            while (!applyAll(session, mutations)) {
+                // drop the partial changes of the failed mutation
+                refresh(session);
+            }
+            save(session);
+            applied += mutations.size();
+        } catch (InvalidItemStateException e) {
+            log.info("{}: Conflict while saving batch, applying its mutations one by one: {}", owner, e.getMessage());
+            refresh(session);
+            applyOneByOne(session, mutations);
+        } catch (RepositoryException e) {
+            log.warn("{}: Error while saving batch, applying its mutations one by one: {}", owner, e.getMessage());
+            refresh(session);
+            applyOneByOne(session, mutations);
+        }
+        span.setAttribute("mutations", mutations.size()).setAttribute("conflicts", conflicts - conflictsBefore)
+                .setAttribute("failed", failed - failedBefore).end();
+        final long duration = System.currentTimeMillis() - start;
+        writeMillis += duration;
+        batchCount++;
+        log.info("{}: Batch {} of {} mutations saved in {} ms, {} conflicts, {} failed.", new Object[] {owner,
+                batchCount, mutations.size(), duration, conflicts - conflictsBefore, failed - failedBefore});
+    }
+
+    private void applyOneByOne(final Session session, final List<Mutation> mutations) {
+        for (Mutation mutation : mutations) {
+            try {
+                mutation.apply(session);
+                save(session);
+                applied++;
+            } catch (InvalidItemStateException e) {
+                conflicts++;
+                log.warn("{}: Skipping conflicting mutation '{}': {}", new Object[] {owner, mutation, e.getMessage()});
+                refresh(session);
+            } catch (RepositoryException e) {
+                failed++;
+                log.warn("{}: Unable to apply mutation '{}': {}", new Object[] {owner, mutation, e.getMessage()});
+                refresh(session);
+            } catch (RuntimeException e) {
+                failed++;
+                log.warn(owner + ": Error while applying mutation '" + mutation + "'", e);
+                refresh(session);
+            }
+        }
+    }
+
+    /**
+     * Apply the mutations in the transient space of the batch. The first mutation that fails is removed from the
+     * list, it may have made part of its changes.
+     * @return whether all mutations were applied
+     * @throws InvalidItemStateException when the state of the batch conflicts with another session
+     */
+    private boolean applyAll(final Session session, final List<Mutation> mutations)
+            throws InvalidItemStateException {
+        for (Iterator<Mutation> iterator = mutations.iterator(); iterator.hasNext();) {
+            final Mutation mutation = iterator.next();
+            try {
+                mutation.apply(session);
+            } catch (InvalidItemStateException e) {
+                throw e;
+            } catch (RepositoryException e) {
+                failed++;
+                log.warn("{}: Unable to apply mutation '{}': {}", new Object[] {owner, mutation, e.getMessage()});
+                iterator.remove();
+                return false;
+            } catch (RuntimeException e) {
+                failed++;
+                log.warn(owner + ": Error while applying mutation '" + mutation + "'", e);
+                iterator.remove();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void save(final Session session) throws RepositoryException {
+        final long start = System.nanoTime();
+        session.save();
+        RunReport.get().addTime(owner, RunReport.Phase.SAVE, System.nanoTime() - start);
+    }
+
+    private void refresh(final Session session) {
+        try {
+            session.refresh(false);
+        } catch (RepositoryException e) {
+            log.error(owner + ": Error while refreshing the writer session.", e);
+        }
+    }
+
+    /**
+     * Drop mutations that are replaced later in the batch, keeping the order of the remaining ones. Structural
+     * mutations are barriers: the mutations before one may depend on the old structure and the ones after it on
+     * the new one, so only mutations between two barriers are merged.
+     */
+    static List<Mutation> merge(final List<Mutation> batch) {
+        final Set<String> seen = new HashSet<String>();
+        final List<Mutation> reversed = new ArrayList<Mutation>(batch.size());
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            final Mutation mutation = batch.get(i);
+            final String key = mutation.getKey();
+            if (key == null) {
+                reversed.add(mutation);
+                seen.clear();
+            } else if (seen.add(key)) {
+                reversed.add(mutation);
+            }
+        }
+        Collections.reverse(reversed);
+        return reversed;
+    }
+}
@@ -15,12 +15,25 @@
  */
 package org.onehippo.forge.jcrrunner.plugins;
 
+import java.io.File;
+import java.util.List;
+
+import javax.jcr.Node;
 import javax.jcr.Session;
 
-import org.onehippo.forge.jcrrunner.RunnerPlugin;
+import org.onehippo.forge.jcrrunner.BatchRunnerPlugin;
+import org.onehippo.forge.jcrrunner.ResultSink;
 import org.onehippo.forge.jcrrunner.RunnerPluginConfig;
+import org.onehippo.forge.jcrrunner.mutation.MutationQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public abstract class AbstractRunnerPlugin implements BatchRunnerPlugin {
+
+    private static final Logger log = LoggerFactory.getLogger(AbstractRunnerPlugin.class);
 
-public abstract class AbstractRunnerPlugin implements RunnerPlugin {
+    private static final int OUTPUT_BUFFER_DEFAULT = 8192;
+    private static final int MUTATION_BATCH_SIZE_DEFAULT = 100;
 
     /**
      * Holder for the current plugin id
@@ -42,6 +55,16 @@ public abstract class AbstractRunnerPlugin implements RunnerPlugin {
         // empty default implementation
     }
 
+    /**
+     * Visits the nodes one by one, override to handle a batch at once.
+     */
+    @Override
+    public void visitBatch(List<Node> nodes) {
+        for (Node node : nodes) {
+            visit(node);
+        }
+    }
+
     @Override
     public final String getId() {
         return id;
@@ -104,4 +127,44 @@ public abstract class AbstractRunnerPlugin implements RunnerPlugin {
         }
         return Boolean.parseBoolean(value);
     }
+
+    /**
+     * Open a {@link ResultSink} for the results of this plugin, configured by the keys:
+     * <ul>
+     *     <li><code>output</code>: the file to write to</li>
+     *     <li><code>output.format</code>: <code>csv</code> (default) or <code>jsonl</code></li>
+     *     <li><code>output.gzip</code>: whether to gzip the output</li>
+     *     <li><code>output.rotate</code>: the file size in bytes after which to start a new file</li>
+     *     <li><code>output.buffer</code>: the maximum number of records waiting to be written</li>
+     * </ul>
+     * The sink is closed by the runner when the plugin is destroyed.
+     * @param columns the names of the values of each record
+     * @return the sink or <code>null</code> if no output file is configured or the format is unknown
+     */
+    protected final ResultSink openResultSink(String... columns) {
+        final String output = getConfigValue("output");
+        if (output == null || "".equals(output)) {
+            return null;
+        }
+        final String formatName = getConfigValue("output.format", "csv");
+        final ResultSink.Format format = ResultSink.Format.fromString(formatName);
+        if (format == null) {
+            log.error("{}: Unknown output.format '{}', use csv or jsonl. No results are written to '{}'.",
+                    new Object[] {getId(), formatName, output});
+            return null;
+        }
+        return ResultSink.open(getId(), new File(output), format, columns,
+                getBooleanConfigValue("output.gzip", false), getLongConfigValue("output.rotate", 0L),
+                getIntConfigValue("output.buffer", OUTPUT_BUFFER_DEFAULT));
+    }
+
+    /**
+     * Open a {@link MutationQueue} to record the changes of this plugin instead of making them on the session
+     * passed to {@link #visit(javax.jcr.Node)}. The number of mutations saved at once is configured by the key
+     * <code>mutation.batchsize</code>. The queue is closed by the runner when the plugin is destroyed.
+     * @return the queue
+     */
+    protected final MutationQueue openMutationQueue() {
+        return MutationQueue.open(getId(), getIntConfigValue("mutation.batchsize", MUTATION_BATCH_SIZE_DEFAULT));
+    }
 }
@@ -0,0 +1,426 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.onehippo.forge.jcrrunner.IndependentPlugin;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.JcrRunner;
+import org.onehippo.forge.jcrrunner.ResultSink;
+import org.onehippo.forge.jcrrunner.RunnerStopException;
+import org.onehippo.forge.jcrrunner.SessionPool;
+import org.onehippo.forge.jcrrunner.StoppablePlugin;
+import org.onehippo.forge.jcrrunner.util.ExternalSorter;
+import org.onehippo.forge.jcrrunner.util.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the content hash and size of the binaries of the visited nodes and reports the groups of duplicates.
+ * <p>
+ * Binaries are streamed through a fixed buffer per worker thread, so memory use does not depend on the size of
+ * the binaries. The reads run in parallel on pooled sessions, within an optional budget of bytes per second.
+ * <p>
+ * The hash, size and path of every binary are sorted on disk in chunks, so only the paths of one group of equal
+ * hashes are held in memory while reporting, however many distinct binaries are scanned.
+ * <p>
+ * The scans still running when the plugin is destroyed get <code>drain.timeout</code> seconds to finish. They are
+ * abandoned when that time is up or the runner is stopped, and the binaries that were not scanned are logged.
+ */
+public class BinaryScannerPlugin extends AbstractRunnerPlugin implements IndependentPlugin, StoppablePlugin {
+
+    private static Logger log = LoggerFactory.getLogger(BinaryScannerPlugin.class);
+
+    private static final String PROPERTY_DEFAULT = "jcr:data";
+    private static final String ALGORITHM_DEFAULT = "SHA-256";
+    private static final int THREADS_DEFAULT = 4;
+    private static final int BUFFER_SIZE_DEFAULT = 64 * 1024;
+    private static final int SORT_CHUNK_DEFAULT = 100000;
+    private static final long DRAIN_TIMEOUT_DEFAULT = 600L;
+    private static final long POLL_MILLIS = 200L;
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+    private static final char SEPARATOR = ' ';
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Hashes have the same length, so the plain string order keeps the results of a hash together.
+     */
+    private static final Comparator<String> HASH_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String result1, final String result2) {
+            return result1.compareTo(result2);
+        }
+    };
+
+    private String propertyName;
+    private String algorithm;
+    private int bufferSize;
+    private RateLimiter rateLimiter;
+    private SessionPool sessionPool;
+    private ExecutorService executor;
+    private Semaphore pending;
+    private ThreadLocal<Worker> workers;
+    private final List<Worker> allWorkers = new ArrayList<Worker>();
+    private long drainTimeoutMillis;
+    private volatile boolean stopped;
+    private final Set<String> unfinished = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    private ExternalSorter results;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong scannedBytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    @Override
+    public void init(Session session) {
+        propertyName = getConfigValue("property", PROPERTY_DEFAULT);
+        algorithm = getConfigValue("algorithm", ALGORITHM_DEFAULT);
+        bufferSize = getIntConfigValue("buffersize", BUFFER_SIZE_DEFAULT);
+        rateLimiter = new RateLimiter(getLongConfigValue("bytespersecond", 0L));
+        drainTimeoutMillis = TimeUnit.SECONDS.toMillis(getLongConfigValue("drain.timeout", DRAIN_TIMEOUT_DEFAULT));
+        results = new ExternalSorter(HASH_ORDER, getIntConfigValue("sort.chunk", SORT_CHUNK_DEFAULT));
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RunnerStopException("Unknown digest algorithm: " + algorithm);
+        }
+        int threads = getIntConfigValue("threads", THREADS_DEFAULT);
+        sessionPool = new SessionPool(threads);
+        executor = Executors.newFixedThreadPool(threads);
+        pending = new Semaphore(threads * 2);
+        workers = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                Worker worker = new Worker();
+                synchronized (allWorkers) {
+                    allWorkers.add(worker);
+                }
+                return worker;
+            }
+        };
+    }
+
+    @Override
+    public void visit(Node node) {
+        try {
+            if (!node.hasProperty(propertyName) || node.getProperty(propertyName).getType() != PropertyType.BINARY) {
+                return;
+            }
+            final String path = node.getPath();
+            while (!pending.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    throw new RunnerStopException("Stopped while waiting for binary scans");
+                }
+            }
+            unfinished.add(path);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (workers.get().scan(path)) {
+                            unfinished.remove(path);
+                        }
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch (RepositoryException e) {
+            log.warn("Unable to read binary of node " + JcrHelper.safeGetPath(node) + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RunnerStopException("Interrupted while scanning binaries");
+        }
+    }
+
+    @Override
+    public void destroy(Session session) {
+        executor.shutdown();
+        awaitScans();
+        synchronized (allWorkers) {
+            for (Worker worker : allWorkers) {
+                sessionPool.release(worker.session);
+            }
+        }
+        sessionPool.close();
+        try {
+            report();
+        } catch (IOException e) {
+            log.error("{}: Unable to read the sorted binary hashes: {}", getId(), e.getMessage());
+        } finally {
+            results.close();
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Wait for the running and queued scans, abandoning them when the runner is stopped or the drain timeout
+     * passed.
+     */
+    private void awaitScans() {
+        final long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        try {
+            while (!executor.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped || System.currentTimeMillis() >= deadline) {
+                    log.warn("{}: {}, abandoning {} binary scans.", new Object[] {getId(),
+                            stopped ? "Stopped" : "Scans did not finish in time", unfinished.size()});
+                    abandonScans();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{}: Interrupted while waiting for binary scans to finish.", getId());
+            abandonScans();
+        }
+    }
+
+    private void abandonScans() {
+        stopped = true;
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("{}: Binary reads are still running, their sessions are logged out.", getId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Results with the same hash are next to each other in the sorted results, they are collected one group at a
+     * time.
+     */
+    private void report() throws IOException {
+        ResultSink sink = openResultSink("hash", "size", "count", "path");
+        long duplicateGroups = 0;
+        long wastedBytes = 0;
+        synchronized (results) {
+            log.info("{}: Sorted {} binary hashes in {} chunks on disk.",
+                    new Object[] {getId(), results.size(), results.getSpilledChunks()});
+            Iterator<String> sorted = results.sorted();
+            DuplicateGroup group = null;
+            while (sorted.hasNext()) {
+                String[] result = splitResult(sorted.next());
+                if (group == null || !group.hash.equals(result[0])) {
+                    if (group != null && group.paths.size() > 1) {
+                        duplicateGroups++;
+                        wastedBytes += report(sink, group);
+                    }
+                    group = new DuplicateGroup(result[0], Long.parseLong(result[1]));
+                }
+                group.paths.add(result[2]);
+            }
+            if (group != null && group.paths.size() > 1) {
+                duplicateGroups++;
+                wastedBytes += report(sink, group);
+            }
+        }
+        log.info("{}: Scanned {} binaries, {} bytes, {} errors. Found {} groups of duplicates wasting {} bytes.",
+                new Object[] {getId(), scanned.get(), scannedBytes.get(), errors.get(), duplicateGroups, wastedBytes});
+        synchronized (unfinished) {
+            if (!unfinished.isEmpty()) {
+                log.warn("{}: {} binaries were not scanned, they are missing from the duplicates.", getId(),
+                        unfinished.size());
+                for (String path : unfinished) {
+                    log.warn("{}: Not scanned: {}", getId(), path);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes wasted by the group
+     */
+    private long report(ResultSink sink, DuplicateGroup group) {
+        for (String path : group.paths) {
+            if (sink != null) {
+                sink.emit(group.hash, group.size, group.paths.size(), path);
+            } else {
+                log.info("{}: Duplicate {} ({} bytes): {}", new Object[] {getId(), group.hash, group.size, path});
+            }
+        }
+        return group.size * (group.paths.size() - 1);
+    }
+
+    /**
+     * @return whether the result is recorded, <code>false</code> when the scans are abandoned
+     */
+    private boolean addResult(String hash, long size, String path) {
+        synchronized (results) {
+            if (stopped) {
+                // the results may already be reported
+                return false;
+            }
+            try {
+                results.add(hash + SEPARATOR + size + SEPARATOR + path);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                log.warn("Unable to spill the hash of binary at " + path + ": " + e.getMessage());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The path goes last, it may contain the separator.
+     */
+    private static String[] splitResult(String result) {
+        int hashEnd = result.indexOf(SEPARATOR);
+        int sizeEnd = result.indexOf(SEPARATOR, hashEnd + 1);
+        return new String[] {result.substring(0, hashEnd), result.substring(hashEnd + 1, sizeEnd),
+                result.substring(sizeEnd + 1)};
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Per thread scan state: a pooled session, a reusable read buffer and a digest.
+     */
+    private final class Worker {
+
+        private final byte[] buffer = new byte[bufferSize];
+        private final MessageDigest digest;
+        private Session session;
+
+        Worker() {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return whether the binaries of the node were hashed or failed, <code>false</code> when the scan was
+         * abandoned
+         */
+        boolean scan(String path) {
+            try {
+                if (session == null) {
+                    session = sessionPool.borrow();
+                }
+                Property property = session.getNode(path).getProperty(propertyName);
+                if (property.isMultiple()) {
+                    Value[] values = property.getValues();
+                    for (int i = 0; i < values.length; i++) {
+                        if (!scan(values[i].getBinary(), path + "[" + (i + 1) + "]")) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+                return scan(property.getBinary(), path);
+            } catch (RepositoryException e) {
+                if (stopped) {
+                    return false;
+                }
+                errors.incrementAndGet();
+                log.warn("Unable to read binary at " + path + ": " + e.getMessage());
+                return true;
+            } catch (IOException e) {
+                if (stopped) {
+                    return false;
+                }
+                errors.incrementAndGet();
+                log.warn("Error while streaming binary at " + path + ": " + e.getMessage());
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                if (session != null) {
+                    try {
+                        session.refresh(false);
+                    } catch (RepositoryException e) {
+                        log.debug("Error while refreshing scan session", e);
+                    }
+                }
+            }
+        }
+
+        private boolean scan(Binary binary, String path) throws RepositoryException, IOException,
+                InterruptedException {
+            InputStream in = null;
+            try {
+                in = binary.getStream();
+                digest.reset();
+                long size = 0;
+                int read;
+                while (!stopped && (read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    size += read;
+                    rateLimiter.acquire(read);
+                }
+                if (stopped) {
+                    return false;
+                }
+                scanned.incrementAndGet();
+                scannedBytes.addAndGet(size);
+                return addResult(toHex(digest.digest()), size, path);
+            } finally {
+                JcrRunner.closeQuietly(in);
+                binary.dispose();
+            }
+        }
+    }
+
+    private static final class DuplicateGroup {
+
+        private final String hash;
+        private final long size;
+        private final List<String> paths = new ArrayList<String>(1);
+
+        DuplicateGroup(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+}
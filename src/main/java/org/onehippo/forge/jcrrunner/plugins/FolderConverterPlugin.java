@@ -18,13 +18,19 @@ package org.onehippo.forge.jcrrunner.plugins;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.mutation.BulkMover;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Change folder type by moving all subnodes to a new node
+ * Change folder type by moving all subnodes to a new node. Folders with up to <code>chunksize</code> (default 100)
+ * subnodes are converted in the session and saved at once. The subnodes of larger folders are moved by the
+ * workspace in chunks, so they do not build up transient state. Those moves are persisted right away, a conversion
+ * that fails halfway leaves the new node next to the folder and is finished by the next run.
  */
 public class FolderConverterPlugin extends AbstractRunnerPlugin {
 
@@ -32,44 +38,144 @@ public class FolderConverterPlugin extends AbstractRunnerPlugin {
 
     private static final String OLD_TYPE = "hippostd:directory";
     private static final String NEW_TYPE = "hippostd:folder";
-    private static final String TMP_NAME = "tmptmptmptmp";
+    private static final String TMP_SUFFIX = ".tmptmptmptmp";
+    private static final int CHUNK_SIZE_DEFAULT = 100;
+
+    private int chunkSize;
+
+    @Override
+    public void init(Session session) {
+        chunkSize = getIntConfigValue("chunksize", CHUNK_SIZE_DEFAULT);
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+    }
 
     public void visit(Node node) {
         try {
             log.debug("Visit node {}", node.getPath());
-            if (!node.getPrimaryNodeType().getName().equals(OLD_TYPE)) {
-                return;
+            final String type = JcrHelper.getPrimaryTypeName(node);
+            if (type.equals(OLD_TYPE)) {
+                log.info("Found folder of type {} : {}", OLD_TYPE, node.getPath());
+                convert(node);
+            } else if (type.equals(NEW_TYPE) && node.getName().endsWith(TMP_SUFFIX)) {
+                finishRename(node);
             }
-            log.info("Found folder of type {} : {}", OLD_TYPE, node.getPath());
+        } catch (RepositoryException e) {
+            log.error("Error getting node path", e);
+            JcrHelper.refresh(false);
+        }
+    }
 
-            Node parent = node.getParent();
-            Node newNode = createTmpNode(parent);
-            String path = node.getPath();
-            String newPath = newNode.getPath();
-            
-            // move subnodes
-            NodeIterator iter = node.getNodes();
-            while (iter.hasNext()) {
-                Node child = iter.nextNode();
-                parent.getSession().move(child.getPath(), newPath + "/" + child.getName());
+    private void convert(Node node) throws RepositoryException {
+        Node parent = node.getParent();
+        String path = node.getPath();
+        String name = node.getName();
+        String tmpName = name + TMP_SUFFIX;
+        if (parent.hasNode(tmpName)) {
+            log.error("Found the new node {} of an earlier conversion that failed halfway, finishing it.",
+                    parent.getNode(tmpName).getPath());
+            convertInChunks(node, parent.getNode(tmpName));
+        } else if (hasMoreChildren(node, chunkSize)) {
+            Node newNode = createTmpNode(parent, tmpName);
+            if (JcrHelper.hasOrderableChildNodes(parent)) {
+                parent.orderBefore(tmpName, name + "[" + node.getIndex() + "]");
             }
-            
+            node.getSession().save();
+            convertInChunks(node, newNode);
+        } else {
+            convertInSession(node, tmpName);
+        }
+        log.info("Changed folder " + path + " from type " + OLD_TYPE + " to type " + NEW_TYPE);
+    }
+
+    /**
+     * Move the subnodes and rename the new node in the session, saved at once.
+     */
+    private void convertInSession(Node node, String tmpName) throws RepositoryException {
+        Session session = node.getSession();
+        Node parent = node.getParent();
+        String path = node.getPath();
+        String nextSibling = JcrHelper.getNextSiblingName(node);
+        Node newNode = createTmpNode(parent, tmpName);
+        String newPath = newNode.getPath();
+
+        // move subnodes
+        NodeIterator iter = node.getNodes();
+        while (iter.hasNext()) {
+            Node child = iter.nextNode();
+            session.move(child.getPath(), newPath + "/" + child.getName());
+        }
+
+        // remove old node
+        node.remove();
+
+        // rename tmp
+        session.move(newPath, path);
+        if (nextSibling != null) {
+            parent.orderBefore(newNode.getName() + "[" + newNode.getIndex() + "]", nextSibling);
+        }
+        session.save();
+    }
+
+    /**
+     * Move the subnodes with the workspace in chunks, remove the old node and rename the new one. Every step is
+     * persisted right away.
+     */
+    private void convertInChunks(Node node, Node newNode) throws RepositoryException {
+        Session session = node.getSession();
+        String path = node.getPath();
+        String name = node.getName();
+        BulkMover mover = new BulkMover(session, chunkSize);
+        try {
+            // move subnodes
+            long moved = mover.moveChildren(path, newNode.getPath());
+            log.info("Moved {} subnodes of {}", moved, path);
+
             // remove old node
             node.remove();
-            
-            // rename tmp
-            parent.getSession().move(newNode.getPath(), path);
-            
-            node.getSession().save();
+            session.save();
 
-            log.info("Changed folder " + path + " from type " + OLD_TYPE + " to type " + NEW_TYPE);
+            // rename tmp
+            mover.rename(newNode.getPath(), name);
         } catch (RepositoryException e) {
-            log.error("Error getting node path", e);
+            log.error("Conversion of folder " + path + " failed halfway, the subnodes moved so far are in "
+                    + newNode.getPath() + ". Run the plugin again to finish it.");
+            throw e;
+        }
+    }
+
+    /**
+     * Rename the new node of a conversion that failed after removing the old folder.
+     */
+    private void finishRename(Node newNode) throws RepositoryException {
+        String tmpName = newNode.getName();
+        String name = tmpName.substring(0, tmpName.length() - TMP_SUFFIX.length());
+        if (newNode.getParent().hasNode(name)) {
+            // the old folder is still there and is converted when it is visited
+            return;
+        }
+        log.error("Found the new node {} of an earlier conversion that failed halfway, renaming it to {}.",
+                newNode.getPath(), name);
+        new BulkMover(newNode.getSession(), chunkSize).rename(newNode.getPath(), name);
+    }
+
+    private static boolean hasMoreChildren(Node node, int limit) throws RepositoryException {
+        NodeIterator children = node.getNodes();
+        long size = children.getSize();
+        if (size >= 0) {
+            return size > limit;
+        }
+        long count = 0;
+        while (children.hasNext() && count <= limit) {
+            children.nextNode();
+            count++;
         }
+        return count > limit;
     }
 
-    private Node createTmpNode(Node parent) throws RepositoryException {
-        Node node = parent.addNode(TMP_NAME, NEW_TYPE);
+    private Node createTmpNode(Node parent, String tmpName) throws RepositoryException {
+        Node node = parent.addNode(tmpName, NEW_TYPE);
         node.addMixin("hippo:harddocument");
         node.setProperty("hippostd:foldertype", new String[] {"New Folder Text", "New Text"});
         return node;
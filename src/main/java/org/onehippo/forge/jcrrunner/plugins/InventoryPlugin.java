@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.onehippo.forge.jcrrunner.IndependentPlugin;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.JcrRunner;
+import org.onehippo.forge.jcrrunner.ResultSink;
+import org.onehippo.forge.jcrrunner.stats.ContentInventory;
+import org.onehippo.forge.jcrrunner.stats.HyperLogLog;
+import org.onehippo.forge.jcrrunner.stats.LogHistogram;
+import org.onehippo.forge.jcrrunner.stats.SpaceSaving;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gathers repository statistics in one pass with fixed memory: node counts per type, property name counts,
+ * the number of distinct values of the configured <code>properties</code>, binary size quantiles and the
+ * depth distribution.
+ * <p>
+ * The inventory can be saved to a <code>state</code> file, and the states of other runs, for example over other
+ * parts of the repository, can be merged in with <code>merge</code> before reporting.
+ */
+public class InventoryPlugin extends AbstractRunnerPlugin implements IndependentPlugin {
+
+    private static Logger log = LoggerFactory.getLogger(InventoryPlugin.class);
+
+    private static final int TOP_K_DEFAULT = 50;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 1.0};
+
+    private ContentInventory inventory;
+
+    @Override
+    public void init(Session session) {
+        List<String> properties = splitConfigValue("properties");
+        inventory = new ContentInventory(getIntConfigValue("topk", TOP_K_DEFAULT), properties,
+                getIntConfigValue("precision", HyperLogLog.DEFAULT_PRECISION));
+    }
+
+    @Override
+    public void visit(Node node) {
+        try {
+            inventory.addNode(JcrHelper.getPrimaryTypeName(node), node.getDepth());
+            PropertyIterator iter = node.getProperties();
+            while (iter.hasNext()) {
+                addProperty(iter.nextProperty());
+            }
+        } catch (RepositoryException e) {
+            log.warn("Unable to take inventory of node " + JcrHelper.safeGetPath(node) + ": " + e.getMessage());
+        }
+    }
+
+    private void addProperty(Property property) throws RepositoryException {
+        String name = property.getName();
+        inventory.addProperty(name);
+        if (property.getType() == PropertyType.BINARY) {
+            if (property.isMultiple()) {
+                for (long length : property.getLengths()) {
+                    inventory.addBinary(length);
+                }
+            } else {
+                inventory.addBinary(property.getLength());
+            }
+        } else if (inventory.isTracked(name)) {
+            if (property.isMultiple()) {
+                for (Value value : property.getValues()) {
+                    inventory.addPropertyValue(name, value.getString());
+                }
+            } else {
+                inventory.addPropertyValue(name, property.getString());
+            }
+        }
+    }
+
+    @Override
+    public void destroy(Session session) {
+        for (String state : splitConfigValue("merge")) {
+            ContentInventory other = readState(state);
+            if (other != null) {
+                inventory.merge(other);
+            }
+        }
+        String state = getConfigValue("state");
+        if (state != null && !"".equals(state)) {
+            writeState(state);
+        }
+        report();
+    }
+
+    private void report() {
+        ResultSink sink = openResultSink("metric", "key", "value");
+        report(sink, "nodes", "", inventory.getNodes());
+        for (SpaceSaving.Counter counter : inventory.getTypes().top(Integer.MAX_VALUE)) {
+            report(sink, "type", counter.getKey(), counter.getCount());
+        }
+        for (SpaceSaving.Counter counter : inventory.getPropertyNames().top(Integer.MAX_VALUE)) {
+            report(sink, "property", counter.getKey(), counter.getCount());
+        }
+        for (Map.Entry<String, HyperLogLog> entry : inventory.getCardinalities().entrySet()) {
+            report(sink, "distinct", entry.getKey(), entry.getValue().cardinality());
+        }
+        LogHistogram sizes = inventory.getBinarySizes();
+        report(sink, "binary.count", "", sizes.getCount());
+        report(sink, "binary.total", "", sizes.getSum());
+        for (double quantile : QUANTILES) {
+            report(sink, "binary.size", "p" + Math.round(quantile * 100), sizes.getValueAtQuantile(quantile));
+        }
+        long[] depths = inventory.getDepths();
+        for (int depth = 0; depth < depths.length; depth++) {
+            if (depths[depth] > 0) {
+                report(sink, "depth", String.valueOf(depth), depths[depth]);
+            }
+        }
+    }
+
+    private void report(ResultSink sink, String metric, String key, long value) {
+        if (sink != null) {
+            sink.emit(metric, key, value);
+        } else {
+            log.info("{}: {} {} {}", new Object[] {getId(), metric, key, value});
+        }
+    }
+
+    private ContentInventory readState(String file) {
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return (ContentInventory) in.readObject();
+        } catch (IOException e) {
+            log.error("Unable to read inventory state " + file + ": " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            log.error("Invalid inventory state " + file + ": " + e.getMessage());
+        } finally {
+            JcrRunner.closeQuietly(in);
+        }
+        return null;
+    }
+
+    private void writeState(String file) {
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeObject(inventory);
+        } catch (IOException e) {
+            log.error("Unable to write inventory state " + file + ": " + e.getMessage());
+        } finally {
+            JcrRunner.closeQuietly(out);
+        }
+    }
+
+    private List<String> splitConfigValue(String key) {
+        List<String> values = new ArrayList<String>();
+        String value = getConfigValue(key);
+        if (value != null) {
+            for (String element : value.split(",")) {
+                if (element.trim().length() > 0) {
+                    values.add(element.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.plugins;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.ResultSink;
+import org.onehippo.forge.jcrrunner.SessionPool;
+import org.onehippo.forge.jcrrunner.StoppablePlugin;
+import org.onehippo.forge.jcrrunner.stats.LogHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a mix of reads, small writes and queries over the visited nodes as load on the repository, to measure
+ * how it behaves under a known request rate.
+ * <p>
+ * The visited paths are collected first, a random sample of at most <code>maxnodes</code> of them. When the
+ * plugin is destroyed, requests are scheduled at a fixed <code>rate</code> per second for <code>duration</code>
+ * seconds and handled by one worker thread per session. The schedule does not wait for the workers (an open
+ * model), and the latency of a request is measured from the moment it was scheduled, so time spent waiting
+ * behind slow requests is part of the latency instead of lowering the request rate. Requests still waiting when
+ * the workers do not catch up in time are dropped, with their waiting time as latency. The latency and service
+ * time percentiles per operation are reported at the end.
+ * <p>
+ * Writes change content, so they are only replayed when both <code>mix.write</code> and the
+ * <code>write.property</code> to write into the sampled nodes are set. Scheduling stops when the runner is stopped.
+ */
+public class LoadGeneratorPlugin extends AbstractRunnerPlugin implements StoppablePlugin {
+
+    private static Logger log = LoggerFactory.getLogger(LoadGeneratorPlugin.class);
+
+    private static final int RATE_DEFAULT = 100;
+    private static final int DURATION_DEFAULT = 60;
+    private static final int SESSIONS_DEFAULT = 4;
+    private static final int MAX_NODES_DEFAULT = 100000;
+    private static final int READ_WEIGHT_DEFAULT = 80;
+    private static final int WRITE_WEIGHT_DEFAULT = 0;
+    private static final int QUERY_WEIGHT_DEFAULT = 5;
+    private static final long QUERY_LIMIT_DEFAULT = 10L;
+    private static final long DRAIN_TIMEOUT_DEFAULT = 60L;
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    private enum Operation {
+        READ, WRITE, QUERY
+    }
+
+    private static final Request END_OF_LOAD = new Request(null, null, 0L);
+
+    private final Random random = new Random(42);
+    private final List<String> paths = new ArrayList<String>();
+    private long visited;
+    private int maxNodes;
+    private volatile boolean stopped;
+
+    @Override
+    public void init(Session session) {
+        maxNodes = getIntConfigValue("maxnodes", MAX_NODES_DEFAULT);
+        if (getIntConfigValue("mix.write", WRITE_WEIGHT_DEFAULT) > 0 && getConfigValue("write.property") == null) {
+            throw new IllegalArgumentException("Set write.property to the property to write into the visited nodes"
+                    + " when mix.write is set.");
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void visit(Node node) {
+        String path = JcrHelper.safeGetPath(node);
+        if (path == null) {
+            return;
+        }
+        // reservoir sampling, every visited node has the same chance to be in the sample
+        visited++;
+        if (paths.size() < maxNodes) {
+            paths.add(path);
+        } else {
+            long index = (long) (random.nextDouble() * visited);
+            if (index < maxNodes) {
+                paths.set((int) index, path);
+            }
+        }
+    }
+
+    @Override
+    public void destroy(Session session) {
+        int[] weights = {getIntConfigValue("mix.read", READ_WEIGHT_DEFAULT),
+                getIntConfigValue("mix.write", WRITE_WEIGHT_DEFAULT),
+                getIntConfigValue("mix.query", QUERY_WEIGHT_DEFAULT)};
+        if (getConfigValue("load.query") == null) {
+            weights[Operation.QUERY.ordinal()] = 0;
+        }
+        if (paths.isEmpty()) {
+            weights[Operation.READ.ordinal()] = 0;
+            weights[Operation.WRITE.ordinal()] = 0;
+        }
+        if (stopped) {
+            log.info("{}: Runner stopped, no load is replayed.", getId());
+            return;
+        }
+        if (weights[0] + weights[1] + weights[2] <= 0) {
+            log.warn("{}: No nodes visited and no load.query set, nothing to replay.", getId());
+            return;
+        }
+        new LoadRun(weights).run();
+    }
+
+    /**
+     * One load run: the scheduler on the calling thread and the workers on their own sessions.
+     */
+    private final class LoadRun {
+
+        private final int[] weights;
+        private final int totalWeight;
+        private final int rate;
+        private final int duration;
+        private final String writeProperty;
+        private final String query;
+        private final String queryLanguage;
+        private final long queryLimit;
+        private final long drainTimeout;
+        private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+        private final List<Worker> workers = new ArrayList<Worker>();
+        private final LogHistogram[] dropped = new LogHistogram[Operation.values().length];
+        private final SessionPool sessionPool;
+
+        LoadRun(int[] weights) {
+            this.weights = weights;
+            this.totalWeight = weights[0] + weights[1] + weights[2];
+            this.rate = getIntConfigValue("rate", RATE_DEFAULT);
+            this.duration = getIntConfigValue("duration", DURATION_DEFAULT);
+            this.writeProperty = getConfigValue("write.property");
+            this.query = getConfigValue("load.query");
+            this.queryLanguage = getConfigValue("load.query.language", Query.XPATH);
+            this.queryLimit = getLongConfigValue("load.query.limit", QUERY_LIMIT_DEFAULT);
+            this.drainTimeout = getLongConfigValue("drain.timeout", DRAIN_TIMEOUT_DEFAULT);
+            if (rate < 1) {
+                throw new IllegalArgumentException("Rate must be positive: " + rate);
+            }
+            int sessions = getIntConfigValue("sessions", SESSIONS_DEFAULT);
+            this.sessionPool = new SessionPool(sessions);
+            for (int i = 0; i < sessions; i++) {
+                workers.add(new Worker(this, "load-" + getId() + "-" + i));
+            }
+            for (int i = 0; i < dropped.length; i++) {
+                dropped[i] = new LogHistogram();
+            }
+        }
+
+        void run() {
+            log.info("{}: Replaying {} requests per second for {} seconds on {} sessions over {} of {} visited nodes,"
+                    + " mix read/write/query {}/{}/{}", new Object[] {getId(), rate, duration, workers.size(),
+                    paths.size(), visited, weights[0], weights[1], weights[2]});
+            for (Worker worker : workers) {
+                worker.start();
+            }
+            long start = System.nanoTime();
+            long scheduled = schedule(start);
+            for (int i = 0; i < workers.size(); i++) {
+                requests.add(END_OF_LOAD);
+            }
+            awaitWorkers(System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeout));
+            long backlog = drop();
+            // interrupting may close the channels of a local repository, the workers stop after their request
+            for (int i = 0; i < workers.size(); i++) {
+                requests.add(END_OF_LOAD);
+            }
+            // the histograms of a worker are only read after it stopped
+            for (Worker worker : workers) {
+                try {
+                    worker.join(STOP_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (worker.isAlive()) {
+                    log.warn("{}: {} did not stop in time, its numbers may be incomplete.", getId(),
+                            worker.getName());
+                }
+            }
+            sessionPool.close();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report(scheduled, backlog, seconds);
+        }
+
+        /**
+         * Wait for the workers to handle the scheduled requests, until the deadline or until the runner is stopped.
+         */
+        private void awaitWorkers(long deadline) {
+            for (Worker worker : workers) {
+                long remaining;
+                while (worker.isAlive() && !stopped && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedJoin(worker, Math.min(remaining, POLL_NANOS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Drop the requests the workers did not take in time, recording how long they waited as their latency.
+         * @return the number of dropped requests
+         */
+        private long drop() {
+            List<Request> backlog = new ArrayList<Request>();
+            requests.drainTo(backlog);
+            long now = System.nanoTime();
+            long count = 0;
+            for (Request request : backlog) {
+                if (request != END_OF_LOAD) {
+                    dropped[request.operation.ordinal()].record((now - request.intended) / NANOS_PER_MICRO);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Schedule the requests at fixed intervals, never waiting for the workers.
+         * @return the number of scheduled requests
+         */
+        private long schedule(long start) {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long total = (long) rate * duration;
+            for (long i = 0; i < total; i++) {
+                long intended = start + i * interval;
+                long wait;
+                // sleeping may end slightly early
+                while ((wait = intended - System.nanoTime()) > 0 && !stopped) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(Math.min(wait, POLL_NANOS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log.warn("{}: Interrupted, stopped scheduling after {} requests.", getId(), i);
+                        return i;
+                    }
+                }
+                if (stopped) {
+                    log.info("{}: Runner stopped, stopped scheduling after {} requests.", getId(), i);
+                    return i;
+                }
+                Operation operation = pickOperation();
+                String path = operation == Operation.QUERY ? null : paths.get(random.nextInt(paths.size()));
+                requests.add(new Request(operation, path, intended));
+            }
+            return total;
+        }
+
+        private Operation pickOperation() {
+            int pick = random.nextInt(totalWeight);
+            for (Operation operation : Operation.values()) {
+                pick -= weights[operation.ordinal()];
+                if (pick < 0) {
+                    return operation;
+                }
+            }
+            throw new IllegalStateException("No operation for weights");
+        }
+
+        private void report(long scheduled, long backlog, double seconds) {
+            ResultSink sink = openResultSink("operation", "metric", "value");
+            long handled = 0;
+            for (Operation operation : Operation.values()) {
+                LogHistogram latency = new LogHistogram();
+                LogHistogram service = new LogHistogram();
+                long errors = 0;
+                for (Worker worker : workers) {
+                    latency.merge(worker.latencies[operation.ordinal()]);
+                    service.merge(worker.serviceTimes[operation.ordinal()]);
+                    errors += worker.errors[operation.ordinal()];
+                }
+                handled += latency.getCount();
+                latency.merge(dropped[operation.ordinal()]);
+                if (latency.getCount() == 0) {
+                    continue;
+                }
+                String name = operation.name().toLowerCase(Locale.ENGLISH);
+                report(sink, name, "count", latency.getCount());
+                report(sink, name, "errors", errors);
+                report(sink, name, "dropped", dropped[operation.ordinal()].getCount());
+                for (double quantile : QUANTILES) {
+                    String label = quantile == 1.0 ? "max" : "p" + String.valueOf(quantile * 100).replace(".0", "");
+                    report(sink, name, "latency.us." + label, latency.getValueAtQuantile(quantile));
+                    report(sink, name, "service.us." + label, service.getValueAtQuantile(quantile));
+                }
+            }
+            log.info("{}: Handled {} of {} scheduled requests in {} seconds, {} per second. {} requests were still"
+                    + " waiting at the end and dropped.", new Object[] {getId(), handled, scheduled,
+                    String.format(Locale.ENGLISH, "%.1f", seconds),
+                    String.format(Locale.ENGLISH, "%.1f", handled / seconds), backlog});
+        }
+
+        private void report(ResultSink sink, String operation, String metric, long value) {
+            if (sink != null) {
+                sink.emit(operation, metric, value);
+            } else {
+                log.info("{}: {} {} {}", new Object[] {getId(), operation, metric, value});
+            }
+        }
+    }
+
+    /**
+     * Handles requests on a session of its own, recording the latency and service time per operation.
+     */
+    private final class Worker extends Thread {
+
+        private final LoadRun run;
+        private final String owner;
+        private final LogHistogram[] latencies = new LogHistogram[Operation.values().length];
+        private final LogHistogram[] serviceTimes = new LogHistogram[Operation.values().length];
+        private final long[] errors = new long[Operation.values().length];
+
+        Worker(LoadRun run, String name) {
+            super(name);
+            this.run = run;
+            this.owner = LoadGeneratorPlugin.this.getId();
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LogHistogram();
+                serviceTimes[i] = new LogHistogram();
+            }
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Session session = null;
+            try {
+                session = run.sessionPool.borrow();
+                while (true) {
+                    Request request = run.requests.take();
+                    if (request == END_OF_LOAD) {
+                        return;
+                    }
+                    handle(session, request);
+                }
+            } catch (RepositoryException e) {
+                log.error(owner + ": Unable to login load session.", e);
+            } catch (InterruptedException e) {
+                log.debug("{} interrupted.", getName());
+            } finally {
+                run.sessionPool.release(session);
+            }
+        }
+
+        private void handle(Session session, Request request) {
+            int index = request.operation.ordinal();
+            long start = System.nanoTime();
+            try {
+                switch (request.operation) {
+                case READ:
+                    read(session.getNode(request.path));
+                    break;
+                case WRITE:
+                    session.getNode(request.path).setProperty(run.writeProperty, Calendar.getInstance());
+                    session.save();
+                    break;
+                case QUERY:
+                    query(session);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + request.operation);
+                }
+            } catch (RepositoryException e) {
+                errors[index]++;
+                log.debug("{}: {} of {} failed: {}", new Object[] {owner, request.operation, request.path,
+                        e.getMessage()});
+                refresh(session);
+            }
+            long end = System.nanoTime();
+            latencies[index].record((end - request.intended) / NANOS_PER_MICRO);
+            serviceTimes[index].record((end - start) / NANOS_PER_MICRO);
+        }
+
+        private void read(Node node) throws RepositoryException {
+            PropertyIterator properties = node.getProperties();
+            while (properties.hasNext()) {
+                Property property = properties.nextProperty();
+                if (property.getType() == PropertyType.BINARY) {
+                    continue;
+                }
+                if (property.isMultiple()) {
+                    property.getValues();
+                } else {
+                    property.getValue();
+                }
+            }
+        }
+
+        private void query(Session session) throws RepositoryException {
+            Query jcrQuery = session.getWorkspace().getQueryManager().createQuery(run.query, run.queryLanguage);
+            jcrQuery.setLimit(run.queryLimit);
+            NodeIterator nodes = jcrQuery.execute().getNodes();
+            while (nodes.hasNext()) {
+                nodes.nextNode();
+            }
+        }
+
+        private void refresh(Session session) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                log.debug("Error while refreshing load session", e);
+            }
+        }
+    }
+
+    private static final class Request {
+
+        private final Operation operation;
+        private final String path;
+        private final long intended;
+
+        Request(Operation operation, String path, long intended) {
+            this.operation = operation;
+            this.path = path;
+            this.intended = intended;
+        }
+    }
+}
@@ -16,20 +16,35 @@
 package org.onehippo.forge.jcrrunner.plugins;
 
 import javax.jcr.Node;
+import javax.jcr.Session;
 
+import org.onehippo.forge.jcrrunner.IndependentPlugin;
 import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.ResultSink;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Example {@link org.onehippo.forge.jcrrunner.RunnerPlugin} implementation that just logs all calls.
+ * When an <code>output</code> file is configured the visited paths are written to that file instead.
  */
-public class LoggingPlugin extends AbstractRunnerPlugin {
+public class LoggingPlugin extends AbstractRunnerPlugin implements IndependentPlugin {
 
     private static Logger log = LoggerFactory.getLogger(LoggingPlugin.class);
 
+    private ResultSink sink;
+
+    @Override
+    public void init(Session session) {
+        sink = openResultSink("path");
+    }
+
     @Override
     public void visit(Node node) {
-        log.info("Visiting node {}", JcrHelper.safeGetPath(node));
+        if (sink != null) {
+            sink.emit(JcrHelper.safeGetPath(node));
+        } else {
+            log.info("Visiting node {}", JcrHelper.safeGetPath(node));
+        }
     }
 }
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.onehippo.forge.jcrrunner.util.TopK;
+
+/**
+ * Counts the calls on wrapped JCR objects per method, and optionally their total time. Against a remote
+ * repository almost every call is a round-trip, so the counts show which access patterns of a plugin are chatty.
+ * <p>
+ * Only calls made through the wrapped objects are counted: calls the repository makes internally and calls on
+ * sessions and nodes the plugin gets elsewhere, like {@link org.onehippo.forge.jcrrunner.JcrHelper#getSession()},
+ * are not.
+ */
+public final class CallCounter implements Interceptor {
+
+    private static final double NANOS_IN_MILLI = 1000000.0;
+
+    private final boolean timing;
+    private final Map<Method, MethodStats> stats = new HashMap<Method, MethodStats>();
+
+    /**
+     * @param timing whether to measure the time of the calls as well
+     */
+    public CallCounter(final boolean timing) {
+        this.timing = timing;
+    }
+
+    @Override
+    public Object intercept(final Invocation invocation) throws Throwable {
+        if (!timing) {
+            record(invocation.getMethod(), 0L);
+            return invocation.proceed();
+        }
+        final long start = System.nanoTime();
+        try {
+            return invocation.proceed();
+        } finally {
+            record(invocation.getMethod(), System.nanoTime() - start);
+        }
+    }
+
+    private synchronized void record(final Method method, final long nanos) {
+        MethodStats methodStats = stats.get(method);
+        if (methodStats == null) {
+            methodStats = new MethodStats(method.getDeclaringClass().getSimpleName() + "." + method.getName());
+            stats.put(method, methodStats);
+        }
+        methodStats.count++;
+        methodStats.nanos += nanos;
+    }
+
+    public boolean isTiming() {
+        return timing;
+    }
+
+    /**
+     * @return the total number of calls
+     */
+    public synchronized long getCount() {
+        long count = 0;
+        for (MethodStats methodStats : stats.values()) {
+            count += methodStats.count;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of calls of a method, by its <code>Interface.method</code> name
+     */
+    public synchronized long getCount(final String name) {
+        long count = 0;
+        for (MethodStats methodStats : stats.values()) {
+            if (methodStats.name.equals(name)) {
+                count += methodStats.count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param k the number of methods to return
+     * @return the methods with the most calls, most first, as <code>Interface.method: count calls, time</code>
+     */
+    public synchronized List<String> getTopByCount(final int k) {
+        final TopK<MethodStats> top = new TopK<MethodStats>(k);
+        for (MethodStats methodStats : stats.values()) {
+            top.offer(methodStats.count, methodStats);
+        }
+        return describe(top);
+    }
+
+    /**
+     * @param k the number of methods to return
+     * @return the methods with the most total time, most first, empty when not timing
+     */
+    public synchronized List<String> getTopByTime(final int k) {
+        final TopK<MethodStats> top = new TopK<MethodStats>(k);
+        if (timing) {
+            for (MethodStats methodStats : stats.values()) {
+                top.offer(methodStats.nanos, methodStats);
+            }
+        }
+        return describe(top);
+    }
+
+    private List<String> describe(final TopK<MethodStats> top) {
+        final List<String> lines = new ArrayList<String>(top.size());
+        for (TopK.Entry<MethodStats> entry : top.getEntries()) {
+            final MethodStats methodStats = entry.getItem();
+            if (timing) {
+                lines.add(String.format(Locale.ENGLISH, "%s: %d calls, %.3f ms", methodStats.name,
+                        methodStats.count, methodStats.nanos / NANOS_IN_MILLI));
+            } else {
+                lines.add(methodStats.name + ": " + methodStats.count + " calls");
+            }
+        }
+        return lines;
+    }
+
+    private static final class MethodStats {
+
+        private final String name;
+        private long count;
+        private long nanos;
+
+        MethodStats(final String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+/**
+ * Intercepts the calls on JCR objects wrapped by a {@link JcrProxyFactory}.
+ */
+public interface Interceptor {
+
+    /**
+     * Handle a call. Implementations normally call {@link Invocation#proceed()} to pass the call on to the next
+     * interceptor and eventually to the wrapped object.
+     * @param invocation the call
+     * @return the result of the call
+     * @throws Throwable the exception of the call
+     */
+    Object intercept(Invocation invocation) throws Throwable;
+}
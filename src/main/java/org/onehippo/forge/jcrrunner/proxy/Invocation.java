@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * A call on a wrapped JCR object, passed along the chain of interceptors. Arguments are already unwrapped.
+ */
+public final class Invocation {
+
+    private final List<Interceptor> interceptors;
+    private final Object target;
+    private final Method method;
+    private final Object[] arguments;
+    private int position;
+
+    Invocation(final List<Interceptor> interceptors, final Object target, final Method method,
+               final Object[] arguments) {
+        this.interceptors = interceptors;
+        this.target = target;
+        this.method = method;
+        this.arguments = arguments;
+    }
+
+    /**
+     * @return the wrapped object
+     */
+    public Object getTarget() {
+        return target;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the arguments, <code>null</code> for methods without arguments
+     */
+    public Object[] getArguments() {
+        return arguments;
+    }
+
+    /**
+     * Pass the call on to the next interceptor, or to the wrapped object after the last one.
+     * @return the unwrapped result
+     * @throws Throwable the exception thrown by the wrapped object
+     */
+    public Object proceed() throws Throwable {
+        if (position < interceptors.size()) {
+            final Interceptor interceptor = interceptors.get(position++);
+            try {
+                return interceptor.intercept(this);
+            } finally {
+                position--;
+            }
+        }
+        try {
+            return method.invoke(target, arguments);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
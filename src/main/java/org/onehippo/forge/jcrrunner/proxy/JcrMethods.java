@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Classification of JCR methods by name, shared by the interceptors.
+ */
+final class JcrMethods {
+
+    /**
+     * Methods of sessions and items that change the transient space.
+     */
+    private static final Set<String> MODIFYING = new HashSet<String>(Arrays.asList(
+            "addNode", "setProperty", "setValue", "addMixin", "removeMixin", "setPrimaryType", "orderBefore",
+            "remove", "removeShare", "removeSharedSet", "move", "removeItem", "importXML"));
+
+    /**
+     * Methods that persist, discard or otherwise change state outside the transient space.
+     */
+    private static final Set<String> PERSISTING = new HashSet<String>(Arrays.asList(
+            "save", "refresh", "logout", "copy", "clone", "update", "merge", "restore", "restoreByLabel",
+            "checkin", "checkout", "checkpoint", "lock", "unlock", "followLifecycleTransition"));
+
+    private JcrMethods() {
+    }
+
+    static boolean isModifying(final String name) {
+        return MODIFYING.contains(name);
+    }
+
+    /**
+     * @return whether the method may change what is read afterwards
+     */
+    static boolean isWriting(final String name) {
+        return MODIFYING.contains(name) || PERSISTING.contains(name);
+    }
+}
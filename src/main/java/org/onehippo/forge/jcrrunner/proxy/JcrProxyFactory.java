@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Binary;
+import javax.jcr.Item;
+import javax.jcr.Value;
+
+/**
+ * Wraps JCR objects in dynamic proxies that pass every call through a chain of {@link Interceptor}s.
+ * <p>
+ * The proxies implement all public interfaces of the wrapped object, so repository specific interfaces like
+ * <code>HippoNode</code> keep working. JCR objects returned by a call are wrapped as well, so the whole object
+ * graph reached from a wrapped session or node is intercepted. Wrapped arguments are unwrapped before they are
+ * passed to the repository.
+ */
+public final class JcrProxyFactory {
+
+    private static final String JCR_PACKAGE = "javax.jcr.";
+
+    private static final Map<Class<?>, Class<?>[]> INTERFACES = new ConcurrentHashMap<Class<?>, Class<?>[]>();
+
+    private final List<Interceptor> interceptors;
+
+    public JcrProxyFactory(final List<Interceptor> interceptors) {
+        this.interceptors = Collections.unmodifiableList(new ArrayList<Interceptor>(interceptors));
+    }
+
+    /**
+     * Wrap an object. Already wrapped objects and <code>null</code> are returned as is.
+     * @param target the object to wrap
+     * @return the proxy, implementing all public interfaces of the target
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T wrap(final T target) {
+        if (target == null || isProxy(target) || interceptors.isEmpty()) {
+            return target;
+        }
+        final Class<?>[] interfaces = getInterfaces(target.getClass());
+        return (T) Proxy.newProxyInstance(target.getClass().getClassLoader(), interfaces, new Handler(target));
+    }
+
+    /**
+     * @return whether the object is a proxy created by a <code>JcrProxyFactory</code>
+     */
+    public static boolean isProxy(final Object object) {
+        return object != null && Proxy.isProxyClass(object.getClass())
+                && Proxy.getInvocationHandler(object) instanceof Handler;
+    }
+
+    /**
+     * @return the wrapped object of a proxy, or the object itself if it is not a proxy
+     */
+    public static Object unwrap(final Object object) {
+        if (isProxy(object)) {
+            return ((Handler) Proxy.getInvocationHandler(object)).target;
+        }
+        return object;
+    }
+
+    private static Class<?>[] getInterfaces(final Class<?> type) {
+        Class<?>[] interfaces = INTERFACES.get(type);
+        if (interfaces == null) {
+            final Set<Class<?>> found = new LinkedHashSet<Class<?>>();
+            collectInterfaces(type, found);
+            interfaces = found.toArray(new Class<?>[found.size()]);
+            INTERFACES.put(type, interfaces);
+        }
+        return interfaces;
+    }
+
+    private static void collectInterfaces(final Class<?> type, final Set<Class<?>> found) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (Class<?> iface : current.getInterfaces()) {
+                if (Modifier.isPublic(iface.getModifiers())) {
+                    found.add(iface);
+                }
+                collectInterfaces(iface, found);
+            }
+        }
+    }
+
+    /**
+     * JCR objects are wrapped, except for values and binaries which hold data and do not call the repository.
+     */
+    private static boolean isWrappable(final Class<?> declaredType, final Object result) {
+        if (result == null || result instanceof Value || result instanceof Binary) {
+            return false;
+        }
+        if (result instanceof Item) {
+            return true;
+        }
+        return declaredType.isInterface() && declaredType.getName().startsWith(JCR_PACKAGE);
+    }
+
+    private static Object[] unwrapArguments(final Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        Object[] unwrapped = args;
+        for (int i = 0; i < args.length; i++) {
+            if (isProxy(args[i])) {
+                if (unwrapped == args) {
+                    unwrapped = args.clone();
+                }
+                unwrapped[i] = unwrap(args[i]);
+            }
+        }
+        return unwrapped;
+    }
+
+    private final class Handler implements InvocationHandler {
+
+        private final Object target;
+
+        Handler(final Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                final String name = method.getName();
+                if ("equals".equals(name)) {
+                    return target.equals(unwrap(args[0]));
+                } else if ("hashCode".equals(name)) {
+                    return target.hashCode();
+                }
+                return target.toString();
+            }
+            final Invocation invocation = new Invocation(interceptors, target, method, unwrapArguments(args));
+            final Object result = invocation.proceed();
+            if (isWrappable(method.getReturnType(), result)) {
+                return wrap(result);
+            }
+            return result;
+        }
+    }
+}
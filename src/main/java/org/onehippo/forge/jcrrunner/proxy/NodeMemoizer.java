@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Item;
+
+/**
+ * Remembers the results of the getters of wrapped nodes and properties, so a plugin calling the same getter
+ * repeatedly during a visit only reaches the repository once. Path, name, identifier, node types, properties
+ * and property values are remembered until {@link #clear()}, which the runner calls after every visit, or until
+ * any write through a wrapped object, which clears everything.
+ * <p>
+ * Changes made through objects that are not wrapped, including other sessions, are not noticed within a visit.
+ */
+public final class NodeMemoizer implements Interceptor {
+
+    /**
+     * Safety net for visits that read a lot, like iterating over all descendants.
+     */
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final Set<String> MEMOIZED_METHODS = new HashSet<String>(Arrays.asList(
+            // items
+            "getPath", "getName", "getDepth", "getIdentifier", "getPrimaryNodeType", "getMixinNodeTypes",
+            "isNodeType", "getProperty", "hasProperty",
+            // property values
+            "getValue", "getValues", "getString", "getLong", "getDouble", "getDecimal", "getBoolean", "getDate",
+            "getType", "isMultiple"));
+
+    private final Map<CallKey, Object> results = new HashMap<CallKey, Object>();
+    private long hits;
+    private long misses;
+
+    @Override
+    public Object intercept(final Invocation invocation) throws Throwable {
+        final String name = invocation.getMethod().getName();
+        if (!(invocation.getTarget() instanceof Item) || !MEMOIZED_METHODS.contains(name)) {
+            if (JcrMethods.isWriting(name)) {
+                try {
+                    return invocation.proceed();
+                } finally {
+                    clear();
+                }
+            }
+            return invocation.proceed();
+        }
+        final CallKey key = new CallKey(invocation.getTarget(), invocation.getMethod(), invocation.getArguments());
+        synchronized (this) {
+            if (results.containsKey(key)) {
+                hits++;
+                return copy(results.get(key));
+            }
+        }
+        final Object result = invocation.proceed();
+        synchronized (this) {
+            misses++;
+            if (results.size() >= MAX_ENTRIES) {
+                results.clear();
+            }
+            results.put(key, result);
+        }
+        return copy(result);
+    }
+
+    /**
+     * Forget all remembered results.
+     */
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    /**
+     * @return the number of calls answered from memory
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of calls passed on to the repository and remembered
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Arrays and calendars are mutable, callers get their own copy.
+     */
+    private static Object copy(final Object result) {
+        if (result instanceof Object[]) {
+            return ((Object[]) result).clone();
+        } else if (result instanceof Calendar) {
+            return ((Calendar) result).clone();
+        }
+        return result;
+    }
+
+    private static final class CallKey {
+
+        private final Object target;
+        private final Method method;
+        private final Object[] arguments;
+        private final int hash;
+
+        CallKey(final Object target, final Method method, final Object[] arguments) {
+            this.target = target;
+            this.method = method;
+            this.arguments = arguments;
+            this.hash = 31 * (31 * System.identityHashCode(target) + method.hashCode()) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof CallKey)) {
+                return false;
+            }
+            final CallKey other = (CallKey) o;
+            return target == other.target && method.equals(other.method)
+                    && Arrays.equals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import org.onehippo.forge.jcrrunner.JcrHelper;
+
+/**
+ * Makes the node type cache of {@link JcrHelper} forget the type names of nodes after every write through a
+ * wrapped object, so type checks later in the same visit see mixins and primary types the plugin changed.
+ */
+public final class NodeTypeInvalidator implements Interceptor {
+
+    @Override
+    public Object intercept(final Invocation invocation) throws Throwable {
+        if (!JcrMethods.isWriting(invocation.getMethod().getName())) {
+            return invocation.proceed();
+        }
+        try {
+            return invocation.proceed();
+        } finally {
+            JcrHelper.clearNodeTypeNames();
+        }
+    }
+}
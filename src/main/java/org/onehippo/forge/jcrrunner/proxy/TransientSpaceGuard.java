@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import javax.jcr.Item;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+
+import org.onehippo.forge.jcrrunner.RunReport;
+import org.onehippo.forge.jcrrunner.trace.Span;
+import org.onehippo.forge.jcrrunner.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the unsaved changes made through wrapped JCR objects, by number of modified items and an estimate
+ * of their size, and saves the session when a ceiling is reached. The changes are never discarded, that would
+ * lose the writes of the plugin while the run reports success.
+ * <p>
+ * Changes made on the session without going through a wrapped object are not counted. The plugin makes its
+ * changes on the thread that visits, so the guard does not wait for someone else to save them.
+ */
+public final class TransientSpaceGuard implements Interceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(TransientSpaceGuard.class);
+
+    /**
+     * Rough size of the state of a modified item without its values.
+     */
+    private static final int ITEM_SIZE_ESTIMATE = 128;
+    private static final int VALUE_SIZE_ESTIMATE = 16;
+
+    private final String owner;
+    private final Session session;
+    private final long maxItems;
+    private final long maxBytes;
+
+    private long pendingItems;
+    private long pendingBytes;
+    private long enforced;
+
+    /**
+     * @param owner the id of the plugin, for logging
+     * @param session the unwrapped session the changes are made on
+     * @param maxItems the maximum number of modified items, 0 for no limit
+     * @param maxBytes the maximum estimated size of the changes, 0 for no limit
+     */
+    public TransientSpaceGuard(final String owner, final Session session, final long maxItems, final long maxBytes) {
+        this.owner = owner;
+        this.session = session;
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Object intercept(final Invocation invocation) throws Throwable {
+        final Object target = invocation.getTarget();
+        final String name = invocation.getMethod().getName();
+        if (target instanceof Workspace || !(target instanceof Session || target instanceof Item)) {
+            // workspace operations are persisted immediately
+            return invocation.proceed();
+        }
+        if ("save".equals(name) || "logout".equals(name) || isDiscardingRefresh(target, invocation)) {
+            final Object result = invocation.proceed();
+            reset();
+            return result;
+        }
+        if (!JcrMethods.isModifying(name)) {
+            return invocation.proceed();
+        }
+        final Object result = invocation.proceed();
+        if (record(estimateSize(invocation.getArguments()))) {
+            enforce();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of times the ceiling was enforced
+     */
+    public synchronized long getEnforcedCount() {
+        return enforced;
+    }
+
+    public synchronized long getPendingItems() {
+        return pendingItems;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    private static boolean isDiscardingRefresh(final Object target, final Invocation invocation) {
+        // only a session refresh drops all pending changes
+        return target instanceof Session && "refresh".equals(invocation.getMethod().getName())
+                && Boolean.FALSE.equals(invocation.getArguments()[0]);
+    }
+
+    /**
+     * @return whether a ceiling is reached
+     */
+    private synchronized boolean record(final long bytes) {
+        pendingItems++;
+        pendingBytes += bytes;
+        return (maxItems > 0 && pendingItems >= maxItems) || (maxBytes > 0 && pendingBytes >= maxBytes);
+    }
+
+    private synchronized void reset() {
+        pendingItems = 0;
+        pendingBytes = 0;
+    }
+
+    private void enforce() throws RepositoryException {
+        final long items;
+        final long bytes;
+        synchronized (this) {
+            enforced++;
+            items = pendingItems;
+            bytes = pendingBytes;
+        }
+        log.debug("{}: Transient space ceiling reached with {} items, about {} bytes, saving.",
+                new Object[] {owner, items, bytes});
+        save();
+        reset();
+    }
+
+    private void save() throws RepositoryException {
+        final long start = System.nanoTime();
+        final Span span = Tracer.get().startSpan("transient space save").setAttribute("plugin.id", owner);
+        try {
+            session.save();
+        } finally {
+            span.end();
+        }
+        RunReport.get().addTime(owner, RunReport.Phase.SAVE, System.nanoTime() - start);
+    }
+
+    private static long estimateSize(final Object[] args) {
+        long size = ITEM_SIZE_ESTIMATE;
+        if (args == null) {
+            return size;
+        }
+        for (Object arg : args) {
+            size += estimateValueSize(arg);
+        }
+        return size;
+    }
+
+    private static long estimateValueSize(final Object arg) {
+        if (arg instanceof String) {
+            return 2L * ((String) arg).length();
+        } else if (arg instanceof Object[]) {
+            long size = 0;
+            for (Object element : (Object[]) arg) {
+                size += estimateValueSize(element);
+            }
+            return size;
+        }
+        // binaries are spooled to temporary files by the repository, other values are small
+        return VALUE_SIZE_ESTIMATE;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.stats;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Repository statistics gathered in one pass with fixed memory: node counts per primary type, property name
+ * counts, the number of distinct values of selected properties, binary sizes and node depths. Inventories of
+ * parallel workers or of separate runs over different parts of the repository can be merged.
+ */
+public class ContentInventory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Nodes at this depth or deeper are counted in the last depth bucket.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private long nodes;
+    private final SpaceSaving types;
+    private final SpaceSaving propertyNames;
+    private final Map<String, HyperLogLog> cardinalities = new LinkedHashMap<String, HyperLogLog>();
+    private final LogHistogram binarySizes = new LogHistogram();
+    private final long[] depths = new long[MAX_DEPTH];
+
+    /**
+     * @param topK the number of node types and property names to keep counts for
+     * @param trackedProperties the names of the properties to count distinct values for
+     * @param precision the precision of the distinct value counters
+     */
+    public ContentInventory(final int topK, final Collection<String> trackedProperties, final int precision) {
+        types = new SpaceSaving(topK);
+        propertyNames = new SpaceSaving(topK);
+        for (String name : trackedProperties) {
+            cardinalities.put(name, new HyperLogLog(precision));
+        }
+    }
+
+    public void addNode(final String primaryType, final int depth) {
+        nodes++;
+        types.add(primaryType);
+        depths[Math.min(depth, MAX_DEPTH - 1)]++;
+    }
+
+    public void addProperty(final String name) {
+        propertyNames.add(name);
+    }
+
+    public boolean isTracked(final String propertyName) {
+        return cardinalities.containsKey(propertyName);
+    }
+
+    public void addPropertyValue(final String name, final String value) {
+        final HyperLogLog counter = cardinalities.get(name);
+        if (counter != null) {
+            counter.add(value);
+        }
+    }
+
+    public void addBinary(final long size) {
+        binarySizes.record(Math.max(0L, size));
+    }
+
+    public void merge(final ContentInventory other) {
+        nodes += other.nodes;
+        types.merge(other.types);
+        propertyNames.merge(other.propertyNames);
+        for (Map.Entry<String, HyperLogLog> entry : other.cardinalities.entrySet()) {
+            final HyperLogLog counter = cardinalities.get(entry.getKey());
+            if (counter != null) {
+                counter.merge(entry.getValue());
+            } else {
+                final HyperLogLog copy = new HyperLogLog(entry.getValue().getPrecision());
+                copy.merge(entry.getValue());
+                cardinalities.put(entry.getKey(), copy);
+            }
+        }
+        binarySizes.merge(other.binarySizes);
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            depths[i] += other.depths[i];
+        }
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public SpaceSaving getTypes() {
+        return types;
+    }
+
+    public SpaceSaving getPropertyNames() {
+        return propertyNames;
+    }
+
+    public Map<String, HyperLogLog> getCardinalities() {
+        return cardinalities;
+    }
+
+    public LogHistogram getBinarySizes() {
+        return binarySizes;
+    }
+
+    /**
+     * @return the number of nodes per depth, the root node is at depth 0
+     */
+    public long[] getDepths() {
+        return depths.clone();
+    }
+}
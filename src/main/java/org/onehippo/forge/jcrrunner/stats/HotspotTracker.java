@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.stats;
+
+import java.util.List;
+import java.util.Locale;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrrunner.util.TopK;
+
+/**
+ * Keeps the slowest visits and the heaviest subtrees of a traversal in bounded memory: the <code>size</code>
+ * slowest {@link org.onehippo.forge.jcrrunner.RunnerPlugin#visit(Node)} calls, the subtrees with the most nodes
+ * and the most cumulative time, and the nodes with the most direct children.
+ * <p>
+ * Subtree sizes and times include those of their descendants, so the ancestors of a heavy subtree are listed as
+ * well. The widest nodes point at the folders with too many children directly. The path of a node is only read
+ * when it makes it into a list.
+ */
+public final class HotspotTracker implements HotspotTrackerMBean {
+
+    private static final double NANOS_IN_MILLI = 1000000.0;
+
+    private final int size;
+
+    private long visits;
+    private TopK<String> slowestVisits;
+    private TopK<Subtree> largestSubtrees;
+    private TopK<Subtree> slowestSubtrees;
+    private TopK<Subtree> widestNodes;
+
+    public HotspotTracker(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be positive: " + size);
+        }
+        this.size = size;
+        reset();
+    }
+
+    /**
+     * Record a visit.
+     * @param node the visited node
+     * @param nanos the duration of the visit
+     */
+    public synchronized void visited(final Node node, final long nanos) {
+        visits++;
+        if (nanos > slowestVisits.getThreshold()) {
+            slowestVisits.offer(nanos, getPath(node));
+        }
+    }
+
+    /**
+     * Record a visited subtree.
+     * @param path the path of the root of the subtree
+     * @param nodes the number of visited nodes in the subtree, including its root
+     * @param children the number of direct children of the root
+     * @param nanos the time it took to visit the subtree
+     */
+    public synchronized void subtreeVisited(final String path, final long nodes, final long children,
+                                            final long nanos) {
+        if (nodes <= largestSubtrees.getThreshold() && nanos <= slowestSubtrees.getThreshold()
+                && children <= widestNodes.getThreshold()) {
+            return;
+        }
+        final Subtree subtree = new Subtree(path, nodes, children, nanos);
+        largestSubtrees.offer(nodes, subtree);
+        slowestSubtrees.offer(nanos, subtree);
+        if (children > 0) {
+            widestNodes.offer(children, subtree);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized long getVisits() {
+        return visits;
+    }
+
+    @Override
+    public synchronized String[] getSlowestVisits() {
+        final List<TopK.Entry<String>> entries = slowestVisits.getEntries();
+        final String[] lines = new String[entries.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = formatMillis(entries.get(i).getScore()) + " " + entries.get(i).getItem();
+        }
+        return lines;
+    }
+
+    @Override
+    public synchronized String[] getLargestSubtrees() {
+        return describe(largestSubtrees);
+    }
+
+    @Override
+    public synchronized String[] getSlowestSubtrees() {
+        return describe(slowestSubtrees);
+    }
+
+    @Override
+    public synchronized String[] getWidestNodes() {
+        return describe(widestNodes);
+    }
+
+    @Override
+    public synchronized void reset() {
+        visits = 0;
+        slowestVisits = new TopK<String>(size);
+        largestSubtrees = new TopK<Subtree>(size);
+        slowestSubtrees = new TopK<Subtree>(size);
+        widestNodes = new TopK<Subtree>(size);
+    }
+
+    private static String[] describe(final TopK<Subtree> subtrees) {
+        final List<TopK.Entry<Subtree>> entries = subtrees.getEntries();
+        final String[] lines = new String[entries.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = entries.get(i).getItem().toString();
+        }
+        return lines;
+    }
+
+    private static String formatMillis(final long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f ms", nanos / NANOS_IN_MILLI);
+    }
+
+    private static String getPath(final Node node) {
+        try {
+            return node.getPath();
+        } catch (RepositoryException e) {
+            return "<unknown>";
+        }
+    }
+
+    private static final class Subtree {
+
+        private final String path;
+        private final long nodes;
+        private final long children;
+        private final long nanos;
+
+        Subtree(final String path, final long nodes, final long children, final long nanos) {
+            this.path = path;
+            this.nodes = nodes;
+            this.children = children;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return nodes + " nodes, " + children + " children, " + formatMillis(nanos) + " " + path;
+        }
+    }
+}
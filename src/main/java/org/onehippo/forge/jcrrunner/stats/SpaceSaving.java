@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.stats;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-saving top-k counter. Keeps at most <code>capacity</code> counters; when a new key arrives while all
+ * counters are in use, the key takes over the smallest counter. Counts are exact as long as there are fewer
+ * distinct keys than the capacity, otherwise every count overestimates by at most its recorded error.
+ * Counters can be merged.
+ */
+public class SpaceSaving implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+
+    public SpaceSaving(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<String, Counter>(capacity * 2);
+    }
+
+    public void add(final String key) {
+        add(key, 1L);
+    }
+
+    public void add(final String key, final long increment) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() < capacity) {
+                counter = new Counter(key, 0L, 0L);
+            } else {
+                final Counter smallest = findSmallest();
+                counters.remove(smallest.key);
+                counter = new Counter(key, smallest.count, smallest.count);
+            }
+            counters.put(key, counter);
+        }
+        counter.count += increment;
+    }
+
+    /**
+     * Merge another counter into this one. Keys missing from one side are assumed to have had at most the
+     * smallest count of that side when it was full.
+     */
+    public void merge(final SpaceSaving other) {
+        final long thisMissing = counters.size() < capacity ? 0L : findSmallest().count;
+        final long otherMissing = other.counters.size() < other.capacity ? 0L : other.findSmallest().count;
+        final Map<String, Counter> merged = new HashMap<String, Counter>();
+        for (Counter counter : counters.values()) {
+            final Counter theirs = other.counters.get(counter.key);
+            if (theirs != null) {
+                merged.put(counter.key, new Counter(counter.key, counter.count + theirs.count,
+                        counter.error + theirs.error));
+            } else {
+                merged.put(counter.key, new Counter(counter.key, counter.count + otherMissing,
+                        counter.error + otherMissing));
+            }
+        }
+        for (Counter theirs : other.counters.values()) {
+            if (!merged.containsKey(theirs.key)) {
+                merged.put(theirs.key, new Counter(theirs.key, theirs.count + thisMissing, theirs.error + thisMissing));
+            }
+        }
+        final List<Counter> sorted = sort(merged.values());
+        counters.clear();
+        for (Counter counter : sorted.subList(0, Math.min(capacity, sorted.size()))) {
+            counters.put(counter.key, counter);
+        }
+    }
+
+    /**
+     * @param k the number of keys to return
+     * @return the k keys with the highest counts, highest first
+     */
+    public List<Counter> top(final int k) {
+        final List<Counter> sorted = sort(counters.values());
+        return sorted.subList(0, Math.min(k, sorted.size()));
+    }
+
+    public int size() {
+        return counters.size();
+    }
+
+    private Counter findSmallest() {
+        Counter smallest = null;
+        for (Counter counter : counters.values()) {
+            if (smallest == null || counter.count < smallest.count) {
+                smallest = counter;
+            }
+        }
+        return smallest;
+    }
+
+    private static List<Counter> sort(final Iterable<Counter> values) {
+        final List<Counter> sorted = new ArrayList<Counter>();
+        for (Counter counter : values) {
+            sorted.add(counter);
+        }
+        Collections.sort(sorted, new Comparator<Counter>() {
+            @Override
+            public int compare(final Counter a, final Counter b) {
+                if (a.count == b.count) {
+                    return a.key.compareTo(b.key);
+                }
+                return a.count > b.count ? -1 : 1;
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Count of a key with the maximum overestimation of the count.
+     */
+    public static final class Counter implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private long count;
+        private final long error;
+
+        Counter(final String key, final long count, final long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timed operation of a run, started by the {@link Tracer}. Spans that are not recorded, because tracing is
+ * disabled or the span was not sampled, ignore all calls, so callers never have to check.
+ * <p>
+ * A span must be ended on the thread that started it, or it stays the parent of spans started later on that
+ * thread. It is still exported when ended on another thread.
+ */
+public class Span {
+
+    /**
+     * Span that is not recorded.
+     */
+    static final Span NOOP = new Span();
+
+    private final Tracer tracer;
+    private final Span parent;
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final boolean detailed;
+    private final long startNanos;
+    private final List<Object[]> attributes;
+    private long endNanos;
+
+    private Span() {
+        this.tracer = null;
+        this.parent = null;
+        this.name = null;
+        this.traceId = null;
+        this.spanId = null;
+        this.detailed = false;
+        this.startNanos = 0L;
+        this.attributes = null;
+    }
+
+    Span(final Tracer tracer, final Span parent, final String name, final String traceId, final String spanId,
+         final boolean detailed, final long startNanos) {
+        this.tracer = tracer;
+        this.parent = parent;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.detailed = detailed;
+        this.startNanos = startNanos;
+        this.attributes = new ArrayList<Object[]>(4);
+    }
+
+    /**
+     * @return whether the span is recorded, to skip collecting attributes that are expensive to get
+     */
+    public boolean isRecording() {
+        return tracer != null;
+    }
+
+    /**
+     * Set an attribute. Integers and booleans keep their type, everything else is exported as string.
+     */
+    public Span setAttribute(final String key, final Object value) {
+        if (tracer != null && value != null) {
+            attributes.add(new Object[] {key, value});
+        }
+        return this;
+    }
+
+    public void end() {
+        if (tracer != null && endNanos == 0L) {
+            endNanos = tracer.now();
+            tracer.ended(this);
+        }
+    }
+
+    Span getParent() {
+        return parent;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return whether calls made within the span are traced in detail
+     */
+    boolean isDetailed() {
+        return detailed;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long getEndNanos() {
+        return endNanos;
+    }
+
+    List<Object[]> getAttributes() {
+        return attributes;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.onehippo.forge.jcrrunner.util.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the spans of a run and exports them to a file in the OpenTelemetry protocol JSON encoding, one
+ * <code>ExportTraceServiceRequest</code> per line, as written by the OpenTelemetry collector file exporter.
+ * <p>
+ * Three kinds of spans keep the overhead under control:
+ * <ul>
+ *     <li>{@link #startSpan(String)} is always recorded, for operations that are few or expensive anyway</li>
+ *     <li>{@link #startSampledSpan(String)} is recorded for the configured fraction of calls, for visits</li>
+ *     <li>{@link #startDetailSpan(String)} is only recorded within a sampled span, for cheap helper calls</li>
+ * </ul>
+ * Tracing is disabled until {@link #open(File, double, int)} is called; all spans are then no-ops.
+ */
+public final class Tracer {
+
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+    private static final String SERVICE_NAME = "jcr-runner";
+    private static final String SCOPE_NAME = "org.onehippo.forge.jcrrunner";
+    private static final int SPAN_KIND_INTERNAL = 1;
+    private static final int SPANS_PER_LINE = 512;
+    private static final long NANOS_IN_MILLI = 1000000L;
+
+    private static final Tracer DISABLED = new Tracer(null, null, 0.0, 0);
+
+    private static volatile Tracer instance = DISABLED;
+
+    private final File file;
+    private final Writer writer;
+    private final double sampleRate;
+    private final int depth;
+    private final Random random = new Random();
+    private final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+    private final long epochNanos;
+    private final long baseNanos;
+
+    private List<Span> ended = new ArrayList<Span>(SPANS_PER_LINE);
+    private long exported;
+    private boolean closed;
+
+    private Tracer(final File file, final Writer writer, final double sampleRate, final int depth) {
+        this.file = file;
+        this.writer = writer;
+        this.sampleRate = sampleRate;
+        this.depth = depth;
+        this.epochNanos = System.currentTimeMillis() * NANOS_IN_MILLI;
+        this.baseNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the tracer of the run, disabled if tracing is not configured
+     */
+    public static Tracer get() {
+        return instance;
+    }
+
+    /**
+     * Start tracing to a file, replacing an existing one.
+     * @param file the file to export the spans to
+     * @param sampleRate the fraction of sampled spans that is recorded, between 0 and 1
+     * @param depth the number of levels below the start of a traversal that get a span per subtree
+     * @return the tracer
+     */
+    public static synchronized Tracer open(final File file, final double sampleRate, final int depth)
+            throws IOException {
+        if (sampleRate < 0.0 || sampleRate > 1.0) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + sampleRate);
+        }
+        close();
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        instance = new Tracer(file, writer, sampleRate, depth);
+        log.info("Tracing to {}, sampling {} of the visits, subtrees {} levels deep.",
+                new Object[] {file.getAbsolutePath(), sampleRate, depth});
+        return instance;
+    }
+
+    /**
+     * Export the remaining spans and stop tracing. Spans ended afterwards are dropped.
+     */
+    public static synchronized void close() {
+        final Tracer tracer = instance;
+        instance = DISABLED;
+        if (tracer != DISABLED) {
+            tracer.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * @return the number of levels below the start of a traversal that get a span per subtree
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Start a span that is always recorded, as child of the current span of the thread.
+     */
+    public Span startSpan(final String name) {
+        if (writer == null) {
+            return Span.NOOP;
+        }
+        return start(name, false);
+    }
+
+    /**
+     * Start a span that is recorded for the configured fraction of calls. Calls within a recorded sampled span
+     * are traced in detail.
+     */
+    public Span startSampledSpan(final String name) {
+        if (writer == null || sampleRate == 0.0 || (sampleRate < 1.0 && random.nextDouble() >= sampleRate)) {
+            return Span.NOOP;
+        }
+        return start(name, true);
+    }
+
+    /**
+     * Start a span that is only recorded within a sampled span.
+     */
+    public Span startDetailSpan(final String name) {
+        if (writer == null) {
+            return Span.NOOP;
+        }
+        final Span parent = currentSpan.get();
+        if (parent == null || !parent.isDetailed()) {
+            return Span.NOOP;
+        }
+        return start(name, true);
+    }
+
+    private Span start(final String name, final boolean detailed) {
+        final Span parent = currentSpan.get();
+        final String traceId = parent == null ? hex(random.nextLong()) + hex(random.nextLong())
+                : parent.getTraceId();
+        final Span span = new Span(this, parent, name, traceId, hex(random.nextLong()), detailed, now());
+        currentSpan.set(span);
+        return span;
+    }
+
+    long now() {
+        return epochNanos + System.nanoTime() - baseNanos;
+    }
+
+    void ended(final Span span) {
+        if (currentSpan.get() == span) {
+            currentSpan.set(span.getParent());
+        }
+        List<Span> full = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            ended.add(span);
+            if (ended.size() >= SPANS_PER_LINE) {
+                full = ended;
+                ended = new ArrayList<Span>(SPANS_PER_LINE);
+            }
+        }
+        if (full != null) {
+            export(full);
+        }
+    }
+
+    private void shutdown() {
+        final List<Span> remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = ended;
+            ended = new ArrayList<Span>(0);
+        }
+        if (!remaining.isEmpty()) {
+            export(remaining);
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.warn("Error while closing trace file " + file.getAbsolutePath(), e);
+        }
+        log.info("Exported {} spans to {}", exported, file.getAbsolutePath());
+    }
+
+    private synchronized void export(final List<Span> spans) {
+        try {
+            final JsonWriter json = new JsonWriter(writer);
+            json.beginObject().name("resourceSpans").beginArray().beginObject();
+            json.name("resource").beginObject().name("attributes").beginArray();
+            writeAttribute(json, "service.name", SERVICE_NAME);
+            json.endArray().endObject();
+            json.name("scopeSpans").beginArray().beginObject();
+            json.name("scope").beginObject().property("name", SCOPE_NAME).endObject();
+            json.name("spans").beginArray();
+            for (Span span : spans) {
+                writeSpan(json, span);
+            }
+            json.endArray().endObject().endArray();
+            json.endObject().endArray().endObject();
+            writer.write('\n');
+            writer.flush();
+            exported += spans.size();
+        } catch (IOException e) {
+            log.error("Unable to export " + spans.size() + " spans to " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static void writeSpan(final JsonWriter json, final Span span) throws IOException {
+        json.beginObject();
+        json.property("traceId", span.getTraceId());
+        json.property("spanId", span.getSpanId());
+        if (span.getParent() != null) {
+            json.property("parentSpanId", span.getParent().getSpanId());
+        }
+        json.property("name", span.getName());
+        json.property("kind", SPAN_KIND_INTERNAL);
+        // 64 bit integers are strings in the JSON encoding
+        json.property("startTimeUnixNano", Long.toString(span.getStartNanos()));
+        json.property("endTimeUnixNano", Long.toString(span.getEndNanos()));
+        json.name("attributes").beginArray();
+        for (Object[] attribute : span.getAttributes()) {
+            writeAttribute(json, (String) attribute[0], attribute[1]);
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void writeAttribute(final JsonWriter json, final String key, final Object value)
+            throws IOException {
+        json.beginObject().property("key", key).name("value").beginObject();
+        if (value instanceof Long || value instanceof Integer) {
+            json.property("intValue", value.toString());
+        } else if (value instanceof Boolean) {
+            json.property("boolValue", value);
+        } else {
+            json.property("stringValue", value.toString());
+        }
+        json.endObject().endObject();
+    }
+
+    private static String hex(final long value) {
+        final String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts more strings than fit in memory. Strings are collected in chunks, every full chunk is sorted and spilled
+ * to a temporary file, and the sorted chunks are merged while iterating. Memory use depends on the chunk size and
+ * the number of chunks, not on the number of strings.
+ * <p>
+ * Usage: {@link #add(String)} all strings, then iterate once over {@link #sorted()} and {@link #close()} the
+ * sorter to remove the temporary files. Not thread safe.
+ */
+public final class ExternalSorter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ExternalSorter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Comparator<String> comparator;
+    private final int chunkSize;
+    private final List<File> runs = new ArrayList<File>();
+    private final List<DataInputStream> readers = new ArrayList<DataInputStream>();
+    private List<String> chunk;
+    private long size;
+    private boolean sorting;
+
+    /**
+     * @param comparator the order to sort in
+     * @param chunkSize the number of strings sorted in memory at once
+     */
+    public ExternalSorter(final Comparator<String> comparator, final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.comparator = comparator;
+        this.chunkSize = chunkSize;
+        this.chunk = new ArrayList<String>();
+    }
+
+    public void add(final String value) throws IOException {
+        if (sorting) {
+            throw new IllegalStateException("Sorter is already iterating.");
+        }
+        chunk.add(value);
+        size++;
+        if (chunk.size() >= chunkSize) {
+            spill();
+        }
+    }
+
+    /**
+     * @return the number of added strings
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of chunks spilled to disk
+     */
+    public int getSpilledChunks() {
+        return runs.size();
+    }
+
+    /**
+     * @return all added strings in order, can only be called once
+     */
+    public Iterator<String> sorted() throws IOException {
+        if (sorting) {
+            throw new IllegalStateException("Sorter is already iterating.");
+        }
+        sorting = true;
+        Collections.sort(chunk, comparator);
+        if (runs.isEmpty()) {
+            return chunk.iterator();
+        }
+        final PriorityQueue<Run> heads = new PriorityQueue<Run>(runs.size() + 1, new Comparator<Run>() {
+            @Override
+            public int compare(final Run run1, final Run run2) {
+                return comparator.compare(run1.head, run2.head);
+            }
+        });
+        addRun(heads, new MemoryRun(chunk.iterator()));
+        for (File file : runs) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_SIZE));
+            readers.add(in);
+            addRun(heads, new FileRun(in));
+        }
+        return new MergeIterator(heads);
+    }
+
+    /**
+     * Remove the temporary files.
+     */
+    @Override
+    public void close() {
+        for (DataInputStream in : readers) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("Unable to close sorted chunk: " + e.getMessage());
+            }
+        }
+        readers.clear();
+        for (File file : runs) {
+            if (!file.delete()) {
+                log.warn("Unable to delete sorted chunk {}", file);
+            }
+        }
+        runs.clear();
+        chunk = new ArrayList<String>();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(chunk, comparator);
+        final File file = File.createTempFile("jcr-runner-sort", ".tmp");
+        file.deleteOnExit();
+        runs.add(file);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE));
+        try {
+            for (String value : chunk) {
+                out.writeUTF(value);
+            }
+        } finally {
+            out.close();
+        }
+        log.debug("Spilled chunk {} of {} strings to {}", new Object[] {runs.size(), chunk.size(), file});
+        chunk = new ArrayList<String>();
+    }
+
+    private static void addRun(final PriorityQueue<Run> heads, final Run run) throws IOException {
+        if (run.advance()) {
+            heads.add(run);
+        }
+    }
+
+    private abstract static class Run {
+
+        String head;
+
+        /**
+         * @return whether there is a new head
+         */
+        abstract boolean advance() throws IOException;
+    }
+
+    private static final class MemoryRun extends Run {
+
+        private final Iterator<String> values;
+
+        MemoryRun(final Iterator<String> values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean advance() {
+            head = values.hasNext() ? values.next() : null;
+            return head != null;
+        }
+    }
+
+    private static final class FileRun extends Run {
+
+        private final DataInputStream in;
+
+        FileRun(final DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            try {
+                head = in.readUTF();
+                return true;
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            }
+        }
+    }
+
+    private static final class MergeIterator implements Iterator<String> {
+
+        private final PriorityQueue<Run> heads;
+
+        MergeIterator(final PriorityQueue<Run> heads) {
+            this.heads = heads;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            final Run run = heads.poll();
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            final String value = run.head;
+            try {
+                addRun(heads, run);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read sorted chunk", e);
+            }
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import org.onehippo.forge.jcrrunner.stats.Hashing;
+
+/**
+ * Compact set of node identifiers. UUIDs are stored as two longs in an open addressing table with linear probing,
+ * 16 bytes per slot instead of the more than 100 bytes per entry of a <code>HashSet&lt;String&gt;</code>. Other
+ * identifiers are stored as a 128 bit hash, with a negligible chance of two of them colliding.
+ * <p>
+ * The table lives on the heap, in a direct buffer outside the heap, or in a memory mapped temporary file that
+ * the operating system pages out to disk when memory runs short. Buffers are limited to 1 GB, which is room for
+ * about 50 million identifiers, see {@link #getMaxSize()}. Not thread safe.
+ */
+public final class IdentifierSet implements Closeable {
+
+    public enum Storage {
+        HEAP, DIRECT, FILE;
+
+        public static Storage fromString(final String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private static final int MIN_SLOTS = 1024;
+    private static final int MAX_HEAP_SLOTS = 1 << 29;
+    private static final int MAX_BUFFER_SLOTS = 1 << 26;
+    private static final int BYTES_PER_SLOT = 16;
+    private static final double MAX_LOAD = 0.75;
+    private static final int UUID_LENGTH = 36;
+
+    private final Storage storage;
+    private Table table;
+    private int mask;
+    private long size;
+    /**
+     * The empty slot is (0, 0), so the nil UUID is kept aside.
+     */
+    private boolean containsNil;
+
+    /**
+     * @param storage where to keep the table
+     * @param expectedSize the number of identifiers to reserve room for, the set grows beyond it when needed
+     */
+    public IdentifierSet(final Storage storage, final int expectedSize) throws IOException {
+        this.storage = storage;
+        int slots = MIN_SLOTS;
+        while (slots < getMaxSlots() && slots * MAX_LOAD < expectedSize) {
+            slots <<= 1;
+        }
+        this.table = createTable(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * @return <code>true</code> if the identifier was not in the set yet
+     * @throws IOException when the table can not grow, because no memory can be mapped or the set is full
+     */
+    public boolean add(final String identifier) throws IOException {
+        final long high = high(identifier);
+        final long low = low(identifier);
+        if (high == 0L && low == 0L) {
+            if (containsNil) {
+                return false;
+            }
+            containsNil = true;
+            size++;
+            return true;
+        }
+        if (size + 1 > (mask + 1) * MAX_LOAD) {
+            grow();
+        }
+        int slot = slot(high, low);
+        while (true) {
+            final long slotHigh = table.get(2 * slot);
+            final long slotLow = table.get(2 * slot + 1);
+            if (slotHigh == 0L && slotLow == 0L) {
+                table.set(2 * slot, high);
+                table.set(2 * slot + 1, low);
+                size++;
+                return true;
+            }
+            if (slotHigh == high && slotLow == low) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean contains(final String identifier) {
+        final long high = high(identifier);
+        final long low = low(identifier);
+        if (high == 0L && low == 0L) {
+            return containsNil;
+        }
+        int slot = slot(high, low);
+        while (true) {
+            final long slotHigh = table.get(2 * slot);
+            final long slotLow = table.get(2 * slot + 1);
+            if (slotHigh == 0L && slotLow == 0L) {
+                return false;
+            }
+            if (slotHigh == high && slotLow == low) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of identifiers the set can hold with its storage
+     */
+    public long getMaxSize() {
+        return (long) (getMaxSlots() * MAX_LOAD);
+    }
+
+    /**
+     * @return the size of the table in bytes
+     */
+    public long getTableBytes() {
+        return (mask + 1L) * BYTES_PER_SLOT;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Release the table. Off heap memory is released when the buffer is garbage collected, a temporary file is
+     * deleted right away where the platform allows it.
+     */
+    @Override
+    public void close() {
+        if (table != null) {
+            table.close();
+            table = null;
+        }
+    }
+
+    private int getMaxSlots() {
+        return storage == Storage.HEAP ? MAX_HEAP_SLOTS : MAX_BUFFER_SLOTS;
+    }
+
+    private void grow() throws IOException {
+        final int slots = mask + 1;
+        if (slots >= getMaxSlots()) {
+            throw new IOException("Identifier set is full with " + size + " identifiers.");
+        }
+        final Table old = table;
+        table = createTable(slots << 1);
+        mask = (slots << 1) - 1;
+        for (int i = 0; i < slots; i++) {
+            final long high = old.get(2 * i);
+            final long low = old.get(2 * i + 1);
+            if (high != 0L || low != 0L) {
+                int slot = slot(high, low);
+                while (table.get(2 * slot) != 0L || table.get(2 * slot + 1) != 0L) {
+                    slot = (slot + 1) & mask;
+                }
+                table.set(2 * slot, high);
+                table.set(2 * slot + 1, low);
+            }
+        }
+        old.close();
+    }
+
+    private int slot(final long high, final long low) {
+        return (int) Hashing.mix64(high ^ Hashing.mix64(low)) & mask;
+    }
+
+    private Table createTable(final int slots) throws IOException {
+        switch (storage) {
+        case HEAP:
+            return new HeapTable(slots * 2);
+        case DIRECT:
+            return new BufferTable(ByteBuffer.allocateDirect(slots * BYTES_PER_SLOT).asLongBuffer(), null);
+        case FILE:
+            return createFileTable(slots);
+        default:
+            throw new IllegalStateException("Unknown storage " + storage);
+        }
+    }
+
+    private static Table createFileTable(final int slots) throws IOException {
+        final File file = File.createTempFile("jcr-runner-identifiers", ".bin");
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength((long) slots * BYTES_PER_SLOT);
+            final LongBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) slots * BYTES_PER_SLOT).asLongBuffer();
+            return new BufferTable(buffer, file);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    //------------------------------- IDENTIFIER PARSING -----------------------//
+    private static boolean isUuid(final String identifier) {
+        if (identifier.length() != UUID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            final char c = identifier.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long high(final String identifier) {
+        if (isUuid(identifier)) {
+            return parseHex(identifier, 0, 18);
+        }
+        return Hashing.hash64(identifier);
+    }
+
+    private static long low(final String identifier) {
+        if (isUuid(identifier)) {
+            return parseHex(identifier, 19, UUID_LENGTH);
+        }
+        // a second hash, independent of the first by running backwards from another offset
+        long hash = 0x84222325cbf29ce4L;
+        for (int i = identifier.length() - 1; i >= 0; i--) {
+            hash ^= identifier.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Hashing.mix64(hash);
+    }
+
+    /**
+     * Parse the hex digits between two positions, skipping dashes.
+     */
+    private static long parseHex(final String s, final int from, final int to) {
+        long value = 0L;
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c != '-') {
+                value = (value << 4) | Character.digit(c, 16);
+            }
+        }
+        return value;
+    }
+
+    //------------------------------- STORAGE -----------------------//
+    private interface Table {
+
+        long get(int index);
+
+        void set(int index, long value);
+
+        void close();
+    }
+
+    private static final class HeapTable implements Table {
+
+        private final long[] values;
+
+        HeapTable(final int length) {
+            values = new long[length];
+        }
+
+        @Override
+        public long get(final int index) {
+            return values[index];
+        }
+
+        @Override
+        public void set(final int index, final long value) {
+            values[index] = value;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class BufferTable implements Table {
+
+        private final LongBuffer values;
+        private final File file;
+
+        BufferTable(final LongBuffer values, final File file) {
+            this.values = values;
+            this.file = file;
+        }
+
+        @Override
+        public long get(final int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void set(final int index, final long value) {
+            values.put(index, value);
+        }
+
+        @Override
+        public void close() {
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import org.apache.jackrabbit.util.ISO8601;
+
+/**
+ * Minimal streaming JSON writer. Takes care of separators and escaping, not of validating the structure.
+ */
+public class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Appendable out;
+
+    /**
+     * Whether the current object or array already has a member and the next one needs a separator.
+     */
+    private boolean hasMember;
+
+    public JsonWriter(final Appendable out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        separate();
+        out.append('{');
+        hasMember = false;
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        out.append('}');
+        hasMember = true;
+        return this;
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        separate();
+        out.append('[');
+        hasMember = false;
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        out.append(']');
+        hasMember = true;
+        return this;
+    }
+
+    public JsonWriter name(final String name) throws IOException {
+        separate();
+        quote(name);
+        out.append(':');
+        // the value following the name must not be separated
+        hasMember = false;
+        return this;
+    }
+
+    /**
+     * Write a value. Numbers and booleans are written as is, calendars as ISO8601 strings, <code>null</code> as
+     * null and everything else as its quoted string representation. JSON has no NaN or infinity, those are written
+     * as null.
+     */
+    public JsonWriter value(final Object value) throws IOException {
+        separate();
+        if (value == null || isNotFinite(value)) {
+            out.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value.toString());
+        } else if (value instanceof Calendar) {
+            quote(ISO8601.format((Calendar) value));
+        } else {
+            quote(value.toString());
+        }
+        hasMember = true;
+        return this;
+    }
+
+    public JsonWriter property(final String name, final Object value) throws IOException {
+        return name(name).value(value);
+    }
+
+    private static boolean isNotFinite(final Object value) {
+        if (value instanceof Double) {
+            return ((Double) value).isNaN() || ((Double) value).isInfinite();
+        } else if (value instanceof Float) {
+            return ((Float) value).isNaN() || ((Float) value).isInfinite();
+        }
+        return false;
+    }
+
+    private void separate() throws IOException {
+        if (hasMember) {
+            out.append(',');
+        }
+    }
+
+    private void quote(final String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < ' ') {
+                    out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Orders of node paths that keep nodes which are stored close together in the repository close together.
+ */
+public enum PathOrder implements Comparator<String> {
+
+    /**
+     * Depth first, a node directly followed by its subtree.
+     */
+    PATH {
+        @Override
+        public int compare(final String path1, final String path2) {
+            return comparePaths(path1, path2);
+        }
+    },
+
+    /**
+     * Grouped by parent, all children of a node directly after each other.
+     */
+    PARENT {
+        @Override
+        public int compare(final String path1, final String path2) {
+            final int parents = comparePaths(getParent(path1), getParent(path2));
+            return parents != 0 ? parents : comparePaths(path1, path2);
+        }
+    };
+
+    public static PathOrder fromString(final String value) {
+        return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Compare paths by their names, the separator sorts before any other character so <code>/a/b</code> comes
+     * before <code>/a-b</code>.
+     */
+    static int comparePaths(final String path1, final String path2) {
+        final int length = Math.min(path1.length(), path2.length());
+        for (int i = 0; i < length; i++) {
+            final char c1 = path1.charAt(i);
+            final char c2 = path2.charAt(i);
+            if (c1 != c2) {
+                if (c1 == '/') {
+                    return -1;
+                } else if (c2 == '/') {
+                    return 1;
+                }
+                return c1 - c2;
+            }
+        }
+        return path1.length() - path2.length();
+    }
+
+    static String getParent(final String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.jackrabbit.util.ISO9075;
+
+/**
+ * Splits an XPath query into sub-queries that together return the same nodes, so each of them can be answered
+ * quickly by the search index and they can run in parallel:
+ * <ul>
+ *     <li>{@link Mode#FOLDERS}: a query like <code>content/documents//element(*, hippo:document)</code> is split in
+ *     one query for the direct children of its path scope and one query per child folder of the scope</li>
+ *     <li>{@link Mode#DATES}: a predicate for a range of dates on a property is added to the query, one sub-query
+ *     per range between the given dates and one for the nodes without the property</li>
+ * </ul>
+ * Queries with an <code>order by</code> clause are not split, the order would be lost when merging the results.
+ */
+public final class QuerySplitter {
+
+    public enum Mode {
+        NONE, FOLDERS, DATES;
+
+        public static Mode fromString(final String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private static final String ROOT_PREFIX = "/jcr:root";
+    private static final String DESCENDANT_STEP = "//";
+    private static final String ORDER_BY = " order by ";
+
+    private QuerySplitter() {
+    }
+
+    /**
+     * @param query the XPath query
+     * @return the absolute path of the node below which the query looks for descendants, or <code>null</code>
+     * when the query can not be split by folders
+     */
+    public static String getPathScope(final String query) {
+        final int descendantStep = findDescendantStep(query);
+        if (descendantStep < 0) {
+            return null;
+        }
+        String scope = query.substring(getScopeStart(query), descendantStep);
+        while (scope.startsWith("/")) {
+            scope = scope.substring(1);
+        }
+        return "/" + ISO9075.decode(scope);
+    }
+
+    /**
+     * Split a query by the child folders of its path scope. A name step only matches the first of same name
+     * siblings, so they get a sub-query per sibling, by index.
+     * @param query the XPath query
+     * @param childNames the names of the child nodes of the path scope, a name once for every same name sibling
+     * @return the sub-queries, or <code>null</code> when the query can not be split by folders
+     */
+    public static List<String> splitByFolders(final String query, final Collection<String> childNames) {
+        final int descendantStep = findDescendantStep(query);
+        if (descendantStep < 0) {
+            return null;
+        }
+        String head = query.substring(0, descendantStep);
+        if (head.length() == 0) {
+            // a query for all nodes in the repository
+            head = ROOT_PREFIX;
+        }
+        final String tail = query.substring(descendantStep + DESCENDANT_STEP.length());
+        final Map<String, Integer> siblings = new LinkedHashMap<String, Integer>();
+        for (String childName : childNames) {
+            final Integer count = siblings.get(childName);
+            siblings.put(childName, count == null ? 1 : count + 1);
+        }
+        final List<String> queries = new ArrayList<String>(childNames.size() + 1);
+        queries.add(head + "/" + tail);
+        for (Map.Entry<String, Integer> entry : siblings.entrySet()) {
+            final String step = head + "/" + ISO9075.encode(entry.getKey());
+            if (entry.getValue() == 1) {
+                queries.add(step + DESCENDANT_STEP + tail);
+            } else {
+                for (int index = 1; index <= entry.getValue(); index++) {
+                    queries.add(step + "[" + index + "]" + DESCENDANT_STEP + tail);
+                }
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Split a query by ranges of dates on a property. Nodes with multiple values in different ranges are
+     * returned by more than one sub-query.
+     * @param query the XPath query
+     * @param property the name of the date property
+     * @param dates the bounds of the ranges in ascending order, in the ISO 8601 format of <code>xs:dateTime</code>
+     * @return the sub-queries, or <code>null</code> when the query can not be split by a predicate
+     */
+    public static List<String> splitByDates(final String query, final String property, final List<String> dates) {
+        final String trimmed = query.trim();
+        if (hasOrderBy(trimmed) || trimmed.endsWith("/") || dates.isEmpty()) {
+            return null;
+        }
+        final String attribute = "@" + ISO9075.encode(property);
+        final List<String> queries = new ArrayList<String>(dates.size() + 2);
+        queries.add(trimmed + "[not(" + attribute + ")]");
+        String lower = null;
+        for (String date : dates) {
+            final String upper = attribute + " < " + dateLiteral(date);
+            queries.add(trimmed + "[" + (lower == null ? upper : lower + " and " + upper) + "]");
+            lower = attribute + " >= " + dateLiteral(date);
+        }
+        queries.add(trimmed + "[" + lower + "]");
+        return queries;
+    }
+
+    private static String dateLiteral(final String date) {
+        return "xs:dateTime('" + date.trim().replace("'", "''") + "')";
+    }
+
+    private static int getScopeStart(final String query) {
+        return query.startsWith(ROOT_PREFIX) ? ROOT_PREFIX.length() : 0;
+    }
+
+    /**
+     * @return the index of the first descendant step, when it is only preceded by plain names, otherwise -1
+     */
+    private static int findDescendantStep(final String query) {
+        if (hasOrderBy(query)) {
+            return -1;
+        }
+        final int start = getScopeStart(query);
+        final int descendantStep = query.indexOf(DESCENDANT_STEP, start);
+        if (descendantStep < 0) {
+            return -1;
+        }
+        for (int i = start; i < descendantStep; i++) {
+            final char c = query.charAt(i);
+            if (c == '[' || c == '(' || c == '*' || c == '@' || Character.isWhitespace(c)) {
+                return -1;
+            }
+        }
+        final int tailStart = descendantStep + DESCENDANT_STEP.length();
+        if (tailStart >= query.length() || query.charAt(tailStart) == '@' || query.charAt(tailStart) == '/') {
+            return -1;
+        }
+        return descendantStep;
+    }
+
+    private static boolean hasOrderBy(final String query) {
+        return query.toLowerCase(Locale.ENGLISH).contains(ORDER_BY);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter shared by multiple threads. Allows bursts of up to one second worth of permits.
+ */
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double permitsPerSecond;
+    private double available;
+    private long lastRefill;
+
+    /**
+     * @param permitsPerSecond the sustained rate, 0 or less for no limit
+     */
+    public RateLimiter(final double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.available = permitsPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public boolean isLimited() {
+        return permitsPerSecond > 0;
+    }
+
+    /**
+     * Take permits, waiting as long as needed to stay within the rate. Requests for more than one second worth of
+     * permits are allowed and put the bucket in debt.
+     * @param permits the number of permits to take
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void acquire(final long permits) throws InterruptedException {
+        if (!isLimited()) {
+            return;
+        }
+        final long waitNanos;
+        synchronized (this) {
+            refill();
+            available -= permits;
+            waitNanos = available < 0 ? (long) (-available / permitsPerSecond * NANOS_PER_SECOND) : 0L;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        available = Math.min(permitsPerSecond, available + (now - lastRefill) * permitsPerSecond / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the <code>k</code> items with the highest scores seen so far. Offering an item costs a comparison with
+ * the lowest kept score, so it can be called for every visited node. Not thread safe.
+ */
+public final class TopK<T> {
+
+    private static final Comparator<Entry<?>> ASCENDING = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(final Entry<?> a, final Entry<?> b) {
+            if (a.score == b.score) {
+                return 0;
+            }
+            return a.score < b.score ? -1 : 1;
+        }
+    };
+
+    private final int k;
+    private final PriorityQueue<Entry<T>> heap;
+
+    public TopK(final int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be positive: " + k);
+        }
+        this.k = k;
+        this.heap = new PriorityQueue<Entry<T>>(k, ASCENDING);
+    }
+
+    /**
+     * @return whether the item is kept
+     */
+    public boolean offer(final long score, final T item) {
+        if (heap.size() < k) {
+            heap.add(new Entry<T>(score, item));
+            return true;
+        }
+        if (score <= heap.peek().score) {
+            return false;
+        }
+        heap.poll();
+        heap.add(new Entry<T>(score, item));
+        return true;
+    }
+
+    /**
+     * @return the lowest score that is still kept, or <code>Long.MIN_VALUE</code> if fewer than k items are kept
+     */
+    public long getThreshold() {
+        return heap.size() < k ? Long.MIN_VALUE : heap.peek().score;
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     * @return the kept items, highest score first
+     */
+    public List<Entry<T>> getEntries() {
+        final List<Entry<T>> entries = new ArrayList<Entry<T>>(heap);
+        Collections.sort(entries, Collections.reverseOrder(ASCENDING));
+        return entries;
+    }
+
+    public static final class Entry<T> {
+
+        private final long score;
+        private final T item;
+
+        Entry(final long score, final T item) {
+            this.score = score;
+            this.item = item;
+        }
+
+        public long getScore() {
+            return score;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+}
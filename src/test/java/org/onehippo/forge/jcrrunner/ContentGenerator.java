@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Calendar;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.commons.cnd.ParseException;
+
+/**
+ * Generates Hippo like content for the tests: a tree of folders, each with a number of documents. A document is
+ * a handle with variants in different workflow states, optionally with a binary resource. The content is the same
+ * on every run with the same settings.
+ */
+public final class ContentGenerator {
+
+    private static final String CND = "src/test/resources/jackrabbit/hippo.cnd";
+    private static final int SAVE_INTERVAL = 1000;
+    private static final String[] STATES = {"published", "unpublished", "draft"};
+    private static final int DAYS_BACK = 5 * 365;
+
+    private final Session session;
+    private final Random random = new Random(42);
+    private int fanOut = 10;
+    private int depth = 2;
+    private int documentsPerFolder = 10;
+    private int variants = 2;
+    private int binarySize;
+    private String folderType = "hippostd:folder";
+    private long unsaved;
+
+    public ContentGenerator(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Register the node types of the generated content.
+     */
+    public static void registerNodeTypes(Session session) throws RepositoryException, IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(CND), "UTF-8");
+        try {
+            CndImporter.registerNodeTypes(reader, session, true);
+        } catch (ParseException e) {
+            throw new IllegalStateException("Invalid node types in " + CND, e);
+        } finally {
+            JcrRunner.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * @param fanOut the number of sub folders of a folder
+     */
+    public ContentGenerator setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * @param depth the number of levels of folders below the top folder
+     */
+    public ContentGenerator setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public ContentGenerator setDocumentsPerFolder(int documentsPerFolder) {
+        this.documentsPerFolder = documentsPerFolder;
+        return this;
+    }
+
+    /**
+     * @param variants the number of variants of a document, from 1 to 3
+     */
+    public ContentGenerator setVariants(int variants) {
+        if (variants < 1 || variants > STATES.length) {
+            throw new IllegalArgumentException("Number of variants must be between 1 and 3: " + variants);
+        }
+        this.variants = variants;
+        return this;
+    }
+
+    /**
+     * @param binarySize the size of the binary resource of a variant, 0 for variants without resource
+     */
+    public ContentGenerator setBinarySize(int binarySize) {
+        this.binarySize = binarySize;
+        return this;
+    }
+
+    /**
+     * @param folderType the node type of the folders, for instance <code>hippostd:directory</code>
+     */
+    public ContentGenerator setFolderType(String folderType) {
+        this.folderType = folderType;
+        return this;
+    }
+
+    /**
+     * @return the number of nodes {@link #generate(String, String)} creates with the current settings
+     */
+    public long getNodeCount() {
+        long folders = 0;
+        long foldersOnLevel = 1;
+        for (int level = 0; level <= depth; level++) {
+            folders += foldersOnLevel;
+            foldersOnLevel *= fanOut;
+        }
+        long nodesPerDocument = 1 + variants * (binarySize > 0 ? 2 : 1);
+        return folders * (1 + documentsPerFolder * nodesPerDocument);
+    }
+
+    /**
+     * Generate the content in a new top folder, saving every thousand nodes.
+     * @param parentPath the path of the parent of the top folder
+     * @param name the name of the top folder
+     * @return the top folder
+     */
+    public Node generate(String parentPath, String name) throws RepositoryException {
+        Node folder = addFolder(session.getNode(parentPath), name, 0);
+        session.save();
+        unsaved = 0;
+        return folder;
+    }
+
+    private Node addFolder(Node parent, String name, int level) throws RepositoryException {
+        Node folder = parent.addNode(name, folderType);
+        if (folder.isNodeType("hippostd:folder")) {
+            folder.setProperty("hippostd:foldertype", new String[] {"new-document", "new-folder"});
+        }
+        created();
+        for (int i = 0; i < documentsPerFolder; i++) {
+            addDocument(folder, "document" + i);
+        }
+        if (level < depth) {
+            for (int i = 0; i < fanOut; i++) {
+                addFolder(folder, "folder" + i, level + 1);
+            }
+        }
+        return folder;
+    }
+
+    private void addDocument(Node folder, String name) throws RepositoryException {
+        Node handle = folder.addNode(name, "hippo:handle");
+        handle.addMixin("mix:referenceable");
+        created();
+        Calendar publicationDate = Calendar.getInstance();
+        publicationDate.add(Calendar.DAY_OF_YEAR, -random.nextInt(DAYS_BACK));
+        for (int i = 0; i < variants; i++) {
+            Node variant = handle.addNode(name, "hippo:document");
+            variant.addMixin("hippo:harddocument");
+            variant.setProperty("hippostd:state", STATES[i]);
+            variant.setProperty("hippostdpubwf:publicationDate", publicationDate);
+            variant.setProperty("hippostdpubwf:lastModifiedBy", "user" + random.nextInt(10));
+            variant.setProperty("title", "Document " + random.nextInt());
+            variant.setProperty("tags", new String[] {"tag" + random.nextInt(100), "tag" + random.nextInt(100)});
+            created();
+            if (binarySize > 0) {
+                addResource(variant);
+            }
+        }
+    }
+
+    private void addResource(Node variant) throws RepositoryException {
+        byte[] data = new byte[binarySize];
+        random.nextBytes(data);
+        Node resource = variant.addNode("resource", "hippo:resource");
+        resource.setProperty("jcr:mimeType", "application/octet-stream");
+        resource.setProperty("jcr:lastModified", Calendar.getInstance());
+        resource.setProperty("jcr:data", session.getValueFactory().createBinary(new ByteArrayInputStream(data)));
+        created();
+    }
+
+    private void created() throws RepositoryException {
+        if (++unsaved >= SAVE_INTERVAL) {
+            session.save();
+            unsaved = 0;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ContentGeneratorTest {
+
+    @Test
+    public void generatesFoldersWithDocuments() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            ContentGenerator.registerNodeTypes(session);
+            ContentGenerator generator = new ContentGenerator(session).setFanOut(3).setDepth(2)
+                    .setDocumentsPerFolder(4).setVariants(3).setBinarySize(16);
+            // 13 folders with 4 documents of a handle and 3 variants with a resource
+            assertEquals(13 * (1 + 4 * 7), generator.getNodeCount());
+
+            Node top = generator.generate("/", "documents");
+            assertEquals(generator.getNodeCount(), countNodes(top));
+            Node handle = session.getNode("/documents/folder2/folder0/document3");
+            assertTrue(handle.isNodeType("hippo:handle"));
+            assertEquals(3, handle.getNodes("document3").getSize());
+            Node variant = handle.getNode("document3[3]");
+            assertEquals("draft", variant.getProperty("hippostd:state").getString());
+            assertEquals(16, variant.getNode("resource").getProperty("jcr:data").getLength());
+            assertTrue(session.getNode("/documents/folder1").isNodeType("hippostd:folder"));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    private static long countNodes(Node node) throws Exception {
+        long count = 1;
+        NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            count += countNodes(children.nextNode());
+        }
+        return count;
+    }
+}
@@ -18,8 +18,11 @@ package org.onehippo.forge.jcrrunner;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Jettro Coenradie
@@ -51,4 +54,49 @@ public class JcrRunnerTest {
         assertEquals("testpass", runnerConfig.getRepositoryPass());
         assertEquals("rmi://127.0.0.1:1099/hipporepository", runnerConfig.getRepositoryUrl());
     }
+
+    @Test
+    public void checkInitializationUsingRepositories() throws IOException {
+        String[] args = {"src/test/resources/repositories.properties"};
+        RunnerConfig runnerConfig = JcrRunner.parseConfig(args);
+        List<RunnerConfig.Repository> repositories = runnerConfig.getRepositories();
+        assertEquals(2, repositories.size());
+        assertEquals("acc", repositories.get(0).getName());
+        assertEquals("testuser", repositories.get(0).getUser());
+        assertEquals("rmi://prod.example.com:1099/hipporepository", repositories.get(1).getUrl());
+        assertEquals("produser", repositories.get(1).getUser());
+        assertEquals("prodpass", repositories.get(1).getPass());
+
+        List<RunnerPluginConfig> pluginConfigs = runnerConfig.getPluginConfigs("prod");
+        assertEquals(1, pluginConfigs.size());
+        assertEquals("prod.inventory", pluginConfigs.get(0).getId());
+        assertEquals("target/inventory-prod.csv", pluginConfigs.get(0).getValue("output"));
+    }
+
+    @Test
+    public void repositoriesAreRunAtTheSameTime() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("repository.user", "admin");
+        props.setProperty("repository.pass", "admin");
+        for (String name : new String[] {"acc", "prod"}) {
+            props.setProperty("repositories." + name + ".url",
+                    TestRepository.install(TestRepository.CONFIG, "target/test-repository-" + name));
+        }
+        props.setProperty("plugins.java.types.class", "org.onehippo.forge.jcrrunner.plugins.LoggingPlugin");
+        props.setProperty("plugins.java.types.path", "/jcr:system/jcr:nodeTypes/*");
+        RunReport report = RunReport.get();
+        report.reset();
+        try {
+            JcrRunner.runRepositories(new RunnerConfig(props));
+
+            RunReport acc = report.getRepositoryReport("acc", null);
+            RunReport prod = report.getRepositoryReport("prod", null);
+            assertTrue(acc.getVisited() > 0);
+            assertEquals(acc.getVisited(), prod.getVisited());
+            assertEquals(acc.getVisited() + prod.getVisited(), report.getVisited());
+            assertEquals(0, report.getSkipped(RunReport.Skip.ERROR));
+        } finally {
+            report.reset();
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class NodeTypeCacheTest {
+
+    private Session session;
+    private Node root;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        session = JcrHelper.getSession();
+        root = session.getRootNode().addNode("types");
+        for (int i = 0; i < 10; i++) {
+            root.addNode("folder" + i, "nt:folder");
+            root.addNode("doc" + i).addMixin("mix:referenceable");
+        }
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        TestRepository.disconnect();
+    }
+
+    @Test
+    public void typeChecksMatchTheRepository() throws Exception {
+        NodeTypeCache cache = JcrHelper.getNodeTypeCache();
+        String[] typeNames = {"nt:base", "nt:folder", "nt:hierarchyNode", "nt:unstructured", "mix:referenceable",
+                "mix:created", "mix:versionable"};
+        NodeIterator children = root.getNodes();
+        while (children.hasNext()) {
+            Node child = children.nextNode();
+            assertEquals(child.getPrimaryNodeType().getName(), cache.getPrimaryTypeName(child));
+            for (String typeName : typeNames) {
+                assertEquals(child.getPath() + " " + typeName, child.isNodeType(typeName),
+                        cache.isNodeType(child, typeName));
+            }
+            assertEquals(child.getPrimaryNodeType().hasOrderableChildNodes(), cache.hasOrderableChildNodes(child));
+        }
+        // definitions are read once, not per node
+        assertEquals(3, cache.getLoadedTypeCount());
+    }
+
+    @Test
+    public void changedMixinsAreSeenAfterSave() throws Exception {
+        Node folder = root.getNode("folder0");
+        Node doc = root.getNode("doc0");
+        assertFalse(JcrHelper.isNodeType(doc, "mix:lockable"));
+        doc.addMixin("mix:lockable");
+        JcrHelper.save();
+        assertTrue(JcrHelper.isNodeType(doc, "mix:lockable"));
+
+        folder.addMixin("mix:title");
+        JcrHelper.getNodeTypeCache().invalidate(folder);
+        assertTrue(JcrHelper.isNodeType(folder, "mix:title"));
+    }
+
+    @Test
+    public void typeNamesAreKeptPerThreadAndDefinitionsShared() throws Exception {
+        final Node doc = root.getNode("doc0");
+        assertFalse(JcrHelper.isNodeType(doc, "mix:lockable"));
+        final int loaded = JcrHelper.getNodeTypeCache().getLoadedTypeCount();
+        doc.addMixin("mix:lockable");
+        session.save();
+
+        final List<Boolean> seen = new ArrayList<Boolean>();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JcrHelper.clearNodeTypeNames();
+                    seen.add(JcrHelper.isNodeType(doc, "mix:lockable"));
+                } catch (RepositoryException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(Arrays.asList(true), seen);
+        // clearing on the other thread left the type names read by this thread alone
+        assertFalse(JcrHelper.isNodeType(doc, "mix:lockable"));
+        JcrHelper.clearNodeTypeNames();
+        assertTrue(JcrHelper.isNodeType(doc, "mix:lockable"));
+        assertEquals(loaded + 1, JcrHelper.getNodeTypeCache().getLoadedTypeCount());
+    }
+
+    @Test
+    public void onlyNodesOfConfiguredTypesAreVisited() throws Exception {
+        root.getNode("doc3").addMixin("mix:lockable");
+        session.save();
+        List<String> paths = new TestPlugin("types").set("path", "/types/**")
+                .set("nodetypes", "nt:hierarchyNode, mix:lockable").run().getPaths();
+
+        assertEquals(11, paths.size());
+        assertTrue(paths.contains("/types/folder9"));
+        assertTrue(paths.contains("/types/doc3"));
+        assertFalse(paths.contains("/types"));
+    }
+
+    @Test
+    public void mixinsSavedDirectlyOnTheSessionAreSeenFromTheNextVisit() throws Exception {
+        List<String> events = new TestPlugin("direct") {
+            private Node doc;
+
+            @Override
+            public void visit(final Node node) {
+                super.visit(node);
+                try {
+                    if (node.getName().equals("folder0")) {
+                        doc = node.getParent().getNode("doc5");
+                        addEvent("before:" + JcrHelper.isNodeType(doc, "mix:lockable"));
+                        doc.addMixin("mix:lockable");
+                        node.getSession().save();
+                    } else if (node.getName().equals("doc0")) {
+                        addEvent("next:" + JcrHelper.isNodeType(doc, "mix:lockable"));
+                    }
+                } catch (RepositoryException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.set("path", "/types/*").run().getEvents();
+
+        assertTrue(events.toString(), events.contains("direct:before:false"));
+        assertTrue(events.toString(), events.contains("direct:next:true"));
+    }
+
+    @Test
+    public void mixinsAddedThroughWrappedNodesAreSeenWithinTheVisit() throws Exception {
+        List<String> events = new TestPlugin("wrapped") {
+            @Override
+            public void visit(final Node node) {
+                super.visit(node);
+                try {
+                    if (!node.getName().equals("folder0")) {
+                        return;
+                    }
+                    Node doc = node.getParent().getNode("doc5");
+                    addEvent("before:" + JcrHelper.isNodeType(doc, "mix:lockable"));
+                    doc.addMixin("mix:lockable");
+                    addEvent("after:" + JcrHelper.isNodeType(doc, "mix:lockable"));
+                } catch (RepositoryException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.set("path", "/types/*").set("calls.count", "true").run().getEvents();
+
+        assertTrue(events.toString(), events.contains("wrapped:before:false"));
+        assertTrue(events.toString(), events.contains("wrapped:after:true"));
+    }
+}
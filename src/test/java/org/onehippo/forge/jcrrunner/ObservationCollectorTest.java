@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ObservationCollectorTest {
+
+    @Test
+    public void batchWaitsForTheQuietPeriod() {
+        // one event, the quiet period is counted from it
+        assertEquals(100, ObservationCollector.getWaitMillis(1000, 1000, 1000, 100));
+        assertEquals(40, ObservationCollector.getWaitMillis(1060, 1000, 1000, 100));
+        assertEquals(0, ObservationCollector.getWaitMillis(1100, 1000, 1000, 100));
+        // a new event starts the quiet period again
+        assertEquals(90, ObservationCollector.getWaitMillis(1100, 1000, 1090, 100));
+    }
+
+    @Test
+    public void batchIsHandedOutAfterTenQuietPeriodsWhenEventsKeepComing() {
+        assertEquals(50, ObservationCollector.getWaitMillis(1950, 1000, 1940, 100));
+        assertEquals(0, ObservationCollector.getWaitMillis(2000, 1000, 1990, 100));
+        assertTrue(ObservationCollector.getWaitMillis(2010, 1000, 2005, 100) < 0);
+    }
+
+    @Test
+    public void duplicatePathsAreMergedInArrivalOrder() throws Exception {
+        ObservationCollector collector = new ObservationCollector();
+        collector.add("/b");
+        collector.add("/a");
+        collector.add("/b");
+        long start = System.currentTimeMillis();
+        Set<String> batch = collector.takeBatch(50, 100, 1000);
+        assertTrue(System.currentTimeMillis() - start >= 40);
+        assertEquals(Arrays.asList("/b", "/a"), Arrays.asList(batch.toArray()));
+        assertTrue(collector.takeBatch(50, 100, 10).isEmpty());
+    }
+
+    @Test
+    public void fullBatchIsHandedOutWithoutWaiting() throws Exception {
+        ObservationCollector collector = new ObservationCollector();
+        for (int i = 0; i < 5; i++) {
+            collector.add("/node" + i);
+        }
+        long start = System.currentTimeMillis();
+        Set<String> batch = collector.takeBatch(60000, 5, 60000);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(5, batch.size());
+    }
+
+    @Test
+    public void eventsArrivingWhileWaitingAreCollected() throws Exception {
+        final ObservationCollector collector = new ObservationCollector();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    collector.add("/first");
+                    Thread.sleep(10);
+                    collector.add("/second");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        Set<String> batch = collector.takeBatch(200, 100, 10000);
+        producer.join();
+        assertEquals(Arrays.asList("/first", "/second"), Arrays.asList(batch.toArray()));
+    }
+}
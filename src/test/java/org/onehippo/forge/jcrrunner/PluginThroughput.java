@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.plugins.FolderConverterPlugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * End to end throughput of the path visitor, the query visitor and the {@link FolderConverterPlugin} on generated
+ * content of 10k and 100k nodes in an in memory repository. Fails when the number of visited nodes per second of
+ * a run drops more than the tolerance below the baseline in <code>throughput-baseline.properties</code>.
+ * <p>
+ * Not part of the regular tests, run with <code>mvn test -Pthroughput</code>. The sizes and the tolerance can be
+ * set with <code>-Dthroughput.sizes=10000,100000,1000000</code> and <code>-Dthroughput.tolerance=0.3</code>. The
+ * measured numbers are written to <code>target/throughput.properties</code>, copy them over the baseline after
+ * an intended change or on another machine.
+ */
+public class PluginThroughput {
+
+    private static final Logger log = LoggerFactory.getLogger(PluginThroughput.class);
+
+    private static final String BASELINE = "src/test/resources/throughput-baseline.properties";
+    private static final String RESULTS = "target/throughput.properties";
+    private static final String SIZES_DEFAULT = "10000,100000";
+    private static final String TOLERANCE_DEFAULT = "0.3";
+    private static final int FAN_OUT = 10;
+    private static final int DOCUMENTS_PER_FOLDER = 22;
+    private static final int VARIANTS = 3;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Properties baseline = new Properties();
+    private final Properties results = new Properties();
+    private final List<String> drops = new ArrayList<String>();
+    private double tolerance;
+
+    @Test
+    public void throughputDoesNotDropBelowBaseline() throws Exception {
+        loadBaseline();
+        tolerance = Double.parseDouble(System.getProperty("throughput.tolerance", TOLERANCE_DEFAULT));
+        for (String size : System.getProperty("throughput.sizes", SIZES_DEFAULT).split(",")) {
+            long nodes = Long.parseLong(size.trim());
+            measureVisitors(nodes);
+            measureFolderConverter(nodes);
+        }
+        writeResults();
+        assertTrue("Throughput dropped below the baseline: " + drops, drops.isEmpty());
+    }
+
+    private void measureVisitors(long nodes) throws Exception {
+        TestRepository.connect(TestRepository.INDEXED_CONFIG);
+        try {
+            generate(nodes, "hippostd:folder");
+
+            measure("path", nodes, new ReadingPlugin("path").set("path", "/content/documents/**"));
+            measure("query", nodes,
+                    new ReadingPlugin("query").set("query", "content/documents//element(*, hippo:document)"));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    private void measureFolderConverter(long nodes) throws Exception {
+        TestRepository.connect(TestRepository.INDEXED_CONFIG);
+        try {
+            generate(nodes, "hippostd:directory");
+
+            RunnerPluginConfig config = new RunnerPluginConfig("folderconverter", RunnerPluginType.JAVA);
+            // by path, the paths of the directories do not change when their parent is converted
+            config.addEntry("query", "content/documents//element(*, hippostd:directory)");
+            config.addEntry("query.order", "path");
+            FolderConverterPlugin plugin = new FolderConverterPlugin();
+            plugin.setId(config.getId());
+            plugin.setConfig(config);
+            measure("folderconverter", nodes, plugin);
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    /**
+     * Generate the tree with the size closest to the requested number of nodes.
+     */
+    private static void generate(long nodes, String folderType) throws RepositoryException, IOException {
+        Session session = JcrHelper.getSession();
+        ContentGenerator.registerNodeTypes(session);
+        ContentGenerator generator = new ContentGenerator(session).setFanOut(FAN_OUT).setDepth(0)
+                .setDocumentsPerFolder(DOCUMENTS_PER_FOLDER).setVariants(VARIANTS).setFolderType(folderType);
+        for (int depth = 1; generator.getNodeCount() < nodes * 0.9; depth++) {
+            generator.setDepth(depth);
+        }
+        long start = System.nanoTime();
+        session.getRootNode().addNode("content", "hippostd:folder");
+        generator.generate("/content", "documents");
+        log.info("Generated {} nodes in {} ms", generator.getNodeCount(), (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * Run a plugin and compare the number of nodes it visited per second with the baseline.
+     */
+    private void measure(String scenario, long nodes, RunnerPlugin plugin) {
+        RunReport.get().reset();
+        long start = System.nanoTime();
+        TestPlugin.run(plugin);
+        double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+        long visited = RunReport.get().getVisited();
+
+        String key = scenario + "." + nodes;
+        if (visited == 0) {
+            drops.add(key + " visited no nodes");
+            return;
+        }
+        long perSecond = Math.round(visited / seconds);
+        results.setProperty(key, Long.toString(perSecond));
+        String expected = baseline.getProperty(key);
+        log.info("{}: {} nodes per second, baseline {}", new Object[] {key, perSecond, expected});
+        if (expected != null && perSecond < Long.parseLong(expected.trim()) * (1 - tolerance)) {
+            drops.add(String.format(Locale.ENGLISH, "%s %d nodes/s < %s nodes/s", key, perSecond, expected));
+        }
+    }
+
+    private void loadBaseline() throws IOException {
+        InputStream in = new FileInputStream(BASELINE);
+        try {
+            baseline.load(in);
+        } finally {
+            JcrRunner.closeQuietly(in);
+        }
+    }
+
+    private void writeResults() throws IOException {
+        File file = new File(RESULTS);
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            results.store(out, "Visited nodes per second of the throughput suite");
+        } finally {
+            JcrRunner.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Reads a property of every visited node, like most plugins do.
+     */
+    private static class ReadingPlugin extends TestPlugin {
+
+        ReadingPlugin(String id) {
+            super(id);
+        }
+
+        @Override
+        public void visit(Node node) {
+            try {
+                if (node.hasProperty("title")) {
+                    node.getProperty("title").getString();
+                }
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
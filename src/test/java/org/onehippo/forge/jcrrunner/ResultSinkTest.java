@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+public class ResultSinkTest {
+
+    @Test
+    public void csvValuesAreQuotedWhenNeeded() throws Exception {
+        File file = createTempFile(".csv");
+        ResultSink sink = ResultSink.open("test", file, ResultSink.Format.CSV, new String[] {"path", "title", "n"},
+                false, 0L, 16);
+        sink.emit("/a", "plain", 1);
+        sink.emit("/b", "with, comma", null);
+        sink.emit("/c", "with \"quotes\"", 2.5);
+        sink.emit("/d", "two\nlines", -1L);
+        sink.close();
+
+        List<String> lines = readLines(file);
+        assertEquals("path,title,n", lines.get(0));
+        assertEquals("/a,plain,1", lines.get(1));
+        assertEquals("/b,\"with, comma\",", lines.get(2));
+        assertEquals("/c,\"with \"\"quotes\"\"\",2.5", lines.get(3));
+        assertEquals("/d,\"two", lines.get(4));
+        assertEquals("lines\",-1", lines.get(5));
+        assertEquals(6, lines.size());
+    }
+
+    @Test
+    public void jsonLinesHaveOneObjectPerRecord() throws Exception {
+        File file = createTempFile(".jsonl");
+        ResultSink sink = ResultSink.open("test", file, ResultSink.Format.JSONL, new String[] {"path", "size", "ratio"},
+                false, 0L, 16);
+        sink.emit("/a\"b", 10L, 0.5);
+        sink.emit("/c", null, Double.NaN);
+        sink.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(2, lines.size());
+        assertEquals("{\"path\":\"/a\\\"b\",\"size\":10,\"ratio\":0.5}", lines.get(0));
+        assertEquals("{\"path\":\"/c\",\"size\":null,\"ratio\":null}", lines.get(1));
+    }
+
+    @Test
+    public void closeWritesAllBufferedRecords() throws Exception {
+        File file = createTempFile(".csv");
+        ResultSink sink = ResultSink.open("closing", file, ResultSink.Format.CSV, new String[] {"n"}, false, 0L,
+                100000);
+        for (int i = 0; i < 50000; i++) {
+            sink.emit(i);
+        }
+        ResultSink.closeAll("closing");
+
+        List<String> lines = readLines(file);
+        assertEquals(50001, lines.size());
+        assertEquals("49999", lines.get(50000));
+        try {
+            sink.emit(1);
+            fail("Emitting to a closed sink");
+        } catch (IllegalStateException expected) {
+            // closed
+        }
+        // closing again does nothing
+        sink.close();
+        assertEquals(50001, readLines(file).size());
+    }
+
+    @Test
+    public void unknownFormatIsReportedAsConfigError() throws Exception {
+        File file = createTempFile(".xml");
+        SinkPlugin plugin = new SinkPlugin();
+        plugin.set("output", file.getPath()).set("output.format", "xml");
+        assertNull(plugin.open());
+
+        plugin.set("output.format", "JsonL");
+        ResultSink sink = plugin.open();
+        assertNotNull(sink);
+        sink.close();
+    }
+
+    @Test
+    public void recordsThatFailToFormatAreDropped() throws Exception {
+        File file = createTempFile(".csv");
+        ResultSink sink = ResultSink.open("test", file, ResultSink.Format.CSV, new String[] {"a", "b"}, false, 0L, 1);
+        sink.emit("first", 1);
+        sink.emit("broken", new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("Unable to format");
+            }
+        });
+        // the writer keeps taking records from the full buffer
+        for (int i = 0; i < 10; i++) {
+            sink.emit("next", i);
+        }
+        sink.close();
+
+        List<String> lines = readLines(file);
+        assertEquals(12, lines.size());
+        assertEquals("a,b", lines.get(0));
+        assertEquals("first,1", lines.get(1));
+        assertEquals("next,0", lines.get(2));
+    }
+
+    @Test
+    public void recordsEmittedWhileClosingAreWrittenOrRejected() throws Exception {
+        File file = createTempFile(".csv");
+        final ResultSink sink = ResultSink.open("racing", file, ResultSink.Format.CSV, new String[] {"n"}, false, 0L,
+                1);
+        final AtomicInteger emitted = new AtomicInteger();
+        List<Thread> emitters = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread emitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            sink.emit(1);
+                            emitted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException closed) {
+                        // rejected after the close
+                    }
+                }
+            });
+            emitters.add(emitter);
+            emitter.start();
+        }
+        Thread.sleep(50);
+        sink.close();
+        for (Thread emitter : emitters) {
+            emitter.join(10000);
+            assertFalse("Emitter blocked after close", emitter.isAlive());
+        }
+        assertEquals(emitted.get() + 1, readLines(file).size());
+    }
+
+    private static class SinkPlugin extends TestPlugin {
+
+        SinkPlugin() {
+            super("sink");
+        }
+
+        ResultSink open() {
+            return openResultSink("value");
+        }
+    }
+
+    private static File createTempFile(String suffix) throws IOException {
+        File file = File.createTempFile("sink", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
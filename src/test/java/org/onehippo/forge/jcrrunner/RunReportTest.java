@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.RunReport.Phase;
+import org.onehippo.forge.jcrrunner.RunReport.Skip;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class RunReportTest {
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        Session session = JcrHelper.getSession();
+        Node root = session.getRootNode().addNode("report");
+        Node big = root.addNode("big");
+        for (int i = 0; i < 20; i++) {
+            big.addNode("child" + i);
+        }
+        root.addNode("small").addNode("child");
+        session.save();
+        RunReport.get().reset();
+    }
+
+    @After
+    public void tearDown() {
+        RunReport.get().reset();
+        TestRepository.disconnect();
+    }
+
+    @Test
+    public void runIsReportedPerPhaseAndPlugin() throws Exception {
+        new TestPlugin("counting") {
+            @Override
+            public void destroy(Session session) {
+                JcrHelper.save();
+            }
+        }.set("path", "/report/**").run();
+
+        RunReport report = RunReport.get();
+        assertEquals(24, report.getVisited());
+        assertEquals(0, report.getSkipped(Skip.INVALID_ITEM_STATE));
+        assertTrue(report.getTime(Phase.TRAVERSAL) > 0);
+        assertTrue(report.getTime(Phase.SAVE) > 0);
+
+        StringBuilder json = new StringBuilder();
+        report.write(json);
+        String output = json.toString();
+        assertTrue(output, output.contains("\"id\":\"counting\""));
+        assertTrue(output, output.contains("\"visited\":24"));
+        assertTrue(output, output.contains("\"nodesPerSecond\":"));
+        assertTrue(output, output.contains("\"save\":{\"millis\":"));
+        // the subtrees directly below the start path are timed, with their node counts
+        assertTrue(output, output.contains("\"path\":\"/report/big\""));
+        assertTrue(output, output.contains("\"nodes\":21"));
+        assertTrue(output, output.contains("\"path\":\"/report/small\""));
+    }
+
+    @Test
+    public void countsOfConcurrentPluginsAreNotLost() throws Exception {
+        final RunReport report = RunReport.get();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String id = "concurrent" + (i % 2);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    report.beginPlugin(id, TestPlugin.class.getName());
+                    for (int n = 0; n < 10000; n++) {
+                        report.nodeVisited();
+                        report.addTime(Phase.TRAVERSAL, 1L);
+                        report.subtreeVisited("/report/" + n, n, 1L);
+                    }
+                    report.nodeSkipped(Skip.ERROR);
+                    report.endPlugin();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000L, report.getVisited());
+        assertEquals(40000L, report.getTime(Phase.TRAVERSAL));
+        assertEquals(4L, report.getSkipped(Skip.ERROR));
+
+        StringBuilder json = new StringBuilder();
+        report.write(json);
+        String output = json.toString();
+        // each plugin was run by two threads
+        assertEquals(output, 2, output.split("\"visited\":20000,").length - 1);
+        assertTrue(output, output.contains("\"path\":\"/report/9999\""));
+    }
+
+    @Test
+    public void failedVisitorsAreNotCountedAsSkippedNodes() throws Exception {
+        new TestPlugin("failing").set("path", "/report/*").set("query", "//*[").run();
+
+        RunReport report = RunReport.get();
+        // the path visitor still runs
+        assertEquals(3, report.getVisited());
+        assertEquals(1, report.getVisitorErrors());
+        assertEquals(0, report.getSkipped(Skip.ERROR));
+
+        StringBuilder json = new StringBuilder();
+        report.write(json);
+        String output = json.toString();
+        assertTrue(output, output.contains("\"skippedError\":0,"));
+        assertTrue(output, output.contains("\"visitorErrors\":1"));
+    }
+
+    @Test
+    public void repositoryReportsAreSummedUp() throws Exception {
+        RunReport run = RunReport.get();
+        RunReport acc = run.getRepositoryReport("acc", "rmi://acc");
+        RunReport prod = run.getRepositoryReport("prod", "rmi://prod");
+        RunReport.bind(acc);
+        try {
+            RunReport.get().nodeVisited();
+            RunReport.get().nodeSkipped(Skip.ERROR);
+            RunReport.bind(prod);
+            RunReport.get().nodeVisited();
+            RunReport.get().nodeVisited();
+        } finally {
+            RunReport.unbind();
+        }
+        assertEquals(1, acc.getVisited());
+        assertEquals(2, prod.getVisited());
+        assertEquals(3, run.getVisited());
+        assertEquals(1, run.getSkipped(Skip.ERROR));
+
+        StringBuilder json = new StringBuilder();
+        run.write(json);
+        String output = json.toString();
+        assertTrue(output, output.contains("\"repositories\":[{\"name\":\"acc\",\"repository\":\"rmi://acc\""));
+        assertTrue(output, output.contains("\"visited\":3"));
+    }
+}
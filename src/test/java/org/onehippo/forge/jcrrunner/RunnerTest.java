@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.proxy.JcrProxyFactory;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class RunnerTest {
+
+    @Test
+    public void independentPluginsRunConcurrently() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("concurrent");
+            for (int i = 0; i < 10; i++) {
+                root.addNode("child" + i);
+            }
+            session.save();
+
+            List<String> events = new CopyOnWriteArrayList<String>();
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            RunReport.get().reset();
+            TestPlugin.run(new RecordingPlugin("a", "true", events, barrier),
+                    new RecordingPlugin("b", "true", events, barrier), new RecordingPlugin("c", "false", events, null));
+
+            // both independent plugins passed the barrier, so they were running at the same time
+            assertTrue(events.toString(), events.contains("a:together"));
+            assertTrue(events.toString(), events.contains("b:together"));
+            for (String id : new String[] {"a", "b", "c"}) {
+                assertFalse(events.toString(), events.contains(id + ":wrong session"));
+            }
+            assertTrue(events.toString(), events.contains("a:own session"));
+            assertTrue(events.toString(), events.contains("b:own session"));
+            assertFalse(events.toString(), events.contains("c:own session"));
+            assertEquals(events.toString(), "c:init", events.get(events.size() - 2));
+            assertEquals(events.toString(), "c:destroy", events.get(events.size() - 1));
+            assertEquals(33, RunReport.get().getVisited());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void stoppedIndependentPluginsAreDestroyedByTheirOwnThreads() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("concurrent");
+            for (int i = 0; i < 10; i++) {
+                root.addNode("child" + i);
+            }
+            session.save();
+
+            final List<String> events = new CopyOnWriteArrayList<String>();
+            RunReport.get().reset();
+            final Runner runner = new Runner();
+            for (String id : new String[] {"a", "b"}) {
+                runner.registerPlugin(new TestPlugin(id, events) {
+                    @Override
+                    public void visit(Node node) {
+                        super.visit(node);
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    @Override
+                    public void destroy(Session session) {
+                        addEvent("destroy on " + Thread.currentThread().getName());
+                    }
+                }.set("path", "/concurrent/**").set("independent", "true"));
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runner.start();
+                }
+            });
+            thread.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!events.contains("a:init") || !events.contains("b:init")) {
+                assertTrue("Plugins not started in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            runner.stop();
+
+            assertTrue(runner.awaitFinished(10000));
+            // the stop only signals, the plugins are destroyed after their running visit returned
+            assertTrue(events.toString(), events.contains("a:destroy on runner-a"));
+            assertTrue(events.toString(), events.contains("b:destroy on runner-b"));
+            assertTrue(RunReport.get().getVisited() < 22);
+            thread.join(10000);
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void changedNodesMatchingThePathAreVisitedByTheObservationVisitor() throws Exception {
+        TestRepository.connect();
+        Session other = null;
+        try {
+            Session session = JcrHelper.getSession();
+            session.getRootNode().addNode("observed").addNode("existing");
+            session.save();
+
+            final List<String> events = new CopyOnWriteArrayList<String>();
+            final Runner runner = new Runner();
+            runner.registerPlugin(new TestPlugin("observer", events) {
+                @Override
+                public void visit(Node node) {
+                    addEvent(JcrHelper.safeGetPath(node));
+                }
+            }.set("path", "/observed/*").set("observation", "true").set("observation.debounce", "20"));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runner.start();
+                }
+            });
+            thread.start();
+
+            // changes of this session are not observed, the listener is registered after the path visitor
+            other = JcrHelper.newSession();
+            Node existing = other.getNode("/observed/existing");
+            long deadline = System.currentTimeMillis() + 10000;
+            for (int i = 0; count(events, "observer:/observed/existing") < 2; i++) {
+                assertTrue(events.toString(), System.currentTimeMillis() < deadline);
+                existing.setProperty("changed", i);
+                other.save();
+                Thread.sleep(50);
+            }
+            Node added = other.getNode("/observed").addNode("added");
+            added.addNode("deep");
+            other.save();
+            // the next change is handed out in a later batch
+            existing.setProperty("changed", -1L);
+            other.save();
+            int visits = count(events, "observer:/observed/existing");
+            while (count(events, "observer:/observed/existing") == visits) {
+                assertTrue(events.toString(), System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            runner.stop();
+            assertTrue(runner.awaitFinished(10000));
+            thread.join(10000);
+
+            assertTrue(events.toString(), events.contains("observer:/observed/added"));
+            assertFalse(events.toString(), events.contains("observer:/observed/added/deep"));
+            // by the path visitor only, the parent of an added node is not changed itself
+            assertEquals(events.toString(), 1, count(events, "observer:/observed"));
+        } finally {
+            if (other != null) {
+                other.logout();
+            }
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void addedNodesAreFilteredByTheirOwnNodeType() throws Exception {
+        TestRepository.connect();
+        Session other = null;
+        try {
+            Session session = JcrHelper.getSession();
+            session.getRootNode().addNode("observed");
+            session.save();
+
+            final List<String> events = new CopyOnWriteArrayList<String>();
+            final Runner runner = new Runner();
+            runner.registerPlugin(new TestPlugin("observer", events) {
+                @Override
+                public void visit(Node node) {
+                    addEvent(JcrHelper.safeGetPath(node));
+                }
+            }.set("observation", "true").set("observation.debounce", "20")
+                    .set("observation.nodetypes", "nt:folder"));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runner.start();
+                }
+            });
+            thread.start();
+
+            // the parent of the added folders is not a folder
+            other = JcrHelper.newSession();
+            Node observed = other.getNode("/observed");
+            long deadline = System.currentTimeMillis() + 10000;
+            for (int i = 0; !events.toString().contains("/observed/folder"); i++) {
+                assertTrue(events.toString(), System.currentTimeMillis() < deadline);
+                observed.addNode("folder" + i, "nt:folder");
+                observed.addNode("plain" + i);
+                other.save();
+                Thread.sleep(50);
+            }
+            runner.stop();
+            assertTrue(runner.awaitFinished(10000));
+            thread.join(10000);
+
+            assertFalse(events.toString(), events.toString().contains("/observed/plain"));
+        } finally {
+            if (other != null) {
+                other.logout();
+            }
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void sessionIsRotatedWhenVisitingSortedQueryResults() throws Exception {
+        TestRepository.connect(TestRepository.INDEXED_CONFIG);
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("rotate");
+            for (int i = 0; i < 10; i++) {
+                root.addNode("child" + i);
+            }
+            session.save();
+
+            new MarkingPlugin("rotate").set("query", "/jcr:root/rotate/*").set("query.order", "path")
+                    .set("session.refresh.nodes", "2").set("session.refresh.mode", "rotate").run();
+
+            // the changes are saved before every rotation, the session of the test is logged out by the first
+            assertFalse(session.isLive());
+            for (int i = 0; i < 10; i++) {
+                assertTrue(JcrHelper.getNode("/rotate/child" + i).hasProperty("marked"));
+            }
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void sessionIsRefreshedAfterEverySubtree() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("subtrees");
+            for (String folder : new String[] {"a", "b"}) {
+                Node node = root.addNode(folder);
+                for (int i = 0; i < 3; i++) {
+                    node.addNode("c" + i);
+                }
+            }
+            session.save();
+
+            new MarkingPlugin("subtrees").set("path", "/subtrees/**").set("session.refresh.subtrees", "true")
+                    .set("session.refresh.mode", "rotate").run();
+
+            // the path visitor holds the nodes of the parents, so the session is refreshed instead of rotated
+            assertTrue(session.isLive());
+            assertTrue(JcrHelper.getSession() == session);
+            for (String path : new String[] {"/subtrees", "/subtrees/a/c2", "/subtrees/b", "/subtrees/b/c2"}) {
+                assertTrue(path, session.getNode(path).hasProperty("marked"));
+            }
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void splitQueryVisitsTheNodesOfTheQuery() throws Exception {
+        TestRepository.connect(TestRepository.INDEXED_CONFIG);
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("split");
+            for (String name : new String[] {"a", "b", "c", "same", "same"}) {
+                Node folder = root.addNode(name);
+                for (int i = 0; i < 3; i++) {
+                    folder.addNode("doc" + i).addNode("sub");
+                }
+            }
+            session.save();
+
+            Set<String> expected = new HashSet<String>(
+                    new TestPlugin("all").set("query", "/jcr:root/split//*").run().getPaths());
+            assertEquals(35, expected.size());
+            for (String order : new String[] {"none", "path"}) {
+                List<String> split = new TestPlugin("split").set("query", "/jcr:root/split//*")
+                        .set("query.split", "folders").set("query.order", order).run().getPaths();
+                assertEquals(order, expected.size(), split.size());
+                assertEquals(order, expected, new HashSet<String>(split));
+            }
+            // more folders than the maximum, the query runs as is
+            List<String> unsplit = new TestPlugin("unsplit").set("query", "/jcr:root/split//*")
+                    .set("query.split", "folders").set("query.split.max", "2").run().getPaths();
+            assertEquals(expected, new HashSet<String>(unsplit));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void nodesAreVisitedInBatchesGroupedByParent() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("batch");
+            for (String folder : new String[] {"a", "b"}) {
+                Node node = root.addNode(folder);
+                for (int i = 0; i < 3; i++) {
+                    node.addNode("c" + i);
+                }
+            }
+            session.save();
+
+            final List<List<String>> batches = new ArrayList<List<String>>();
+            new TestPlugin("batch") {
+                @Override
+                public void visitBatch(List<Node> nodes) {
+                    List<String> paths = new ArrayList<String>();
+                    for (Node node : nodes) {
+                        paths.add(JcrHelper.safeGetPath(node));
+                    }
+                    batches.add(paths);
+                }
+
+                @Override
+                public void visit(Node node) {
+                    throw new IllegalStateException("Nodes must be visited in batches");
+                }
+            }.set("path", "/batch/**").set("visit.batchsize", "4").run();
+
+            // the last batch of a subtree timed for the run report is handed over at its end, so the time of the
+            // subtree includes it
+            assertEquals(3, batches.size());
+            assertEquals("[/batch, /batch/a, /batch/a/c0, /batch/a/c1]", batches.get(0).toString());
+            assertEquals("[/batch/a/c2]", batches.get(1).toString());
+            assertEquals("[/batch/b, /batch/b/c0, /batch/b/c1, /batch/b/c2]", batches.get(2).toString());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void sessionIsReleasedAfterSavingPendingChanges() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("refresh");
+            for (int i = 0; i < 5; i++) {
+                root.addNode("child" + i);
+            }
+            session.save();
+
+            new MarkingPlugin("refresh").set("path", "/refresh/*").set("session.refresh.nodes", "4").run();
+
+            // saved before the refresh after the fourth node, the later changes are discarded by the runner
+            for (int i = 0; i < 3; i++) {
+                assertTrue(session.getNode("/refresh/child" + i).hasProperty("marked"));
+            }
+            assertFalse(session.getNode("/refresh/child3").hasProperty("marked"));
+
+            JcrHelper.rotateSession();
+            assertFalse(session.isLive());
+            assertTrue(JcrHelper.getSession().isLive());
+            assertTrue(JcrHelper.getNode("/refresh/child0").hasProperty("marked"));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void nodesAreVisitedOnceAcrossPathAndQueryVisitors() throws Exception {
+        TestRepository.connect(TestRepository.INDEXED_CONFIG);
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("once");
+            for (int i = 0; i < 3; i++) {
+                Node folder = root.addNode("folder" + i);
+                for (int j = 0; j < 3; j++) {
+                    folder.addNode("doc" + j);
+                }
+            }
+            session.save();
+
+            // the query finds every node below the start path again
+            List<String> twice = new TestPlugin("twice").set("path", "/once/**").set("query", "/jcr:root/once//*")
+                    .run().getPaths();
+            assertEquals(25, twice.size());
+
+            List<String> once = new TestPlugin("once").set("path", "/once/**").set("query", "/jcr:root/once//*")
+                    .set("visit.once", "true").set("visit.once.size", "4").run().getPaths();
+            assertEquals(once.toString(), 13, once.size());
+            assertEquals(once.toString(), 13, new HashSet<String>(once).size());
+            assertEquals("/once", once.get(0));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    /**
+     * Marks the visited nodes without saving them.
+     */
+    private static int count(List<String> events, String event) {
+        int count = 0;
+        for (String each : events) {
+            if (each.equals(event)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class MarkingPlugin extends TestPlugin {
+
+        MarkingPlugin(String id) {
+            super(id);
+        }
+
+        @Override
+        public void visit(Node node) {
+            try {
+                node.setProperty("marked", true);
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Checks that it gets the session bound to its thread and whether that is a session other than the one of the
+     * test, and waits for the other plugin at the barrier.
+     */
+    private static class RecordingPlugin extends TestPlugin {
+
+        private final Object testSession;
+        private final CyclicBarrier barrier;
+
+        RecordingPlugin(String id, String independent, List<String> events, CyclicBarrier barrier) {
+            super(id, events);
+            set("path", "/concurrent/**");
+            set("independent", independent);
+            this.testSession = JcrProxyFactory.unwrap(JcrHelper.getSession());
+            this.barrier = barrier;
+        }
+
+        private void checkSession(Session session) {
+            Object unwrapped = JcrProxyFactory.unwrap(session);
+            if (unwrapped != JcrProxyFactory.unwrap(JcrHelper.getSession())) {
+                addEvent("wrong session");
+            }
+            if (unwrapped != testSession && !getEvents().contains(getId() + ":own session")) {
+                addEvent("own session");
+            }
+        }
+
+        @Override
+        public void visit(Node node) {
+            super.visit(node);
+            try {
+                checkSession(node.getSession());
+            } catch (RepositoryException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void init(Session session) {
+            super.init(session);
+            checkSession(session);
+            if (barrier != null) {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                    addEvent("together");
+                } catch (Exception e) {
+                    addEvent("alone");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrrunner.plugins.AbstractRunnerPlugin;
+
+/**
+ * Plugin for the tests that records the paths it visits and the events of its life cycle. It is configured
+ * with {@link #set(String, String)}, override its methods for other behaviour.
+ */
+public class TestPlugin extends AbstractRunnerPlugin {
+
+    private final RunnerPluginConfig config;
+    private final List<String> events;
+    private final List<String> paths = new CopyOnWriteArrayList<String>();
+
+    public TestPlugin(String id) {
+        this(id, new CopyOnWriteArrayList<String>());
+    }
+
+    /**
+     * @param events the list to add the events to, share it between plugins to see the order of their events
+     */
+    public TestPlugin(String id, List<String> events) {
+        this.config = new RunnerPluginConfig(id, RunnerPluginType.JAVA);
+        this.events = events;
+        setId(id);
+        setConfig(config);
+    }
+
+    public TestPlugin set(String key, String value) {
+        config.addEntry(key, value);
+        return this;
+    }
+
+    /**
+     * @return the paths of the visited nodes, in the order of the visits
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return the events, as <code>id:event</code>
+     */
+    public List<String> getEvents() {
+        return events;
+    }
+
+    protected void addEvent(String event) {
+        events.add(getId() + ":" + event);
+    }
+
+    @Override
+    public void init(Session session) {
+        addEvent("init");
+    }
+
+    @Override
+    public void visit(Node node) {
+        paths.add(JcrHelper.safeGetPath(node));
+    }
+
+    @Override
+    public void destroy(Session session) {
+        addEvent("destroy");
+    }
+
+    /**
+     * Run this plugin with a new {@link Runner}.
+     */
+    public TestPlugin run() {
+        run(this);
+        return this;
+    }
+
+    /**
+     * Run plugins together with a new {@link Runner}.
+     */
+    public static void run(RunnerPlugin... plugins) {
+        Runner runner = new Runner();
+        for (RunnerPlugin plugin : plugins) {
+            runner.registerPlugin(plugin);
+        }
+        runner.start();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In memory Jackrabbit repository for the tests, started in this JVM through the <code>file:</code> connector.
+ */
+public final class TestRepository {
+
+    public static final String CONFIG = "src/test/resources/jackrabbit/repository.xml";
+    public static final String INDEXED_CONFIG = "src/test/resources/jackrabbit/repository-indexed.xml";
+    private static final String HOME = "target/test-repository";
+
+    public static final String URL = "file:" + HOME;
+
+    private TestRepository() {
+    }
+
+    /**
+     * Install the repository configuration in the repository home.
+     * @return the url of the repository
+     */
+    public static String install() throws IOException {
+        return install(CONFIG);
+    }
+
+    /**
+     * Install a repository configuration in the repository home.
+     * @param config the path of the configuration
+     * @return the url of the repository
+     */
+    public static String install(String config) throws IOException {
+        return install(config, HOME);
+    }
+
+    /**
+     * Install a repository configuration in a repository home of its own, to run several repositories at once.
+     * @param config the path of the configuration
+     * @param path the path of the repository home
+     * @return the url of the repository
+     */
+    public static String install(String config, String path) throws IOException {
+        File home = new File(path);
+        if (!home.isDirectory() && !home.mkdirs()) {
+            throw new IOException("Unable to create " + home.getPath());
+        }
+        // the workspace configuration is copied from the repository configuration on the first start only
+        delete(new File(home, "workspaces"));
+        InputStream in = new FileInputStream(config);
+        OutputStream out = new FileOutputStream(new File(home, "repository.xml"));
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            JcrRunner.closeQuietly(in);
+            JcrRunner.closeQuietly(out);
+        }
+        return "file:" + path;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file.getPath());
+        }
+    }
+
+    /**
+     * Install the repository and connect the {@link JcrHelper} to it as admin.
+     */
+    public static void connect() throws IOException {
+        connect(CONFIG);
+    }
+
+    /**
+     * Install the repository with a configuration and connect the {@link JcrHelper} to it as admin.
+     * @param config the path of the configuration
+     */
+    public static void connect(String config) throws IOException {
+        JcrHelper.setServerUrl(install(config));
+        JcrHelper.setUsername("admin");
+        JcrHelper.setPassword("admin");
+        JcrHelper.ensureConnected();
+    }
+
+    /**
+     * Disconnect the {@link JcrHelper}, which shuts down the repository, and restore the defaults.
+     */
+    public static void disconnect() {
+        JcrHelper.disconnect();
+        JcrHelper.setHippoRepository(true);
+    }
+}
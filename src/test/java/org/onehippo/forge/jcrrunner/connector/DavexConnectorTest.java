@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+public class DavexConnectorTest {
+
+    @Test
+    public void prefetchOnlyBelowBasePath() {
+        DavexConnector.PrefetchConfig config = new DavexConnector.PrefetchConfig();
+        assertEquals(0, config.getDepth("/content/documents"));
+
+        config.setDepth("/content/documents", 3);
+        assertEquals(3, config.getDepth("/content/documents"));
+        assertEquals(3, config.getDepth("/content/documents/news/2013"));
+        assertEquals(0, config.getDepth("/content"));
+        assertEquals(0, config.getDepth("/content/documents-archive"));
+        assertEquals(0, config.getDepth("/hippo:configuration"));
+
+        config.setDepth(null, 0);
+        assertEquals(0, config.getDepth("/content/documents/news"));
+    }
+
+    @Test
+    public void prefetchEverywhereBelowRoot() {
+        DavexConnector.PrefetchConfig config = new DavexConnector.PrefetchConfig();
+        config.setDepth("/", 2);
+        assertEquals(2, config.getDepth("/"));
+        assertEquals(2, config.getDepth("/content/gallery"));
+    }
+
+    @Test
+    public void prefetchDepthIsKeptPerSession() throws Exception {
+        TestRepository.connect();
+        Session first = JcrHelper.newSession();
+        Session second = JcrHelper.newSession();
+        try {
+            // local sessions stand in for remoting sessions, the connector only keeps their configs apart
+            DavexConnector connector = new DavexConnector("http://localhost/server");
+            connector.register(first, newClient());
+            connector.register(second, newClient());
+
+            connector.setPrefetchDepth(first, "/content/documents", 3);
+            connector.setPrefetchDepth(second, "/content/gallery", 1);
+            assertEquals(3, connector.getPrefetchConfig(first).getDepth("/content/documents/news"));
+            assertEquals(0, connector.getPrefetchConfig(first).getDepth("/content/gallery/images"));
+            assertEquals(1, connector.getPrefetchConfig(second).getDepth("/content/gallery/images"));
+            assertEquals(0, connector.getPrefetchConfig(second).getDepth("/content/documents/news"));
+
+            // a rotated session reads like the one it replaces
+            connector.copyPrefetchDepth(first, second);
+            assertEquals(3, connector.getPrefetchConfig(second).getDepth("/content/documents/news"));
+
+            // sessions of other connectors are ignored
+            connector.setPrefetchDepth(JcrHelper.getSession(), "/", 5);
+            connector.copyPrefetchDepth(JcrHelper.getSession(), first);
+            assertEquals(3, connector.getPrefetchConfig(first).getDepth("/content/documents/news"));
+        } finally {
+            first.logout();
+            second.logout();
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void clientOfLoggedOutSessionIsReused() throws Exception {
+        TestRepository.connect();
+        Session first = JcrHelper.newSession();
+        Session second = JcrHelper.newSession();
+        try {
+            DavexConnector connector = new DavexConnector("http://localhost/server");
+            DavexConnector.Client client = newClient();
+            connector.register(first, client);
+            connector.register(second, newClient());
+            connector.setPrefetchDepth(first, "/content/documents", 3);
+            assertNull(connector.reuseClient());
+
+            first.logout();
+            assertSame(client, connector.reuseClient());
+            assertNull(connector.getPrefetchConfig(first));
+            // the next visitor session reads through the reused client without prefetching
+            connector.register(second, client);
+            assertEquals(0, connector.getPrefetchConfig(second).getDepth("/content/documents/news"));
+            assertNull(connector.reuseClient());
+        } finally {
+            second.logout();
+            TestRepository.disconnect();
+        }
+    }
+
+    private static DavexConnector.Client newClient() {
+        // local sessions stand in for remoting sessions, the repository of the client is never used
+        return new DavexConnector.Client(null, new DavexConnector.PrefetchConfig());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDepthIsRejected() {
+        new DavexConnector.PrefetchConfig().setDepth("/", -1);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.connector;
+
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class RepositoryConnectorsTest {
+
+    @Test
+    public void localRepositoryIsSharedBetweenSessions() throws Exception {
+        RepositoryConnector connector = RepositoryConnectors.connect(TestRepository.install(), true);
+        try {
+            assertFalse(connector.isHippo());
+            Session writer = connector.login(new SimpleCredentials("admin", "admin".toCharArray()));
+            writer.getRootNode().addNode("connector-test").setProperty("title", "local");
+            writer.save();
+
+            Session reader = connector.login(new SimpleCredentials("admin", "admin".toCharArray()));
+            assertEquals("local", reader.getNode("/connector-test").getProperty("title").getString());
+            reader.logout();
+            writer.logout();
+        } finally {
+            connector.close();
+        }
+    }
+
+    @Test
+    public void jcrHelperConnectsToLocalRepository() throws Exception {
+        TestRepository.connect();
+        try {
+            assertTrue(JcrHelper.isConnected());
+            assertFalse(JcrHelper.isHippoRepository());
+            assertFalse(JcrHelper.isVirtual(JcrHelper.getRootNode()));
+            Session other = JcrHelper.newSession();
+            assertEquals("/", other.getRootNode().getPath());
+            other.logout();
+        } finally {
+            TestRepository.disconnect();
+        }
+        assertFalse(JcrHelper.isConnected());
+    }
+}
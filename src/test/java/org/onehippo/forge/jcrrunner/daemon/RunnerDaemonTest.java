@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.daemon;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.RunnerConfig;
+import org.onehippo.forge.jcrrunner.TestRepository;
+import org.onehippo.forge.jcrrunner.plugins.AbstractRunnerPlugin;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class RunnerDaemonTest {
+
+    private static final String TOKEN = "secret";
+
+    private RunnerDaemon daemon;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        Session session = JcrHelper.getSession();
+        Node root = session.getRootNode().addNode("daemon");
+        for (int i = 0; i < 5; i++) {
+            root.addNode("child" + i);
+        }
+        session.save();
+
+        Properties props = new Properties();
+        props.setProperty("repository.url", TestRepository.URL);
+        props.setProperty("repository.user", "admin");
+        props.setProperty("repository.pass", "admin");
+        props.setProperty("daemon.port", "0");
+        props.setProperty("daemon.token", TOKEN);
+        props.setProperty("daemon.plugins", "org.onehippo.forge.jcrrunner.plugins.LoggingPlugin,"
+                + SlowPlugin.class.getName());
+        daemon = new RunnerDaemon(new RunnerConfig(props), 0);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+        TestRepository.disconnect();
+    }
+
+    @Test
+    public void jobsAreRunOnTheWarmConnection() throws Exception {
+        String job = "plugins.java.log.class=org.onehippo.forge.jcrrunner.plugins.LoggingPlugin\n"
+                + "plugins.java.log.path=/daemon/**\n";
+        for (int i = 1; i <= 2; i++) {
+            String created = request("POST", "/jobs", job, 201);
+            assertTrue(created, created.contains("\"id\":\"" + i + "\""));
+            assertTrue(created, created.contains("\"plugins\":[\"log\"]"));
+            waitUntilDone(String.valueOf(i));
+            String status = request("GET", "/jobs/" + i, null, 200);
+            assertTrue(status, status.contains("\"state\":\"finished\""));
+            assertTrue(status, status.contains("\"visited\":6"));
+            String report = request("GET", "/jobs/" + i + "/report", null, 200);
+            assertTrue(report, report.contains("\"id\":\"log\""));
+        }
+        assertTrue(JcrHelper.isConnected());
+        String jobs = request("GET", "/jobs", null, 200);
+        assertTrue(jobs, jobs.startsWith("[{\"id\":\"1\""));
+    }
+
+    @Test
+    public void invalidRequestsAreRejected() throws Exception {
+        request("POST", "/jobs", "some.key=value\n", 400);
+        request("GET", "/jobs/42", null, 404);
+        request("DELETE", "/jobs/42", null, 404);
+        assertEquals(0, daemon.getJobs().size());
+    }
+
+    @Test
+    public void runningJobIsCancelledByItsWorker() throws Exception {
+        SlowPlugin.events.clear();
+        request("POST", "/jobs", "plugins.java.slow.class=" + SlowPlugin.class.getName() + "\n"
+                + "plugins.java.slow.path=/daemon/**\n", 201);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!SlowPlugin.events.contains("visit")) {
+            assertTrue("Job not started in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        String cancelled = request("DELETE", "/jobs/1", null, 200);
+        assertTrue(cancelled, cancelled.contains("\"state\":\"cancelled\""));
+        while (daemon.getJob("1").getReport() == null) {
+            assertTrue("Job not stopped in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // destroyed after the running visit returned, on the thread that ran the job
+        assertEquals(SlowPlugin.events.toString(), "destroy on runner-daemon",
+                SlowPlugin.events.get(SlowPlugin.events.size() - 1));
+        assertTrue(SlowPlugin.events.toString(), SlowPlugin.events.size() < 7);
+        assertEquals(Job.State.CANCELLED, daemon.getJob("1").getState());
+    }
+
+    @Test
+    public void requestsWithoutTokenOrFromBrowsersAreRefused() throws Exception {
+        String job = "plugins.java.log.class=org.onehippo.forge.jcrrunner.plugins.LoggingPlugin\n"
+                + "plugins.java.log.path=/daemon/**\n";
+        request("POST", "/jobs", job, null, 401);
+        request("POST", "/jobs", job, "wrong", 401);
+        // HttpURLConnection does not send an Origin header or another Host
+        String localhost = "Host: 127.0.0.1:" + daemon.getPort() + "\r\n";
+        assertTrue(rawRequest(localhost + "X-Runner-Token: " + TOKEN + "\r\n").startsWith("HTTP/1.1 200"));
+        assertTrue(rawRequest(localhost + "X-Runner-Token: " + TOKEN + "\r\nOrigin: http://example.com\r\n")
+                .startsWith("HTTP/1.1 403"));
+        assertTrue(rawRequest("Host: example.com\r\nX-Runner-Token: " + TOKEN + "\r\n").startsWith("HTTP/1.1 403"));
+        assertEquals(0, daemon.getJobs().size());
+    }
+
+    @Test
+    public void onlyAllowedPluginClassesAreAccepted() throws Exception {
+        request("POST", "/jobs", "plugins.java.x.class=org.onehippo.forge.jcrrunner.plugins.FolderConverterPlugin\n"
+                + "plugins.java.x.path=/daemon/**\n", 400);
+        request("POST", "/jobs", "plugins.beanshell.x.bsh=script.bsh\n", 400);
+        request("POST", "/jobs", "plugins.java.log.class=org.onehippo.forge.jcrrunner.plugins.LoggingPlugin\n"
+                + "plugins.beanshell.x.bsh=script.bsh\n", 400);
+        assertEquals(0, daemon.getJobs().size());
+    }
+
+    /**
+     * Takes its time for every node, so the job can be cancelled while it runs.
+     */
+    public static class SlowPlugin extends AbstractRunnerPlugin {
+
+        static final List<String> events = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void visit(Node node) {
+            events.add("visit");
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add("visited");
+        }
+
+        @Override
+        public void destroy(Session session) {
+            events.add("destroy on " + Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * @return the status line and headers of a <code>GET /jobs</code> sent with the given headers
+     */
+    private String rawRequest(String headers) throws IOException {
+        Socket socket = new Socket("127.0.0.1", daemon.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /jobs HTTP/1.1\r\n" + headers + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            return in.readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void waitUntilDone(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (daemon.getJob(id).getState() == Job.State.QUEUED || daemon.getJob(id).getState() == Job.State.RUNNING) {
+            assertTrue("Job " + id + " not done in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private String request(String method, String path, String body, int expectedStatus) throws IOException {
+        return request(method, path, body, TOKEN, expectedStatus);
+    }
+
+    private String request(String method, String path, String body, String token, int expectedStatus)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + path)
+                .openConnection();
+        connection.setRequestMethod(method);
+        if (token != null) {
+            connection.setRequestProperty("X-Runner-Token", token);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        }
+        assertEquals(expectedStatus, connection.getResponseCode());
+        InputStream in = expectedStatus < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            result.write(buffer, 0, read);
+        }
+        in.close();
+        return result.toString("UTF-8");
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.mutation;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class BulkMoverTest {
+
+    private Session session;
+    private Node root;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        session = JcrHelper.getSession();
+        root = session.getRootNode().addNode("bulk");
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        TestRepository.disconnect();
+    }
+
+    @Test
+    public void childrenAreMovedInChunksInOrder() throws Exception {
+        Node src = root.addNode("src");
+        root.addNode("dest");
+        for (int i = 0; i < 250; i++) {
+            src.addNode("child" + i).setProperty("index", i);
+        }
+        session.save();
+
+        BulkMover mover = new BulkMover(session, 100);
+        assertEquals(250, mover.moveChildren("/bulk/src", "/bulk/dest"));
+        assertFalse(session.hasPendingChanges());
+        assertFalse(src.hasNodes());
+
+        NodeIterator moved = session.getNode("/bulk/dest").getNodes();
+        for (int i = 0; i < 250; i++) {
+            assertEquals("child" + i, moved.nextNode().getName());
+        }
+        assertFalse(moved.hasNext());
+    }
+
+    @Test
+    public void renameKeepsPosition() throws Exception {
+        root.addNode("a");
+        root.addNode("b");
+        root.addNode("c");
+        session.save();
+
+        BulkMover mover = new BulkMover(session, 10);
+        assertEquals("/bulk/renamed", mover.rename("/bulk/b", "renamed"));
+
+        NodeIterator children = root.getNodes();
+        assertEquals("a", children.nextNode().getName());
+        assertEquals("renamed", children.nextNode().getName());
+        assertEquals("c", children.nextNode().getName());
+    }
+
+    @Test
+    public void renameKeepsPositionAmongSameNameSiblings() throws Exception {
+        root.addNode("a");
+        root.addNode("b");
+        root.addNode("a");
+        root.addNode("a");
+        root.addNode("c");
+        session.save();
+
+        BulkMover mover = new BulkMover(session, 10);
+        mover.rename("/bulk/a[2]", "renamed");
+        mover.rename("/bulk/a[1]", "first");
+
+        NodeIterator children = root.getNodes();
+        assertEquals("first", children.nextNode().getName());
+        assertEquals("b", children.nextNode().getName());
+        assertEquals("renamed", children.nextNode().getName());
+        assertEquals("a", children.nextNode().getName());
+        assertEquals("c", children.nextNode().getName());
+        assertFalse(children.hasNext());
+    }
+
+    @Test
+    public void copyAndMoveArePersisted() throws Exception {
+        root.addNode("original").setProperty("title", "copied");
+        session.save();
+
+        BulkMover mover = new BulkMover(session, 10);
+        mover.copy("/bulk/original", "/bulk/copy");
+        mover.move("/bulk/original", "/moved");
+
+        assertEquals("copied", session.getNode("/bulk/copy").getProperty("title").getString());
+        assertTrue(session.nodeExists("/moved"));
+        assertFalse(session.nodeExists("/bulk/original"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pendingChangesAreRejected() throws Exception {
+        root.addNode("unsaved");
+        new BulkMover(session, 10).move("/bulk/unsaved", "/bulk/other");
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.mutation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class MutationQueueTest {
+
+    @Test
+    public void laterMutationsReplaceEarlierOnes() {
+        Mutation first = Mutation.setProperty("/a", "x", 1L);
+        Mutation mixin = Mutation.addMixin("/a", "mix:referenceable");
+        Mutation second = Mutation.setProperty("/a", "x", 2L);
+        Mutation move = Mutation.move("/b", "/c");
+        Mutation other = Mutation.setProperty("/a", "y", "value");
+        Mutation mixinAgain = Mutation.addMixin("/a", "mix:referenceable");
+        Mutation otherAgain = Mutation.setProperty("/a", "y", "again");
+
+        List<Mutation> merged = MutationQueue.merge(Arrays.asList(first, mixin, second, move, other, mixinAgain,
+                otherAgain));
+        assertEquals(5, merged.size());
+        assertSame(mixin, merged.get(0));
+        assertSame(second, merged.get(1));
+        assertSame(move, merged.get(2));
+        assertSame(mixinAgain, merged.get(3));
+        assertSame(otherAgain, merged.get(4));
+    }
+
+    @Test
+    public void mutationsAreNotMergedAcrossStructuralChanges() {
+        Mutation remove = Mutation.remove("/a/c");
+        Mutation move = Mutation.move("/x/c", "/a/c");
+        Mutation removeAgain = Mutation.remove("/a/c");
+
+        List<Mutation> merged = MutationQueue.merge(Arrays.asList(remove, move, removeAgain));
+        assertEquals(3, merged.size());
+        assertSame(remove, merged.get(0));
+        assertSame(move, merged.get(1));
+        assertSame(removeAgain, merged.get(2));
+    }
+
+    @Test
+    public void mutationsAreAppliedOnWriterSession() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("mutations");
+            for (int i = 0; i < 5; i++) {
+                root.addNode("n" + i);
+            }
+            session.save();
+
+            MutationQueue queue = MutationQueue.open("test", 2);
+            queue.setProperty("/mutations/n0", "title", "changed");
+            queue.setProperty("/mutations/n0", "tags", new String[] {"a", "b"});
+            queue.addMixin("/mutations/n0", "mix:referenceable");
+            queue.rename("/mutations/n1", "renamed");
+            queue.move("/mutations/n2", "/mutations/n0/n2");
+            queue.remove("/mutations/n3");
+            queue.setProperty("/mutations/missing", "title", "skipped");
+            queue.close();
+
+            session.refresh(false);
+            Node n0 = session.getNode("/mutations/n0");
+            assertEquals("changed", n0.getProperty("title").getString());
+            assertEquals(2, n0.getProperty("tags").getValues().length);
+            assertTrue(n0.isNodeType("mix:referenceable"));
+            assertTrue(n0.hasNode("n2"));
+            assertFalse(root.hasNode("n3"));
+
+            NodeIterator children = root.getNodes();
+            assertEquals("n0", children.nextNode().getName());
+            assertEquals("renamed", children.nextNode().getName());
+            assertEquals("n4", children.nextNode().getName());
+            assertFalse(children.hasNext());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void mutationsRecordedWhileClosingAreAppliedOrRejected() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            session.getRootNode().addNode("racing");
+            session.save();
+
+            final MutationQueue queue = MutationQueue.open("racing", 1);
+            final AtomicInteger recorded = new AtomicInteger();
+            List<Thread> recorders = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                final String prefix = "p" + i + "_";
+                Thread recorder = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int count = 0; true; count++) {
+                                queue.setProperty("/racing", prefix + count, (long) count);
+                                recorded.incrementAndGet();
+                            }
+                        } catch (IllegalStateException closed) {
+                            // rejected after the close
+                        }
+                    }
+                });
+                recorders.add(recorder);
+                recorder.start();
+            }
+            Thread.sleep(50);
+            queue.close();
+            for (Thread recorder : recorders) {
+                recorder.join(10000);
+                assertFalse("Recorder blocked after close", recorder.isAlive());
+            }
+
+            session.refresh(false);
+            // all properties next to the primary type
+            assertEquals(recorded.get() + 1, session.getNode("/racing").getProperties().getSize());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void failingMutationsAreLeftOutOfTheBatch() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("failing");
+            for (int i = 0; i < 3; i++) {
+                root.addNode("n" + i);
+            }
+            session.save();
+
+            MutationQueue queue = MutationQueue.open("test", 10);
+            queue.setProperty("/failing/n0", "title", "saved");
+            queue.record(new PartialMutation("/failing/n1"));
+            queue.setProperty("/failing/n2", "title", "saved");
+            queue.close();
+
+            session.refresh(false);
+            assertEquals("saved", session.getNode("/failing/n0").getProperty("title").getString());
+            assertFalse(session.getNode("/failing/n1").hasProperty("partial"));
+            assertEquals("saved", session.getNode("/failing/n2").getProperty("title").getString());
+
+            // the writer survives a mutation throwing a runtime exception and keeps taking batches
+            queue = MutationQueue.open("test", 1);
+            queue.record(new BrokenMutation("/failing/n0"));
+            for (int i = 0; i < 5; i++) {
+                queue.setProperty("/failing/n0", "count", (long) i);
+            }
+            queue.close();
+            session.refresh(false);
+            assertEquals(4L, session.getNode("/failing/n0").getProperty("count").getLong());
+
+            queue = MutationQueue.open("test", 10);
+            queue.setProperty("/failing/n0", "title", "again");
+            queue.record(new UnsavableMutation("/failing/n1"));
+            queue.setProperty("/failing/n2", "title", "again");
+            queue.close();
+
+            session.refresh(false);
+            assertEquals("again", session.getNode("/failing/n0").getProperty("title").getString());
+            assertFalse(session.getNode("/failing/n1").hasNode("file"));
+            assertEquals("again", session.getNode("/failing/n2").getProperty("title").getString());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void conflictingBatchIsAppliedOneByOne() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("conflict");
+            for (int i = 0; i < 3; i++) {
+                root.addNode("n" + i).setProperty("title", "initial");
+            }
+            session.save();
+
+            MutationQueue queue = MutationQueue.open("test", 10);
+            queue.setProperty("/conflict/n0", "title", "saved");
+            queue.record(new ConflictingMutation("/conflict/n1"));
+            queue.setProperty("/conflict/n2", "title", "saved");
+            queue.close();
+
+            session.refresh(false);
+            assertEquals("saved", session.getNode("/conflict/n0").getProperty("title").getString());
+            assertEquals("external", session.getNode("/conflict/n1").getProperty("title").getString());
+            assertEquals("saved", session.getNode("/conflict/n2").getProperty("title").getString());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    /**
+     * Sets a property and then fails, leaving the property in the transient space.
+     */
+    private static final class PartialMutation extends Mutation {
+
+        PartialMutation(String path) {
+            super(path);
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(Session session) throws RepositoryException {
+            session.getNode(getPath()).setProperty("partial", true);
+            throw new RepositoryException("Failed halfway");
+        }
+    }
+
+    private static final class BrokenMutation extends Mutation {
+
+        BrokenMutation(String path) {
+            super(path);
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(Session session) {
+            throw new IllegalStateException("Broken mutation");
+        }
+    }
+
+    /**
+     * Adds a file without its mandatory content, which fails on save.
+     */
+    private static final class UnsavableMutation extends Mutation {
+
+        UnsavableMutation(String path) {
+            super(path);
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(Session session) throws RepositoryException {
+            session.getNode(getPath()).addNode("file", "nt:file");
+        }
+    }
+
+    /**
+     * Changes the title while another session changes and saves it as well.
+     */
+    private static final class ConflictingMutation extends Mutation {
+
+        ConflictingMutation(String path) {
+            super(path);
+        }
+
+        @Override
+        String getKey() {
+            return null;
+        }
+
+        @Override
+        void apply(Session session) throws RepositoryException {
+            session.getNode(getPath()).setProperty("title", "mutated");
+            Session other = JcrHelper.newSession();
+            try {
+                other.getNode(getPath()).setProperty("title", "external");
+                other.save();
+            } finally {
+                other.logout();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.plugins;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.Runner;
+import org.onehippo.forge.jcrrunner.RunnerPluginConfig;
+import org.onehippo.forge.jcrrunner.RunnerPluginType;
+import org.onehippo.forge.jcrrunner.TestPlugin;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class BinaryScannerPluginTest {
+
+    @Test
+    public void onlyDuplicateBinariesAreReported() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("binaries");
+            String[] contents = {"same", "other", "unique1", "same", "other", "unique2", "same", "unique3"};
+            for (int i = 0; i < contents.length; i++) {
+                root.addNode("file" + i).setProperty("jcr:data", session.getValueFactory().createBinary(
+                        new ByteArrayInputStream(contents[i].getBytes("UTF-8"))));
+            }
+            session.save();
+
+            File output = File.createTempFile("binaries", ".csv");
+            output.deleteOnExit();
+            RunnerPluginConfig config = new RunnerPluginConfig("binaries", RunnerPluginType.JAVA);
+            config.addEntry("path", "/binaries/*");
+            config.addEntry("threads", "2");
+            // spill to disk several times
+            config.addEntry("sort.chunk", "3");
+            config.addEntry("output", output.getPath());
+            BinaryScannerPlugin plugin = new BinaryScannerPlugin();
+            plugin.setId(config.getId());
+            plugin.setConfig(config);
+            TestPlugin.run(plugin);
+
+            List<String> rows = readRows(output);
+            assertEquals(rows.toString(), 5, rows.size());
+            List<String> sizeCountPaths = new ArrayList<String>();
+            String hashOfSame = null;
+            for (String row : rows) {
+                String[] values = row.split(",");
+                sizeCountPaths.add(values[1] + "," + values[2] + "," + values[3]);
+                if (values[3].equals("/binaries/file0")) {
+                    hashOfSame = values[0];
+                }
+            }
+            Collections.sort(sizeCountPaths);
+            assertEquals("[4,3,/binaries/file0, 4,3,/binaries/file3, 4,3,/binaries/file6, "
+                    + "5,2,/binaries/file1, 5,2,/binaries/file4]", sizeCountPaths.toString());
+            for (String row : rows) {
+                if (row.endsWith("/binaries/file3") || row.endsWith("/binaries/file6")) {
+                    assertTrue(row, row.startsWith(hashOfSame + ","));
+                }
+            }
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void slowScansAreAbandonedWhenTheDrainTimeoutPassed() throws Exception {
+        TestRepository.connect();
+        try {
+            // both fit in the queue of the scan thread, the traversal does not wait
+            File output = createSlowBinaries(2);
+            BinaryScannerPlugin plugin = createSlowScanner(output, "1");
+            long start = System.currentTimeMillis();
+            TestPlugin.run(plugin);
+
+            assertTrue(System.currentTimeMillis() - start < 20000);
+            assertEquals(0, readRows(output).size());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void slowScansAreAbandonedWhenTheRunnerIsStopped() throws Exception {
+        TestRepository.connect();
+        try {
+            // the traversal waits for room in the queue of the scan thread
+            File output = createSlowBinaries(3);
+            final Runner runner = new Runner();
+            runner.registerPlugin(createSlowScanner(output, "600"));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runner.start();
+                }
+            });
+            long start = System.currentTimeMillis();
+            thread.start();
+            Thread.sleep(500);
+            runner.stop();
+
+            assertTrue(runner.awaitFinished(20000));
+            assertTrue(System.currentTimeMillis() - start < 20000);
+            thread.join(10000);
+            assertEquals(0, readRows(output).size());
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    private static File createSlowBinaries(int count) throws Exception {
+        Session session = JcrHelper.getSession();
+        Node root = session.getRootNode().addNode("binaries");
+        for (int i = 0; i < count; i++) {
+            root.addNode("file" + i).setProperty("jcr:data", session.getValueFactory().createBinary(
+                    new ByteArrayInputStream(new byte[1000])));
+        }
+        session.save();
+        File output = File.createTempFile("binaries", ".csv");
+        output.deleteOnExit();
+        return output;
+    }
+
+    /**
+     * Reading a binary takes a hundred seconds.
+     */
+    private static BinaryScannerPlugin createSlowScanner(File output, String drainTimeout) {
+        RunnerPluginConfig config = new RunnerPluginConfig("binaries", RunnerPluginType.JAVA);
+        config.addEntry("path", "/binaries/*");
+        config.addEntry("threads", "1");
+        config.addEntry("bytespersecond", "10");
+        config.addEntry("drain.timeout", drainTimeout);
+        config.addEntry("output", output.getPath());
+        BinaryScannerPlugin plugin = new BinaryScannerPlugin();
+        plugin.setId(config.getId());
+        plugin.setConfig(config);
+        return plugin;
+    }
+
+    private static List<String> readRows(File output) throws Exception {
+        List<String> rows = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(output));
+        try {
+            // skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                rows.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.plugins;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.ContentGenerator;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.RunnerPluginConfig;
+import org.onehippo.forge.jcrrunner.RunnerPluginType;
+import org.onehippo.forge.jcrrunner.TestPlugin;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+public class FolderConverterPluginTest {
+
+    private Session session;
+    private Node root;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        session = JcrHelper.getSession();
+        ContentGenerator.registerNodeTypes(session);
+        root = session.getRootNode().addNode("folders");
+        root.addNode("before");
+        addDocuments(root.addNode("dir", "hippostd:directory"), 0, 5);
+        root.addNode("after");
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        TestRepository.disconnect();
+    }
+
+    @Test
+    public void smallFolderIsConvertedAtOnce() throws Exception {
+        convert(10);
+        assertConverted(5);
+    }
+
+    @Test
+    public void largeFolderIsConvertedInChunks() throws Exception {
+        convert(2);
+        assertConverted(5);
+    }
+
+    @Test
+    public void conversionThatFailedWhileMovingIsFinished() throws Exception {
+        // the first subnodes were moved to the new node before the conversion failed
+        Node newNode = addNewNode();
+        for (int i = 0; i < 2; i++) {
+            session.move("/folders/dir/doc" + i, "/folders/dir.tmptmptmptmp/doc" + i);
+        }
+        session.save();
+        assertEquals("hippostd:folder", newNode.getPrimaryNodeType().getName());
+
+        convert(10);
+        assertConverted(5);
+    }
+
+    @Test
+    public void conversionThatFailedWhileRenamingIsFinished() throws Exception {
+        Node newNode = addNewNode();
+        NodeIterator docs = session.getNode("/folders/dir").getNodes();
+        while (docs.hasNext()) {
+            Node doc = docs.nextNode();
+            session.move(doc.getPath(), "/folders/dir.tmptmptmptmp/" + doc.getName());
+        }
+        session.getNode("/folders/dir").remove();
+        session.save();
+        assertEquals("hippostd:folder", newNode.getPrimaryNodeType().getName());
+
+        convert(10);
+        assertConverted(5);
+    }
+
+    private void convert(int chunkSize) {
+        RunnerPluginConfig config = new RunnerPluginConfig("folderconv", RunnerPluginType.JAVA);
+        config.addEntry("path", "/folders/*");
+        config.addEntry("chunksize", String.valueOf(chunkSize));
+        FolderConverterPlugin plugin = new FolderConverterPlugin();
+        plugin.setId(config.getId());
+        plugin.setConfig(config);
+        TestPlugin.run(plugin);
+    }
+
+    private Node addNewNode() throws Exception {
+        Node newNode = root.addNode("dir.tmptmptmptmp", "hippostd:folder");
+        newNode.addMixin("hippo:harddocument");
+        root.orderBefore("dir.tmptmptmptmp", "dir");
+        session.save();
+        return newNode;
+    }
+
+    private void assertConverted(int documents) throws Exception {
+        session.refresh(false);
+        NodeIterator children = root.getNodes();
+        assertEquals("before", children.nextNode().getName());
+        Node folder = children.nextNode();
+        assertEquals("dir", folder.getName());
+        assertEquals("hippostd:folder", folder.getPrimaryNodeType().getName());
+        assertEquals("after", children.nextNode().getName());
+        assertFalse(children.hasNext());
+
+        NodeIterator docs = folder.getNodes();
+        for (int i = 0; i < documents; i++) {
+            assertEquals("doc" + i, docs.nextNode().getName());
+        }
+        assertFalse(docs.hasNext());
+    }
+
+    private static void addDocuments(Node folder, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            folder.addNode("doc" + i, "hippo:document");
+        }
+    }
+}
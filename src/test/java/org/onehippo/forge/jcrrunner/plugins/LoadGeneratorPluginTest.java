@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.Runner;
+import org.onehippo.forge.jcrrunner.RunnerPluginConfig;
+import org.onehippo.forge.jcrrunner.RunnerPluginType;
+import org.onehippo.forge.jcrrunner.TestPlugin;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class LoadGeneratorPluginTest {
+
+    @Test
+    public void visitedNodesAreReplayedAsLoad() throws Exception {
+        TestRepository.connect(TestRepository.INDEXED_CONFIG);
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("load");
+            for (int i = 0; i < 10; i++) {
+                root.addNode("child" + i).setProperty("title", "child " + i);
+            }
+            session.save();
+
+            File output = File.createTempFile("load", ".csv");
+            output.deleteOnExit();
+            RunnerPluginConfig config = new RunnerPluginConfig("load", RunnerPluginType.JAVA);
+            config.addEntry("path", "/load/*");
+            config.addEntry("rate", "40");
+            config.addEntry("duration", "1");
+            config.addEntry("sessions", "2");
+            config.addEntry("mix.read", "2");
+            config.addEntry("mix.write", "1");
+            config.addEntry("write.property", "jcrrunnerload");
+            config.addEntry("mix.query", "1");
+            config.addEntry("load.query", "/jcr:root/load/*");
+            config.addEntry("output", output.getPath());
+            LoadGeneratorPlugin plugin = new LoadGeneratorPlugin();
+            plugin.setId(config.getId());
+            plugin.setConfig(config);
+            TestPlugin.run(plugin);
+
+            Map<String, Long> metrics = readMetrics(output);
+            assertEquals(metrics.toString(), 40L, metrics.get("read.count") + metrics.get("write.count")
+                    + metrics.get("query.count"));
+            assertEquals(metrics.toString(), 0L, (long) metrics.get("read.errors"));
+            // two sessions may write the same node at the same time, one of them fails
+            assertTrue(metrics.toString(), metrics.get("write.errors") < metrics.get("write.count"));
+            assertEquals(metrics.toString(), 0L, (long) metrics.get("query.errors"));
+            assertEquals(metrics.toString(), 0L, (long) metrics.get("read.dropped"));
+            assertTrue(metrics.toString(), metrics.get("read.latency.us.p50") <= metrics.get("read.latency.us.max"));
+            // latency includes the time waiting behind other requests, so it is never below the service time
+            assertTrue(metrics.toString(), metrics.get("read.latency.us.max") >= metrics.get("read.service.us.max"));
+
+            session.refresh(false);
+            int written = 0;
+            for (int i = 0; i < 10; i++) {
+                if (session.getNode("/load/child" + i).hasProperty("jcrrunnerload")) {
+                    written++;
+                }
+            }
+            assertTrue(metrics.toString(), written > 0);
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test
+    public void requestsNotHandledInTimeAreDropped() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("load");
+            for (int i = 0; i < 10; i++) {
+                root.addNode("child" + i);
+            }
+            session.save();
+
+            File output = File.createTempFile("load", ".csv");
+            output.deleteOnExit();
+            LoadGeneratorPlugin plugin = new LoadGeneratorPlugin();
+            RunnerPluginConfig config = new RunnerPluginConfig("load", RunnerPluginType.JAVA);
+            config.addEntry("path", "/load/*");
+            config.addEntry("rate", "20000");
+            config.addEntry("duration", "1");
+            config.addEntry("sessions", "1");
+            config.addEntry("mix.read", "0");
+            config.addEntry("mix.write", "1");
+            config.addEntry("write.property", "jcrrunnerload");
+            config.addEntry("drain.timeout", "0");
+            config.addEntry("output", output.getPath());
+            plugin.setId(config.getId());
+            plugin.setConfig(config);
+            TestPlugin.run(plugin);
+
+            // every scheduled request is counted, a single session does not save that fast
+            Map<String, Long> metrics = readMetrics(output);
+            assertEquals(metrics.toString(), 20000L, (long) metrics.get("write.count"));
+            assertTrue(metrics.toString(), metrics.get("write.dropped") > 0);
+            assertTrue(metrics.toString(), metrics.get("write.latency.us.max") > metrics.get("write.service.us.max"));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writesWithoutPropertyAreRejected() {
+        RunnerPluginConfig config = new RunnerPluginConfig("load", RunnerPluginType.JAVA);
+        config.addEntry("mix.write", "1");
+        LoadGeneratorPlugin plugin = new LoadGeneratorPlugin();
+        plugin.setId(config.getId());
+        plugin.setConfig(config);
+        plugin.init(null);
+    }
+
+    @Test
+    public void schedulingStopsWhenTheRunnerIsStopped() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("load");
+            for (int i = 0; i < 10; i++) {
+                root.addNode("child" + i);
+            }
+            session.save();
+
+            File output = File.createTempFile("load", ".csv");
+            output.deleteOnExit();
+            RunnerPluginConfig config = new RunnerPluginConfig("load", RunnerPluginType.JAVA);
+            config.addEntry("path", "/load/*");
+            config.addEntry("rate", "10");
+            config.addEntry("duration", "600");
+            config.addEntry("sessions", "1");
+            config.addEntry("output", output.getPath());
+            LoadGeneratorPlugin plugin = new LoadGeneratorPlugin();
+            plugin.setId(config.getId());
+            plugin.setConfig(config);
+            final Runner runner = new Runner();
+            runner.registerPlugin(plugin);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runner.start();
+                }
+            });
+            thread.start();
+            Thread.sleep(1000);
+            runner.stop();
+
+            assertTrue(runner.awaitFinished(20000));
+            thread.join(10000);
+            // reads only by default, no content is changed
+            Map<String, Long> metrics = readMetrics(output);
+            assertTrue(metrics.toString(), metrics.get("read.count") < 6000L);
+            assertFalse(metrics.toString(), metrics.containsKey("write.count"));
+            session.refresh(false);
+            assertFalse(session.getNode("/load/child0").hasProperty("jcrrunnerload"));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+
+    private static Map<String, Long> readMetrics(File output) throws Exception {
+        Map<String, Long> metrics = new HashMap<String, Long>();
+        BufferedReader reader = new BufferedReader(new FileReader(output));
+        try {
+            // skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split(",");
+                metrics.put(values[0] + "." + values[1], Long.valueOf(values[2]));
+            }
+        } finally {
+            reader.close();
+        }
+        return metrics;
+    }
+}
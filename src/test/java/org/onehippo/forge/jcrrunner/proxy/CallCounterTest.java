@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class CallCounterTest {
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        session = JcrHelper.getSession();
+        session.getRootNode().addNode("counted").setProperty("title", "Counted");
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        TestRepository.disconnect();
+    }
+
+    private Session wrap(CallCounter counter) {
+        return new JcrProxyFactory(Collections.<Interceptor>singletonList(counter)).wrap(session);
+    }
+
+    @Test
+    public void callsAreCountedPerMethod() throws Exception {
+        CallCounter counter = new CallCounter(false);
+        Node node = wrap(counter).getNode("/counted");
+        for (int i = 0; i < 3; i++) {
+            node.getPath();
+        }
+        node.getProperty("title").getString();
+
+        assertEquals(1, counter.getCount("Session.getNode"));
+        assertEquals(3, counter.getCount("Item.getPath"));
+        assertEquals(1, counter.getCount("Node.getProperty"));
+        assertEquals(1, counter.getCount("Property.getString"));
+        assertEquals(6, counter.getCount());
+
+        List<String> top = counter.getTopByCount(2);
+        assertEquals(2, top.size());
+        assertEquals("Item.getPath: 3 calls", top.get(0));
+        assertTrue(counter.getTopByTime(2).isEmpty());
+    }
+
+    @Test
+    public void callsAreTimed() throws Exception {
+        CallCounter counter = new CallCounter(true);
+        Session wrapped = wrap(counter);
+        for (int i = 0; i < 10; i++) {
+            wrapped.getNode("/counted").getPath();
+        }
+        List<String> top = counter.getTopByTime(5);
+        assertEquals(2, top.size());
+        assertTrue(top.get(0), top.get(0).matches("(Session.getNode|Item.getPath): 10 calls, \\d+\\.\\d{3} ms"));
+    }
+}
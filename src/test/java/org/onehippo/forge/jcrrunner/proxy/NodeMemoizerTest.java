@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.util.Arrays;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+
+public class NodeMemoizerTest {
+
+    private NodeMemoizer memoizer;
+    private CallCounter counter;
+    private Node node;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        Session session = JcrHelper.getSession();
+        session.getRootNode().addNode("memoized").setProperty("title", "Before");
+        session.save();
+
+        memoizer = new NodeMemoizer();
+        counter = new CallCounter(false);
+        JcrProxyFactory factory = new JcrProxyFactory(Arrays.<Interceptor>asList(memoizer, counter));
+        node = factory.wrap(session).getNode("/memoized");
+    }
+
+    @After
+    public void tearDown() {
+        TestRepository.disconnect();
+    }
+
+    @Test
+    public void repeatedReadsReachTheRepositoryOnce() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("/memoized", node.getPath());
+            assertEquals("nt:unstructured", node.getPrimaryNodeType().getName());
+            assertEquals("Before", node.getProperty("title").getString());
+        }
+        assertEquals(1, counter.getCount("Item.getPath"));
+        assertEquals(1, counter.getCount("Node.getPrimaryNodeType"));
+        assertEquals(1, counter.getCount("Node.getProperty"));
+        assertEquals(1, counter.getCount("Property.getString"));
+        assertEquals(8, memoizer.getHits());
+
+        memoizer.clear();
+        node.getPath();
+        assertEquals(2, counter.getCount("Item.getPath"));
+    }
+
+    @Test
+    public void writesForgetReads() throws Exception {
+        assertEquals("Before", node.getProperty("title").getString());
+        node.setProperty("title", "After");
+        assertEquals("After", node.getProperty("title").getString());
+
+        node.addMixin("mix:referenceable");
+        assertEquals(1, node.getMixinNodeTypes().length);
+        node.getMixinNodeTypes()[0] = null;
+        assertEquals("mix:referenceable", node.getMixinNodeTypes()[0].getName());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.proxy;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.JackrabbitNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class TransientSpaceGuardTest {
+
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        session = JcrHelper.getSession();
+        session.getRootNode().addNode("guarded");
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        TestRepository.disconnect();
+    }
+
+    private Node wrapGuarded(TransientSpaceGuard guard) throws Exception {
+        JcrProxyFactory factory = new JcrProxyFactory(Collections.<Interceptor>singletonList(guard));
+        return factory.wrap(session).getNode("/guarded");
+    }
+
+    @Test
+    public void proxiesKeepInterfacesAndIdentity() throws Exception {
+        TransientSpaceGuard guard = new TransientSpaceGuard("test", session, 0, 0);
+        Node node = wrapGuarded(guard);
+        assertTrue(JcrProxyFactory.isProxy(node));
+        assertTrue(node instanceof JackrabbitNode);
+        assertTrue(node.isSame(session.getNode("/guarded")));
+        assertTrue(node.getSession().getNode("/guarded").isSame(node));
+        assertTrue(JcrProxyFactory.isProxy(node.getParent()));
+    }
+
+    @Test
+    public void saveAtCeiling() throws Exception {
+        TransientSpaceGuard guard = new TransientSpaceGuard("test", session, 10, 0);
+        Node node = wrapGuarded(guard);
+        for (int i = 0; i < 25; i++) {
+            node.addNode("n" + i);
+        }
+        assertEquals(2, guard.getEnforcedCount());
+        assertEquals(5, guard.getPendingItems());
+
+        Session other = JcrHelper.newSession();
+        assertEquals(20, other.getNode("/guarded").getNodes().getSize());
+        other.logout();
+
+        node.getSession().save();
+        assertEquals(0, guard.getPendingItems());
+    }
+
+    @Test
+    public void saveAtSizeCeiling() throws Exception {
+        TransientSpaceGuard guard = new TransientSpaceGuard("test", session, 0, 1000);
+        Node node = wrapGuarded(guard);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("text");
+        }
+        node.setProperty("big", text.toString());
+        assertEquals(1, guard.getEnforcedCount());
+        assertFalse(session.hasPendingChanges());
+
+        Session other = JcrHelper.newSession();
+        assertTrue(other.getNode("/guarded").hasProperty("big"));
+        other.logout();
+    }
+}
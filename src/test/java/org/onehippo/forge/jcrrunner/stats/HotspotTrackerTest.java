@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.TestPlugin;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class HotspotTrackerTest {
+
+    @Test
+    public void listsAreBoundedAndOrdered() {
+        HotspotTracker tracker = new HotspotTracker(3);
+        for (int i = 1; i <= 100; i++) {
+            tracker.subtreeVisited("/folder" + i, i, 100 - i, i * 1000L);
+        }
+        String[] largest = tracker.getLargestSubtrees();
+        assertEquals(3, largest.length);
+        assertTrue(largest[0], largest[0].endsWith(" /folder100"));
+        assertTrue(largest[2], largest[2].endsWith(" /folder98"));
+        assertTrue(tracker.getSlowestSubtrees()[0], tracker.getSlowestSubtrees()[0].startsWith("100 nodes, "));
+        String[] widest = tracker.getWidestNodes();
+        assertTrue(widest[0], widest[0].startsWith("1 nodes, 99 children, "));
+        assertTrue(widest[2], widest[2].endsWith(" /folder3"));
+
+        tracker.reset();
+        assertEquals(0, tracker.getLargestSubtrees().length);
+    }
+
+    @Test
+    public void hotspotsOfPluginAreAvailableOverJmx() throws Exception {
+        TestRepository.connect();
+        try {
+            Session session = JcrHelper.getSession();
+            Node root = session.getRootNode().addNode("hotspots");
+            Node wide = root.addNode("wide");
+            for (int i = 0; i < 200; i++) {
+                wide.addNode("child" + i);
+            }
+            root.addNode("narrow").addNode("child");
+            session.save();
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(
+                    "org.onehippo.forge.jcrrunner:type=HotspotTracker,plugin=\"hotspots\"");
+            final Map<String, Object> attributes = new HashMap<String, Object>();
+            new TestPlugin("hotspots") {
+                @Override
+                public void destroy(Session session) {
+                    try {
+                        for (String attribute : new String[] {"Visits", "WidestNodes", "SlowestVisits"}) {
+                            attributes.put(attribute, server.getAttribute(name, attribute));
+                        }
+                    } catch (JMException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }.set("path", "/hotspots/**").set("hotspots.size", "2").run();
+
+            assertEquals(204L, attributes.get("Visits"));
+            String[] widest = (String[]) attributes.get("WidestNodes");
+            assertEquals(2, widest.length);
+            assertTrue(widest[0], widest[0].startsWith("201 nodes, 200 children, "));
+            assertTrue(widest[0], widest[0].endsWith(" /hotspots/wide"));
+            assertEquals(2, ((String[]) attributes.get("SlowestVisits")).length);
+            // gone once the plugin is destroyed
+            assertFalse(server.isRegistered(name));
+        } finally {
+            TestRepository.disconnect();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.stats;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class SketchesTest {
+
+    @Test
+    public void checkHyperLogLogEstimateAndMerge() {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (int i = 0; i < 100000; i++) {
+            first.add("/content/documents/node" + i);
+            second.add("/content/documents/node" + (i + 50000));
+        }
+        assertWithin(100000, first.cardinality(), 0.05);
+        first.merge(second);
+        assertWithin(150000, first.cardinality(), 0.05);
+    }
+
+    @Test
+    public void checkHyperLogLogSmallRange() {
+        HyperLogLog counter = new HyperLogLog();
+        for (int i = 0; i < 10; i++) {
+            counter.add("value" + i);
+            counter.add("value" + i);
+        }
+        assertEquals(10, counter.cardinality());
+    }
+
+    @Test
+    public void checkLogHistogramQuantilesAndMerge() {
+        LogHistogram first = new LogHistogram();
+        LogHistogram second = new LogHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            first.record(i);
+            second.record(i * 10);
+        }
+        assertWithin(50000, first.getValueAtQuantile(0.5), 0.04);
+        assertWithin(99000, first.getValueAtQuantile(0.99), 0.04);
+        assertEquals(100000, first.getValueAtQuantile(1.0));
+        first.merge(second);
+        assertEquals(200000, first.getCount());
+        assertEquals(1, first.getMin());
+        assertEquals(1000000, first.getMax());
+        assertWithin(90909, first.getValueAtQuantile(0.5), 0.04);
+    }
+
+    @Test
+    public void checkSpaceSavingFindsHeavyHitters() {
+        SpaceSaving first = new SpaceSaving(10);
+        SpaceSaving second = new SpaceSaving(10);
+        for (int i = 0; i < 10000; i++) {
+            first.add("hippo:handle");
+            first.add("node" + i);
+            if (i % 2 == 0) {
+                second.add("hippostd:folder");
+                second.add("hippo:handle");
+            }
+        }
+        first.merge(second);
+        List<SpaceSaving.Counter> top = first.top(2);
+        assertEquals("hippo:handle", top.get(0).getKey());
+        assertTrue(top.get(0).getCount() >= 15000);
+        assertEquals("hippostd:folder", top.get(1).getKey());
+    }
+
+    @Test
+    public void checkContentInventoryMerge() {
+        ContentInventory first = new ContentInventory(10, Arrays.asList("hippo:availability"), 12);
+        ContentInventory second = new ContentInventory(10, Arrays.asList("hippo:availability"), 12);
+        first.addNode("hippo:handle", 3);
+        first.addPropertyValue("hippo:availability", "live");
+        second.addNode("hippo:handle", 3);
+        second.addNode("hippostd:folder", 2);
+        second.addPropertyValue("hippo:availability", "preview");
+        second.addBinary(1024);
+        first.merge(second);
+        assertEquals(3, first.getNodes());
+        assertEquals(2, first.getDepths()[3]);
+        assertEquals(2, first.getCardinalities().get("hippo:availability").cardinality());
+        assertEquals(1, first.getBinarySizes().getCount());
+    }
+
+    private static void assertWithin(long expected, long actual, double relativeError) {
+        assertTrue("Expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= expected * relativeError);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.trace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrrunner.JcrHelper;
+import org.onehippo.forge.jcrrunner.JcrRunner;
+import org.onehippo.forge.jcrrunner.TestPlugin;
+import org.onehippo.forge.jcrrunner.TestRepository;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class TracerTest {
+
+    private static final File TRACE_FILE = new File("target/test-trace.jsonl");
+
+    @Before
+    public void setUp() throws Exception {
+        TestRepository.connect();
+        Session session = JcrHelper.getSession();
+        Node root = session.getRootNode().addNode("traced");
+        for (int i = 0; i < 3; i++) {
+            Node folder = root.addNode("folder" + i);
+            for (int j = 0; j < 5; j++) {
+                folder.addNode("doc" + j);
+            }
+        }
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        Tracer.close();
+        TestRepository.disconnect();
+    }
+
+    private String trace(double sampleRate, int depth) throws Exception {
+        Tracer.open(TRACE_FILE, sampleRate, depth);
+        new TestPlugin("traced") {
+            @Override
+            public void visit(Node node) {
+                try {
+                    JcrHelper.getNode(node.getParent().getPath());
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }.set("path", "/traced/**").run();
+        Tracer.close();
+
+        StringBuilder trace = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(TRACE_FILE), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                trace.append(line).append('\n');
+            }
+        } finally {
+            JcrRunner.closeQuietly(reader);
+        }
+        return trace.toString();
+    }
+
+    private static int count(String text, String fragment) {
+        int count = 0;
+        Matcher matcher = Pattern.compile(Pattern.quote(fragment)).matcher(text);
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void subtreesAndSampledVisitsAreExported() throws Exception {
+        String trace = trace(1.0, 1);
+        assertTrue(trace, trace.startsWith("{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":"
+                + "\"service.name\",\"value\":{\"stringValue\":\"jcr-runner\"}}]}"));
+        assertEquals(1, count(trace, "\"name\":\"plugin\""));
+        // the start path and the three folders below it
+        assertEquals(4, count(trace, "\"name\":\"subtree\""));
+        assertEquals(19, count(trace, "\"name\":\"visit\""));
+        // helper calls are only traced within sampled visits
+        assertEquals(19, count(trace, "\"name\":\"JcrHelper.getNode\""));
+
+        // all spans of the plugin are part of one trace
+        Matcher spans = Pattern.compile("\"traceId\":\"([0-9a-f]{32})\",\"spanId\":\"[0-9a-f]{16}\""
+                + "(,\"parentSpanId\":\"[0-9a-f]{16}\")?,\"name\":\"(plugin|subtree|visit)\"").matcher(trace);
+        assertTrue(spans.find());
+        String traceId = spans.group(1);
+        int pluginSpans = 0;
+        do {
+            assertEquals(traceId, spans.group(1));
+            pluginSpans++;
+        } while (spans.find());
+        assertEquals(24, pluginSpans);
+    }
+
+    @Test
+    public void unsampledVisitsAreNotExported() throws Exception {
+        String trace = trace(0.0, 0);
+        assertEquals(1, count(trace, "\"name\":\"subtree\""));
+        assertFalse(trace, trace.contains("\"name\":\"visit\""));
+        assertFalse(trace, trace.contains("\"name\":\"JcrHelper.getNode\""));
+    }
+}
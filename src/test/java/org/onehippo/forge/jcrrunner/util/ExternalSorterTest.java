@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+public class ExternalSorterTest {
+
+    @Test
+    public void pathOrderKeepsSubtreesTogether() {
+        List<String> paths = new ArrayList<String>(Arrays.asList("/a-b", "/a/b/c", "/b", "/a", "/a/b", "/a/c"));
+        Collections.sort(paths, PathOrder.PATH);
+        assertEquals(Arrays.asList("/a", "/a/b", "/a/b/c", "/a/c", "/a-b", "/b"), paths);
+    }
+
+    @Test
+    public void parentOrderKeepsSiblingsTogether() {
+        List<String> paths = new ArrayList<String>(Arrays.asList("/a/b/c", "/b", "/a", "/a/b", "/a/c", "/a/b/d"));
+        Collections.sort(paths, PathOrder.PARENT);
+        assertEquals(Arrays.asList("/a", "/b", "/a/b", "/a/c", "/a/b/c", "/a/b/d"), paths);
+    }
+
+    @Test
+    public void mergesSpilledChunks() throws IOException {
+        List<String> expected = new ArrayList<String>();
+        Random random = new Random(42);
+        ExternalSorter sorter = new ExternalSorter(PathOrder.PATH, 100);
+        try {
+            for (int i = 0; i < 1050; i++) {
+                String path = "/content/" + random.nextInt(50) + "/doc" + random.nextInt(1000);
+                expected.add(path);
+                sorter.add(path);
+            }
+            assertEquals(10, sorter.getSpilledChunks());
+            assertEquals(1050, sorter.size());
+            Collections.sort(expected, PathOrder.PATH);
+            List<String> sorted = new ArrayList<String>();
+            Iterator<String> iterator = sorter.sorted();
+            while (iterator.hasNext()) {
+                sorted.add(iterator.next());
+            }
+            assertEquals(expected, sorted);
+        } finally {
+            sorter.close();
+        }
+    }
+
+    @Test
+    public void sortsInMemoryWithoutSpilling() throws IOException {
+        ExternalSorter sorter = new ExternalSorter(PathOrder.PATH, 100);
+        try {
+            sorter.add("/b");
+            sorter.add("/a");
+            assertEquals(0, sorter.getSpilledChunks());
+            Iterator<String> iterator = sorter.sorted();
+            assertEquals("/a", iterator.next());
+            assertEquals("/b", iterator.next());
+            assertFalse(iterator.hasNext());
+        } finally {
+            sorter.close();
+        }
+    }
+}
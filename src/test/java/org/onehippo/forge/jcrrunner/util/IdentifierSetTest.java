@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class IdentifierSetTest {
+
+    @Test
+    public void heapSetGrowsPastExpectedSize() throws IOException {
+        addAndCheck(IdentifierSet.Storage.HEAP, 5000);
+    }
+
+    @Test
+    public void directSetGrowsPastExpectedSize() throws IOException {
+        addAndCheck(IdentifierSet.Storage.DIRECT, 5000);
+    }
+
+    @Test
+    public void fileSetGrowsPastExpectedSize() throws IOException {
+        addAndCheck(IdentifierSet.Storage.FILE, 5000);
+    }
+
+    @Test
+    public void keepsNonUuidAndNilIdentifiers() throws IOException {
+        IdentifierSet set = new IdentifierSet(IdentifierSet.Storage.HEAP, 10);
+        try {
+            assertTrue(set.add("00000000-0000-0000-0000-000000000000"));
+            assertFalse(set.add("00000000-0000-0000-0000-000000000000"));
+            assertTrue(set.add("cafebabe-cafe-babe-cafe-babecafebabe"));
+            assertTrue(set.add("[1]/content"));
+            assertTrue(set.add("[1]/content/documents"));
+            assertFalse(set.add("[1]/content"));
+            assertTrue(set.contains("[1]/content/documents"));
+            assertFalse(set.contains("[1]/content/gallery"));
+            assertEquals(4, set.size());
+        } finally {
+            set.close();
+        }
+    }
+
+    @Test
+    public void storageIsParsedIgnoringCase() {
+        assertEquals(IdentifierSet.Storage.FILE, IdentifierSet.Storage.fromString(" File "));
+    }
+
+    private static void addAndCheck(IdentifierSet.Storage storage, int count) throws IOException {
+        IdentifierSet set = new IdentifierSet(storage, 100);
+        try {
+            String[] ids = new String[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = UUID.randomUUID().toString();
+                assertTrue(set.add(ids[i]));
+            }
+            for (String id : ids) {
+                assertFalse(set.add(id));
+                assertTrue(set.contains(id));
+                assertFalse(set.contains(UUID.randomUUID().toString()));
+            }
+            assertEquals(count, set.size());
+            assertTrue(set.getTableBytes() >= count * 16L);
+        } finally {
+            set.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class JsonWriterTest {
+
+    @Test
+    public void membersAreSeparated() throws Exception {
+        StringBuilder out = new StringBuilder();
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject().property("a", 1).name("list").beginArray().value("x").value(true).beginObject()
+                .endObject().endArray().property("b", null).endObject();
+        assertEquals("{\"a\":1,\"list\":[\"x\",true,{}],\"b\":null}", out.toString());
+    }
+
+    @Test
+    public void stringsAreEscaped() throws Exception {
+        StringBuilder out = new StringBuilder();
+        new JsonWriter(out).value("quote \" backslash \\ tab \t newline \n bell \u0007");
+        assertEquals("\"quote \\\" backslash \\\\ tab \\t newline \\n bell \\u0007\"", out.toString());
+    }
+
+    @Test
+    public void numbersThatAreNotFiniteAreNull() throws Exception {
+        StringBuilder out = new StringBuilder();
+        new JsonWriter(out).beginArray().value(Double.NaN).value(Double.POSITIVE_INFINITY)
+                .value(Float.NEGATIVE_INFINITY).value(1.5).endArray();
+        assertEquals("[null,null,null,1.5]", out.toString());
+    }
+
+    @Test
+    public void calendarsAreIso8601() throws Exception {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2013, Calendar.MARCH, 4, 5, 6, 7);
+        StringBuilder out = new StringBuilder();
+        new JsonWriter(out).value(calendar);
+        assertEquals("\"2013-03-04T05:06:07.000Z\"", out.toString());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2009-2013 Hippo B.V. (http://www.onehippo.com)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrrunner.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+public class QuerySplitterTest {
+
+    private static final String QUERY = "content/documents//element(*, hippo:document)";
+
+    @Test
+    public void splitsByFoldersOfPathScope() {
+        assertEquals("/content/documents", QuerySplitter.getPathScope(QUERY));
+        List<String> queries = QuerySplitter.splitByFolders(QUERY, Arrays.asList("news", "2013"));
+        assertEquals(Arrays.asList(
+                "content/documents/element(*, hippo:document)",
+                "content/documents/news//element(*, hippo:document)",
+                "content/documents/_x0032_013//element(*, hippo:document)"), queries);
+    }
+
+    @Test
+    public void splitsSameNameSiblingsByIndex() {
+        assertEquals(Arrays.asList("/jcr:root/content/*", "/jcr:root/content/a[1]//*", "/jcr:root/content/a[2]//*",
+                "/jcr:root/content/b//*"),
+                QuerySplitter.splitByFolders("/jcr:root/content//*", Arrays.asList("a", "b", "a")));
+    }
+
+    @Test
+    public void splitsAbsoluteAndRootQueries() {
+        assertEquals("/content", QuerySplitter.getPathScope("/jcr:root/content//*[@title]"));
+        assertEquals(Arrays.asList("/jcr:root/content/*[@title]", "/jcr:root/content/a//*[@title]"),
+                QuerySplitter.splitByFolders("/jcr:root/content//*[@title]", Arrays.asList("a")));
+        assertEquals("/", QuerySplitter.getPathScope("//element(*, hippo:handle)"));
+        assertEquals(Arrays.asList("/jcr:root/element(*, hippo:handle)", "/jcr:root/content//element(*, hippo:handle)"),
+                QuerySplitter.splitByFolders("//element(*, hippo:handle)", Arrays.asList("content")));
+    }
+
+    @Test
+    public void doesNotSplitUnsupportedQueries() {
+        assertNull(QuerySplitter.getPathScope("content/documents/*"));
+        assertNull(QuerySplitter.getPathScope("content/*[@a]//element(*, hippo:document)"));
+        assertNull(QuerySplitter.getPathScope("content//@title"));
+        assertNull(QuerySplitter.getPathScope(QUERY + " order by @title"));
+        assertNull(QuerySplitter.splitByDates(QUERY + " order by @title", "a:date", Arrays.asList("2013")));
+    }
+
+    @Test
+    public void splitsByDateRanges() {
+        List<String> queries = QuerySplitter.splitByDates(QUERY, "a:date",
+                Arrays.asList("2012-01-01T00:00:00.000Z", "2013-01-01T00:00:00.000Z"));
+        assertEquals(Arrays.asList(
+                QUERY + "[not(@a:date)]",
+                QUERY + "[@a:date < xs:dateTime('2012-01-01T00:00:00.000Z')]",
+                QUERY + "[@a:date >= xs:dateTime('2012-01-01T00:00:00.000Z')"
+                        + " and @a:date < xs:dateTime('2013-01-01T00:00:00.000Z')]",
+                QUERY + "[@a:date >= xs:dateTime('2013-01-01T00:00:00.000Z')]"), queries);
+    }
+}